@@ -0,0 +1,335 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.Purchase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PurchaseVerifier} that validates receipts remotely, grouping purchases from several
+ * {@link #verify} calls into a single request.
+ * <p>
+ * A batch is sent as soon as it holds {@code maxBatchSize} purchases or {@code maxDelayMillis}
+ * after its first purchase was queued, whichever comes first. Every {@link #verify} call is
+ * answered within {@code timeoutMillis}; purchases without an answer by then are reported as
+ * unverified. Definite answers are kept in a response cache keyed by purchase token, so
+ * purchases seen again during inventory refreshes do not cause new requests.
+ * <p>
+ * Requests are made by a {@link Transport} on a private background thread, for example
+ * {@link HttpVerificationTransport}. The batch and timeout timers run on a second thread, so a
+ * slow request never delays a timeout. A purchase whose request is already in flight is not
+ * sent again; it gets the verdict of that request.
+ */
+public class BatchingPurchaseVerifier implements PurchaseVerifier {
+    private static final String LOG_TAG = "iabv3";
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 200;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    /**
+     * Performs a verification request for a batch of purchases. Called on a background thread.
+     */
+    public interface Transport {
+        /**
+         * @return the verdict for each purchase token, {@code true} if the purchase is genuine.
+         * Purchases missing from the result are reported as unverified.
+         */
+        Map<String, Boolean> verify(List<Purchase> purchases) throws IOException;
+    }
+
+    private final Transport transport;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final long timeoutMillis;
+    private final Map<String, Boolean> responses;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // guarded by this
+    private final List<Request> pendingRequests = new ArrayList<>();
+    private final List<Purchase> batch = new ArrayList<>();
+    private final Set<String> inFlightTokens = new HashSet<>();
+    private ScheduledFuture<?> flushTimer;
+
+    public BatchingPurchaseVerifier(Transport transport) {
+        this(transport, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_TIMEOUT_MILLIS,
+                DEFAULT_CACHE_SIZE);
+    }
+
+    public BatchingPurchaseVerifier(Transport transport, int maxBatchSize, long maxDelayMillis,
+                                    long timeoutMillis, int cacheSize) {
+        this(transport, maxBatchSize, maxDelayMillis, timeoutMillis, cacheSize,
+                Executors.newSingleThreadExecutor(newThreadFactory("iabv3-verifier")),
+                Executors.newSingleThreadScheduledExecutor(newThreadFactory("iabv3-verifier-timer")));
+    }
+
+    /**
+     * @param executor runs the {@link Transport} requests
+     * @param timer    runs the batch and timeout timers, must not be {@code executor}
+     */
+    BatchingPurchaseVerifier(Transport transport, int maxBatchSize, long maxDelayMillis,
+                             long timeoutMillis, final int cacheSize, ExecutorService executor,
+                             ScheduledExecutorService timer) {
+        this.transport = transport;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.responses = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    @Override
+    public void verify(List<Purchase> purchases, Callback callback) {
+        final Request request = new Request(callback);
+        boolean completeNow = false;
+        boolean flushNow = false;
+        synchronized (this) {
+            for (Purchase purchase : purchases) {
+                Boolean cached = responses.get(purchase.getPurchaseToken());
+                if (cached != null) {
+                    request.resolve(purchase, cached);
+                } else {
+                    request.pending.add(purchase);
+                    if (!inFlightTokens.contains(purchase.getPurchaseToken())
+                            && !contains(batch, purchase)) {
+                        batch.add(purchase);
+                    }
+                }
+            }
+            if (request.pending.isEmpty()) {
+                completeNow = true;
+            } else {
+                pendingRequests.add(request);
+                flushNow = schedule(request);
+            }
+        }
+        if (completeNow) {
+            request.complete();
+        } else if (flushNow) {
+            executor.execute(flushTask);
+        }
+    }
+
+    /**
+     * Arms the batch and timeout timers for a newly queued request.
+     *
+     * @return {@code true} if the batch is full and should be sent right away
+     */
+    private boolean schedule(final Request request) {
+        request.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(request);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        if (batch.size() >= maxBatchSize) {
+            return true;
+        }
+        if (flushTimer == null && !batch.isEmpty()) {
+            flushTimer = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    executor.execute(flushTask);
+                }
+            }, maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * Stops the background threads. Pending verifications are reported as unverified.
+     */
+    public void shutdown() {
+        List<Request> requests;
+        synchronized (this) {
+            requests = new ArrayList<>(pendingRequests);
+            pendingRequests.clear();
+            batch.clear();
+            inFlightTokens.clear();
+        }
+        timer.shutdownNow();
+        executor.shutdownNow();
+        for (Request request : requests) {
+            request.complete();
+        }
+    }
+
+    private void flush() {
+        List<Purchase> sending;
+        synchronized (this) {
+            if (flushTimer != null) {
+                flushTimer.cancel(false);
+                flushTimer = null;
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            int count = Math.min(batch.size(), maxBatchSize);
+            sending = new ArrayList<>(batch.subList(0, count));
+            batch.subList(0, count).clear();
+            for (Purchase purchase : sending) {
+                inFlightTokens.add(purchase.getPurchaseToken());
+            }
+            if (!batch.isEmpty()) {
+                executor.execute(flushTask);
+            }
+        }
+        Map<String, Boolean> verdicts;
+        try {
+            verdicts = transport.verify(sending);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Purchase verification request failed", e);
+            verdicts = Collections.emptyMap();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Purchase verification request failed", e);
+            verdicts = Collections.emptyMap();
+        }
+        List<Request> completed = new ArrayList<>();
+        synchronized (this) {
+            for (Purchase purchase : sending) {
+                inFlightTokens.remove(purchase.getPurchaseToken());
+                Boolean verdict = verdicts.get(purchase.getPurchaseToken());
+                if (verdict != null) {
+                    responses.put(purchase.getPurchaseToken(), verdict);
+                }
+                for (Request request : pendingRequests) {
+                    if (contains(request.pending, purchase)) {
+                        request.pending.remove(indexOf(request.pending, purchase));
+                        if (verdict != null) {
+                            request.resolve(purchase, verdict);
+                        } else {
+                            request.unverified.add(purchase);
+                        }
+                    }
+                }
+            }
+            for (Request request : new ArrayList<>(pendingRequests)) {
+                if (request.pending.isEmpty()) {
+                    pendingRequests.remove(request);
+                    completed.add(request);
+                }
+            }
+        }
+        for (Request request : completed) {
+            request.complete();
+        }
+    }
+
+    private void expire(Request request) {
+        synchronized (this) {
+            if (!pendingRequests.remove(request)) {
+                return;
+            }
+        }
+        Log.w(LOG_TAG, "Purchase verification timed out after " + timeoutMillis + " ms");
+        request.complete();
+    }
+
+    private static boolean contains(List<Purchase> purchases, Purchase purchase) {
+        return indexOf(purchases, purchase) >= 0;
+    }
+
+    private static int indexOf(List<Purchase> purchases, Purchase purchase) {
+        for (int i = 0; i < purchases.size(); i++) {
+            String token = purchases.get(i).getPurchaseToken();
+            if (token != null && token.equals(purchase.getPurchaseToken())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Request {
+        final Callback callback;
+        final List<Purchase> pending = new ArrayList<>();
+        final List<Purchase> valid = new ArrayList<>();
+        final List<Purchase> invalid = new ArrayList<>();
+        final List<Purchase> unverified = new ArrayList<>();
+        ScheduledFuture<?> timeout;
+        private boolean completed;
+
+        Request(Callback callback) {
+            this.callback = callback;
+        }
+
+        void resolve(Purchase purchase, boolean verdict) {
+            if (verdict) {
+                valid.add(purchase);
+            } else {
+                invalid.add(purchase);
+            }
+        }
+
+        void complete() {
+            List<Purchase> remaining;
+            synchronized (this) {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                remaining = new ArrayList<>(unverified);
+                remaining.addAll(pending);
+            }
+            callback.onVerified(valid, invalid, remaining);
+        }
+    }
+}
@@ -19,6 +19,11 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 class BillingBase {
     private Context context;
 
@@ -75,5 +80,44 @@ class BillingBase {
         }
         return defValue;
     }
-}
 
+    boolean saveLong(String key, long value) {
+        SharedPreferences sp = getPreferences();
+        if (sp != null) {
+            SharedPreferences.Editor spe = sp.edit();
+            spe.putLong(key, value);
+            spe.commit();
+            return true;
+        }
+        return false;
+    }
+
+    long loadLong(String key, long defValue) {
+        SharedPreferences sp = getPreferences();
+        if (sp != null) {
+            return sp.getLong(key, defValue);
+        }
+        return defValue;
+    }
+
+    boolean removeKeys(Collection<String> keys) {
+        SharedPreferences sp = getPreferences();
+        if (sp != null) {
+            SharedPreferences.Editor spe = sp.edit();
+            for (String key : keys) {
+                spe.remove(key);
+            }
+            spe.commit();
+            return true;
+        }
+        return false;
+    }
+
+    Set<String> loadKeys() {
+        SharedPreferences sp = getPreferences();
+        if (sp != null) {
+            return new HashSet<>(sp.getAll().keySet());
+        }
+        return Collections.emptySet();
+    }
+}
@@ -18,58 +18,171 @@ package com.anjlab.android.iab.v3;
 import android.content.Context;
 import android.text.TextUtils;
 
+import androidx.annotation.Nullable;
+
 import com.android.billingclient.api.Purchase;
 
 import org.json.JSONException;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
 
+/**
+ * Purchases cache backed by shared preferences.
+ * <p>
+ * Purchases are held as {@link CompactPurchase} records; {@link #getDetails(String)} rebuilds a
+ * {@link Purchase} from them and keeps the last {@link #RECENT_PURCHASES} rebuilt, so an app
+ * checking the same few products over and over parses each once.
+ * <p>
+ * Readers always see an immutable {@link Snapshot} published through a volatile reference, so
+ * lookups are lock-free and safe from any thread. Writers are serialized on the cache instance,
+ * copy the current snapshot, apply their change and publish the result. Each snapshot also
+ * indexes its records by purchase token, order id and purchase time, built on the first lookup.
+ * <p>
+ * Until a cache is written for the first time it falls back to reading the keys used by older
+ * library versions, so ownership is available right after an upgrade; {@link #migrate()} then
+ * rewrites the contents under the current key and removes the legacy ones.
+ * <p>
+ * Contents can be partitioned by account with {@link #setAccount(String)}. Each account's shard
+ * is stored under its own key and parsed only when the account becomes active; the cache then
+ * reads and writes that shard alone. Shard keys start with {@link #ACCOUNT_KEY_PREFIX}, so they
+ * never share a prefix with the unpartitioned keys.
+ */
 class BillingCache extends BillingBase {
-    private static final String ENTRY_DELIMITER = "#####";
-    private static final String LINE_DELIMITER = ">>>>>";
     private static final String VERSION_KEY = ".version";
+    static final String ACCOUNT_KEY_PREFIX = ".account.";
+    static final int RECENT_PURCHASES = 16;
+
+    /**
+     * Contents stored under one preference key.
+     */
+    private static final class Shard {
+        final String key;
+        volatile Snapshot data = Snapshot.EMPTY;
+        volatile String version;
+
+        Shard(String key) {
+            this.key = key;
+        }
+    }
 
-    private HashMap<String, Purchase> data;
-    private String cacheKey;
-    private String version;
+    private final String cacheKey;
+    private final Clock clock;
+    private final Shard defaultShard;
+    // guarded by this
+    private final Map<String, Shard> accountShards = new HashMap<>();
+    private volatile Shard active;
+    // keyed by record identity, least recently used first
+    private final Map<CompactPurchase, Purchase> recentPurchases =
+            new LinkedHashMap<CompactPurchase, Purchase>(RECENT_PURCHASES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CompactPurchase, Purchase> eldest) {
+                    return size() > RECENT_PURCHASES;
+                }
+            };
 
-    BillingCache(Context context, String key) {
+    BillingCache(Context context, String key, Clock clock) {
         super(context);
-        data = new HashMap<>();
         cacheKey = key;
-        load();
+        this.clock = clock;
+        defaultShard = new Shard(key);
+        active = defaultShard;
+        synchronized (this) {
+            load(defaultShard);
+        }
     }
 
-    private String getPreferencesCacheKey() {
-        return getPreferencesBaseKey() + cacheKey;
+    /**
+     * Makes the shard of {@code accountId} the active contents, loading it if this is the first
+     * time the account is active. {@code null} selects the unpartitioned contents.
+     */
+    synchronized void setAccount(@Nullable String accountId) {
+        Shard shard;
+        if (accountId == null) {
+            shard = defaultShard;
+        } else {
+            shard = accountShards.get(accountId);
+            if (shard == null) {
+                shard = new Shard(ACCOUNT_KEY_PREFIX + accountId + cacheKey);
+                load(shard);
+                accountShards.put(accountId, shard);
+            }
+        }
+        active = shard;
     }
 
-    private String getPreferencesVersionKey() {
-        return getPreferencesCacheKey() + VERSION_KEY;
+    private String getPreferencesCacheKey(Shard shard) {
+        return getPreferencesBaseKey() + shard.key;
     }
 
-    private void load() {
-        String[] entries = loadString(getPreferencesCacheKey(), "").split(Pattern.quote(ENTRY_DELIMITER));
-        for (String entry : entries) {
-            if (!TextUtils.isEmpty(entry)) {
-                String[] parts = entry.split(Pattern.quote(LINE_DELIMITER));
-                Purchase purchase = null;
-                if (parts.length > 2) {
-                    purchase = newPurchase(parts[1], parts[2]);
+    private String getPreferencesVersionKey(Shard shard) {
+        return getPreferencesCacheKey(shard) + VERSION_KEY;
+    }
 
-                } else if (parts.length > 1) {
-                    purchase = newPurchase(parts[1], null);
-                }
-                if (purchase != null) {
-                    data.put(parts[0], purchase);
+    private void load(Shard shard) {
+        String blob = loadString(getPreferencesCacheKey(shard), null);
+        if (blob == null) {
+            // only the unpartitioned contents predate the current format
+            blob = shard == defaultShard ? loadLegacyBlob() : "";
+        }
+        shard.data = new Snapshot(parse(blob));
+        shard.version = getCurrentVersion(shard);
+    }
+
+    private String loadLegacyBlob() {
+        for (String legacyKey : CacheMigrator.getLegacyKeys(getPreferencesCacheKey(defaultShard))) {
+            String blob = loadString(legacyKey, null);
+            if (blob != null) {
+                return blob;
+            }
+        }
+        return "";
+    }
+
+    private HashMap<String, CompactPurchase> parse(String blob) {
+        final HashMap<String, CompactPurchase> loaded = new HashMap<>();
+        CacheMigrator.read(blob, new CacheMigrator.EntrySink() {
+            @Override
+            public void onEntry(String productId, String json, String signature) {
+                CompactPurchase record = CompactPurchase.of(newPurchase(json, signature));
+                if (record != null) {
+                    loaded.put(CompactPurchase.internSku(productId), record);
                 }
             }
+        });
+        return loaded;
+    }
+
+    /**
+     * Moves unpartitioned contents stored under a legacy key to the current key and format, then
+     * removes the legacy keys. Does nothing to the current contents if they were already written.
+     */
+    synchronized void migrate() {
+        reloadDataIfNeeded(defaultShard);
+        if (loadString(getPreferencesCacheKey(defaultShard), null) == null) {
+            flush(defaultShard);
+        }
+        List<String> legacyKeys = new ArrayList<>();
+        for (String legacyKey : CacheMigrator.getLegacyKeys(getPreferencesCacheKey(defaultShard))) {
+            legacyKeys.add(legacyKey);
+            legacyKeys.add(legacyKey + VERSION_KEY);
         }
-        version = getCurrentVersion();
+        removeKeys(legacyKeys);
+    }
+
+    /**
+     * @return the preference keys of the unpartitioned contents
+     */
+    List<String> getPreferencesKeys() {
+        List<String> keys = new ArrayList<>();
+        keys.add(getPreferencesCacheKey(defaultShard));
+        keys.add(getPreferencesVersionKey(defaultShard));
+        return keys;
     }
 
     public Purchase newPurchase(String json, String signature) {
@@ -82,78 +195,316 @@ class BillingCache extends BillingBase {
         }
     }
 
-    private void flush() {
+    // must hold this
+    private void publish(Map<String, CompactPurchase> contents) {
+        active.data = new Snapshot(contents);
+        flush(active);
+    }
+
+    private void flush(Shard shard) {
         ArrayList<String> output = new ArrayList<>();
-        for (String productId : data.keySet()) {
-            Purchase info = data.get(productId);
-            output.add(productId + LINE_DELIMITER + info.getOriginalJson() + LINE_DELIMITER +
-                    info.getSignature());
+        output.add(CacheMigrator.getHeader());
+        for (Map.Entry<String, CompactPurchase> entry : shard.data.records.entrySet()) {
+            String productId = entry.getKey();
+            CompactPurchase info = entry.getValue();
+            output.add(productId + CacheMigrator.LINE_DELIMITER + info.getOriginalJson() +
+                    CacheMigrator.LINE_DELIMITER + info.getSignature());
         }
-        saveString(getPreferencesCacheKey(), TextUtils.join(ENTRY_DELIMITER, output));
-        version = Long.toString(new Date().getTime());
-        saveString(getPreferencesVersionKey(), version);
+        saveString(getPreferencesCacheKey(shard), TextUtils.join(CacheMigrator.ENTRY_DELIMITER, output));
+        shard.version = Long.toString(clock.currentTimeMillis());
+        saveString(getPreferencesVersionKey(shard), shard.version);
     }
 
     boolean includesProduct(String productId) {
-        reloadDataIfNeeded();
-        return data.containsKey(productId);
+        return reloadDataIfNeeded().records.containsKey(productId);
     }
 
+    /**
+     * @return a {@link Purchase} rebuilt from the cached record, or {@code null} if the product
+     * is not cached
+     */
     Purchase getDetails(String productId) {
-        reloadDataIfNeeded();
-        return data.containsKey(productId) ? data.get(productId) : null;
+        CompactPurchase record = getRecord(productId);
+        if (record == null) {
+            return null;
+        }
+        synchronized (recentPurchases) {
+            Purchase purchase = recentPurchases.get(record);
+            if (purchase != null) {
+                return purchase;
+            }
+        }
+        Purchase purchase = record.toPurchase();
+        if (purchase != null) {
+            synchronized (recentPurchases) {
+                recentPurchases.put(record, purchase);
+            }
+        }
+        return purchase;
     }
 
-    void put(String productId, String details, String signature) {
-        reloadDataIfNeeded();
-        if (!data.containsKey(productId)) {
-            Purchase purchase = newPurchase(details, signature);
-            if (purchase!=null) {
-                data.put(productId, purchase);
-                flush();
+    /**
+     * @return the cached record for {@code productId}, without rebuilding a {@link Purchase}
+     */
+    CompactPurchase getRecord(String productId) {
+        return reloadDataIfNeeded().records.get(productId);
+    }
+
+    synchronized void put(String productId, String details, String signature) {
+        Snapshot current = reloadDataIfNeeded();
+        if (!current.records.containsKey(productId)) {
+            CompactPurchase record = CompactPurchase.of(newPurchase(details, signature));
+            if (record != null) {
+                HashMap<String, CompactPurchase> contents = new HashMap<>(current.records);
+                contents.put(CompactPurchase.internSku(productId), record);
+                publish(contents);
             }
         }
     }
 
-    void put(String productId, Purchase purchase) {
-        reloadDataIfNeeded();
-        if (!data.containsKey(productId)) {
-            data.put(productId, purchase);
-            flush();
+    synchronized void put(String productId, Purchase purchase) {
+        Snapshot current = reloadDataIfNeeded();
+        if (!current.records.containsKey(productId)) {
+            CompactPurchase record = CompactPurchase.of(purchase);
+            if (record != null) {
+                HashMap<String, CompactPurchase> contents = new HashMap<>(current.records);
+                contents.put(CompactPurchase.internSku(productId), record);
+                publish(contents);
+            }
         }
     }
 
-    void remove(String productId) {
-        reloadDataIfNeeded();
-        if (data.containsKey(productId)) {
-            data.remove(productId);
-            flush();
+    /**
+     * Adds the purchases of products not cached yet, writing the preferences once.
+     */
+    synchronized void putAll(List<Purchase> purchases) {
+        Snapshot current = reloadDataIfNeeded();
+        HashMap<String, CompactPurchase> contents = null;
+        for (Purchase purchase : purchases) {
+            String productId = purchase.getSku();
+            if (current.records.containsKey(productId) ||
+                    (contents != null && contents.containsKey(productId))) {
+                continue;
+            }
+            CompactPurchase record = CompactPurchase.of(purchase);
+            if (record != null) {
+                if (contents == null) {
+                    contents = new HashMap<>(current.records);
+                }
+                contents.put(CompactPurchase.internSku(productId), record);
+            }
         }
+        if (contents != null) {
+            publish(contents);
+        }
+    }
+
+    synchronized void remove(String productId) {
+        Snapshot current = reloadDataIfNeeded();
+        if (current.records.containsKey(productId)) {
+            HashMap<String, CompactPurchase> contents = new HashMap<>(current.records);
+            contents.remove(productId);
+            publish(contents);
+        }
+    }
+
+    /**
+     * Replaces the whole contents with {@code contents} in a single step, so readers never see a
+     * partially refreshed cache. Nothing is written if the contents did not change.
+     *
+     * @return {@code true} if the cache was changed
+     */
+    synchronized boolean replaceAll(Map<String, Purchase> contents) {
+        Snapshot current = reloadDataIfNeeded();
+        HashMap<String, CompactPurchase> records = new HashMap<>();
+        for (Map.Entry<String, Purchase> entry : contents.entrySet()) {
+            CompactPurchase record = CompactPurchase.of(entry.getValue());
+            if (record != null) {
+                records.put(CompactPurchase.internSku(entry.getKey()), record);
+            }
+        }
+        if (sameContents(current.records, records)) {
+            return false;
+        }
+        publish(records);
+        return true;
+    }
+
+    private static boolean sameContents(Map<String, CompactPurchase> current,
+                                        Map<String, CompactPurchase> contents) {
+        if (current.size() != contents.size()) {
+            return false;
+        }
+        for (Map.Entry<String, CompactPurchase> entry : contents.entrySet()) {
+            if (!entry.getValue().sameReceipt(current.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    void clear() {
+    synchronized void clear() {
         reloadDataIfNeeded();
-        data.clear();
-        flush();
+        publish(new HashMap<String, CompactPurchase>());
+    }
+
+    private String getCurrentVersion(Shard shard) {
+        return loadString(getPreferencesVersionKey(shard), "0");
     }
 
-    private String getCurrentVersion() {
-        return loadString(getPreferencesVersionKey(), "0");
+    /**
+     * Reloads the active shard if another instance has flushed a newer version to the
+     * preferences.
+     *
+     * @return the snapshot readers should use
+     */
+    private Snapshot reloadDataIfNeeded() {
+        return reloadDataIfNeeded(active);
     }
 
-    private void reloadDataIfNeeded() {
-        if (!version.equalsIgnoreCase(getCurrentVersion())) {
-            data.clear();
-            load();
+    private Snapshot reloadDataIfNeeded(Shard shard) {
+        if (!shard.version.equalsIgnoreCase(getCurrentVersion(shard))) {
+            synchronized (this) {
+                if (!shard.version.equalsIgnoreCase(getCurrentVersion(shard))) {
+                    load(shard);
+                }
+            }
         }
+        return shard.data;
     }
 
+    /**
+     * @return the currently published snapshot, without checking the preferences for changes
+     * made by other instances
+     */
+    Snapshot snapshot() {
+        return active.data;
+    }
+
+    /**
+     * @return an unmodifiable list of cached product ids, shared by all callers until the next
+     * change
+     */
     List<String> getContents() {
-        return new ArrayList<>(data.keySet());
+        return active.data.productIds;
     }
 
     @Override
     public String toString() {
-        return TextUtils.join(", ", data.keySet());
+        return TextUtils.join(", ", active.data.productIds);
+    }
+
+    /**
+     * @return the product id of the cached purchase with {@code purchaseToken}, or {@code null}
+     */
+    String findProductIdByToken(String purchaseToken) {
+        return reloadDataIfNeeded().indexes().productIdsByToken.get(purchaseToken);
+    }
+
+    /**
+     * @return the product id of the cached purchase with {@code orderId}, or {@code null}
+     */
+    String findProductIdByOrderId(String orderId) {
+        return reloadDataIfNeeded().indexes().productIdsByOrderId.get(orderId);
+    }
+
+    /**
+     * @return the cached records purchased at or after {@code purchaseTime}, oldest first
+     */
+    List<CompactPurchase> getRecordsSince(long purchaseTime) {
+        Snapshot snapshot = reloadDataIfNeeded();
+        Indexes indexes = snapshot.indexes();
+        List<CompactPurchase> result = new ArrayList<>();
+        for (int i = indexes.firstAtOrAfter(purchaseTime); i < indexes.times.length; i++) {
+            result.add(snapshot.records.get(indexes.productIdsByTime[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Immutable view of the cache contents at a point in time.
+     */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new HashMap<String, CompactPurchase>());
+
+        final Map<String, CompactPurchase> records;
+        final List<String> productIds;
+        private volatile Indexes indexes;
+
+        Snapshot(Map<String, CompactPurchase> records) {
+            this.records = Collections.unmodifiableMap(records);
+            this.productIds = Collections.unmodifiableList(new ArrayList<>(records.keySet()));
+        }
+
+        /**
+         * @return the secondary indexes, built on first use. Concurrent first calls may each
+         * build them, with equal results.
+         */
+        Indexes indexes() {
+            Indexes result = indexes;
+            if (result == null) {
+                result = new Indexes(records);
+                indexes = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Lookups of a snapshot's product ids by purchase token, order id and purchase time.
+     */
+    static final class Indexes {
+        final Map<String, String> productIdsByToken;
+        final Map<String, String> productIdsByOrderId;
+        // parallel arrays, ascending by time
+        final long[] times;
+        final String[] productIdsByTime;
+
+        Indexes(Map<String, CompactPurchase> records) {
+            productIdsByToken = new HashMap<>(records.size() * 2);
+            productIdsByOrderId = new HashMap<>(records.size() * 2);
+            List<Map.Entry<String, CompactPurchase>> byTime = new ArrayList<>(records.entrySet());
+            Collections.sort(byTime, new Comparator<Map.Entry<String, CompactPurchase>>() {
+                @Override
+                public int compare(Map.Entry<String, CompactPurchase> a, Map.Entry<String, CompactPurchase> b) {
+                    long x = a.getValue().getPurchaseTime();
+                    long y = b.getValue().getPurchaseTime();
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+            times = new long[byTime.size()];
+            productIdsByTime = new String[byTime.size()];
+            for (int i = 0; i < byTime.size(); i++) {
+                String productId = byTime.get(i).getKey();
+                CompactPurchase record = byTime.get(i).getValue();
+                times[i] = record.getPurchaseTime();
+                productIdsByTime[i] = productId;
+                String token = record.getPurchaseToken();
+                if (token != null) {
+                    productIdsByToken.put(token, productId);
+                }
+                String orderId = record.getOrderId();
+                if (orderId != null) {
+                    productIdsByOrderId.put(orderId, productId);
+                }
+            }
+        }
+
+        /**
+         * @return the index of the first record purchased at or after {@code time}
+         */
+        int firstAtOrAfter(long time) {
+            int low = 0;
+            int high = times.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[middle] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
     }
 }
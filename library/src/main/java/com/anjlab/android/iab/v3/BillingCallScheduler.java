@@ -0,0 +1,333 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Orders and limits the {@link com.android.billingclient.api.BillingClient} calls made by the
+ * library.
+ * <p>
+ * At most {@code maxConcurrentCalls} queued calls are in flight at once. When a slot frees up,
+ * the queued call with the best priority class starts next: consume and acknowledge first, then
+ * inventory, then catalog. A call gains one class for every {@link #AGING_INTERVAL_MILLIS} it
+ * waits, so background work cannot starve. Interactive purchase calls are never queued. They
+ * run immediately and hold a slot while they run, so no new background call starts during a
+ * purchase.
+ * <p>
+ * A call holds its slot until it releases it, normally from its response listener. A call that
+ * never gets a response loses its slot after {@link #CALL_TIMEOUT_MILLIS} and is told through
+ * {@link Call#onAbandoned()}. The timeouts run on their own timer, so they fire even while the
+ * background executor is busy. Nothing in the scheduler blocks a thread waiting for a slot:
+ * synchronous client calls are {@link #submit submitted} and run on the background executor once
+ * they get one.
+ * <p>
+ * An optional {@link Gate} holds queued calls back while the service is unbound and learns when
+ * the scheduler goes idle.
+ */
+final class BillingCallScheduler {
+    private static final String LOG_TAG = "iabv3";
+
+    static final int PRIORITY_PURCHASE = 0;
+    static final int PRIORITY_CONSUME = 1;
+    static final int PRIORITY_INVENTORY = 2;
+    static final int PRIORITY_CATALOG = 3;
+
+    static final int DEFAULT_MAX_CONCURRENT_CALLS = 2;
+    static final long AGING_INTERVAL_MILLIS = 2000;
+    static final long CALL_TIMEOUT_MILLIS = 30000;
+
+    interface Call {
+        /**
+         * Starts the call. {@code slot} must be released once it completes.
+         */
+        void start(Slot slot);
+
+        /**
+         * Called instead of a response when the call failed to start or did not complete within
+         * {@link #CALL_TIMEOUT_MILLIS}, on the thread that noticed. A response may still arrive
+         * afterwards.
+         */
+        void onAbandoned();
+    }
+
+    interface Callback<T> {
+        /**
+         * @param result the call's result, or {@code null} if it failed or was abandoned
+         */
+        void onComplete(@Nullable T result);
+    }
+
+    interface Gate {
+        /**
+         * @return whether queued calls may start now
+         */
+        boolean isOpen();
+
+        /**
+         * Called when queued calls are held back. The gate calls {@link #resume} once it opens.
+         */
+        void open();
+
+        /**
+         * Called when no call is queued or in flight.
+         */
+        void onIdle();
+    }
+
+    /**
+     * Permission to have one call in flight.
+     */
+    final class Slot {
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+
+        /**
+         * Frees the slot for the next queued call. Only the first call has an effect.
+         *
+         * @return {@code true} if this call freed the slot
+         */
+        boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            ScheduledFuture<?> future = timeout;
+            if (future != null) {
+                future.cancel(false);
+            }
+            synchronized (lock) {
+                running--;
+            }
+            dispatch();
+            return true;
+        }
+    }
+
+    private static final class Entry {
+        final int priority;
+        final Call call;
+        final long enqueuedAt;
+        final long sequence;
+
+        Entry(int priority, Call call, long enqueuedAt, long sequence) {
+            this.priority = priority;
+            this.call = call;
+            this.enqueuedAt = enqueuedAt;
+            this.sequence = sequence;
+        }
+
+        int effectivePriority(long now) {
+            long aged = priority - (now - enqueuedAt) / AGING_INTERVAL_MILLIS;
+            return (int) Math.max(PRIORITY_CONSUME, aged);
+        }
+    }
+
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final Clock clock;
+    private final int maxConcurrentCalls;
+    private final Object lock = new Object();
+    // guarded by lock
+    private final List<Entry> queue = new ArrayList<>();
+    private int running;
+    private long sequence;
+    private volatile Gate gate;
+
+    /**
+     * @param executor runs {@link #submit submitted} calls
+     * @param timer    runs the call timeouts, must not be {@code executor}
+     * @param clock    ages queued calls
+     */
+    BillingCallScheduler(Executor executor, ScheduledExecutorService timer, Clock clock,
+                         int maxConcurrentCalls) {
+        this.executor = executor;
+        this.timer = timer;
+        this.clock = clock;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    void setGate(@Nullable Gate gate) {
+        this.gate = gate;
+    }
+
+    /**
+     * Starts queued calls held back by the {@link Gate}.
+     */
+    void resume() {
+        dispatch();
+    }
+
+    boolean isIdle() {
+        synchronized (lock) {
+            return running == 0 && queue.isEmpty();
+        }
+    }
+
+    /**
+     * Queues an asynchronous call. It may start on the calling thread, or later on the thread
+     * that releases a slot.
+     */
+    void execute(int priority, Call call) {
+        synchronized (lock) {
+            queue.add(new Entry(priority, call, clock.elapsedRealtime(), sequence++));
+        }
+        dispatch();
+    }
+
+    /**
+     * Queues a synchronous call, such as {@code queryPurchases}, to run on the background
+     * executor once it gets a slot. {@code callback} is called exactly once on the executor,
+     * or on the timer thread if the call is abandoned.
+     */
+    <T> void submit(int priority, final Callable<T> callable, final Callback<T> callback) {
+        final AtomicBoolean done = new AtomicBoolean();
+        execute(priority, new Call() {
+            @Override
+            public void start(final Slot slot) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        T result = null;
+                        try {
+                            result = callable.call();
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "BillingClient call failed", e);
+                        } finally {
+                            slot.release();
+                        }
+                        if (done.compareAndSet(false, true)) {
+                            callback.onComplete(result);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onAbandoned() {
+                if (done.compareAndSet(false, true)) {
+                    callback.onComplete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs an interactive call right away, holding a slot while it runs.
+     */
+    <T> T callInteractive(Callable<T> callable) throws Exception {
+        Slot slot = new Slot();
+        synchronized (lock) {
+            running++;
+        }
+        try {
+            return callable.call();
+        } finally {
+            slot.release();
+        }
+    }
+
+    private void dispatch() {
+        Gate gate = this.gate;
+        while (true) {
+            Entry next;
+            boolean held = false;
+            boolean idle = false;
+            synchronized (lock) {
+                if (running >= maxConcurrentCalls || queue.isEmpty()) {
+                    next = null;
+                    idle = running == 0 && queue.isEmpty();
+                } else if (gate != null && !gate.isOpen()) {
+                    next = null;
+                    held = true;
+                } else {
+                    next = pickNext(clock.elapsedRealtime());
+                    queue.remove(next);
+                    running++;
+                }
+            }
+            if (next == null) {
+                if (held) {
+                    gate.open();
+                } else if (idle && gate != null) {
+                    gate.onIdle();
+                }
+                return;
+            }
+            final Slot slot = new Slot();
+            final Call call = next.call;
+            try {
+                slot.timeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (slot.release()) {
+                            Log.w(LOG_TAG, "BillingClient call did not complete, releasing its slot");
+                            call.onAbandoned();
+                        }
+                    }
+                }, CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down, the call fails fast on the closed client anyway
+            }
+            try {
+                call.start(slot);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "BillingClient call failed", e);
+                if (slot.release()) {
+                    call.onAbandoned();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the result reported for abandoned calls
+     */
+    static BillingResult abandonedResult() {
+        return BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.SERVICE_TIMEOUT)
+                .setDebugMessage("BillingClient call did not complete")
+                .build();
+    }
+
+    // must hold lock
+    private Entry pickNext(long now) {
+        Entry best = null;
+        int bestPriority = Integer.MAX_VALUE;
+        for (Entry entry : queue) {
+            int priority = entry.effectivePriority(now);
+            if (priority < bestPriority || (priority == bestPriority && entry.sequence < best.sequence)) {
+                best = entry;
+                bestPriority = priority;
+            }
+        }
+        return best;
+    }
+}
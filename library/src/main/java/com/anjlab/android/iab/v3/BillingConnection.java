@@ -0,0 +1,907 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.billingclient.api.AccountIdentifiers;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide connection to the Play billing service, shared by every attached
+ * {@link BillingProcessor}.
+ * <p>
+ * Holds the single {@link BillingClient}, the purchase caches, the SkuDetails cache, the
+ * subscription refresh schedule, the background executor and a timer for deadlines and
+ * timeouts, kept apart from the executor so they fire on time however long its tasks take.
+ * Processors attach with {@link #acquire} and detach with {@link #release}; the connection is
+ * ended once the last processor is released. Purchase updates are verified and persisted once,
+ * by the first attached processor, and only the handler callbacks are fanned out to every
+ * attached processor; inventory refreshes requested by several processors at once share a
+ * single query.
+ * <p>
+ * With an idle timeout set, the service is unbound once the app has been in the background and
+ * no call has been made for that long. The next queued call, or the app returning to the
+ * foreground, binds it again; queued calls wait for the new connection.
+ */
+final class BillingConnection extends BillingBase implements PurchasesUpdatedListener {
+    private static final String LOG_TAG = "iabv3";
+
+    // since cache format 3 the keys are stable, see CacheMigrator
+    static final String MANAGED_PRODUCTS_CACHE_KEY = ".products.cache";
+    static final String SUBSCRIPTIONS_CACHE_KEY = ".subscriptions.cache";
+    static final String PURCHASE_PAYLOAD_CACHE_KEY = ".purchase.last";
+    private static final String PENDING_PRODUCTS_CACHE_KEY = ".pending.products.cache";
+    private static final String PENDING_SUBSCRIPTIONS_CACHE_KEY = ".pending.subscriptions.cache";
+    private static final String PURCHASES_SYNC_TIME_KEY = ".purchases.synced";
+    private static final String CACHE_FORMAT_KEY = ".cache.format";
+    private static final String PURCHASE_HISTORY_LOG_FILE = "iabv3.history.";
+    private static final String REQUEST_QUEUE_FILE = "iabv3.requests";
+
+    // recorded on connecting, so they can be answered while the service is unbound
+    private static final String[] PROCESSOR_FEATURES = {
+            BillingClient.FeatureType.SUBSCRIPTIONS_UPDATE,
+            BillingClient.FeatureType.SUBSCRIPTIONS_ON_VR,
+            BillingClient.FeatureType.IN_APP_ITEMS_ON_VR
+    };
+
+    private static final int DISCONNECTED = 0;
+    private static final int CONNECTING = 1;
+    private static final int CONNECTED = 2;
+
+    /**
+     * Creates what a connection talks to. Replaced by the JVM test harness to run against a
+     * scripted {@link BillingClient} and a virtual clock.
+     */
+    interface Environment {
+        BillingClient createClient(Context context, PurchasesUpdatedListener listener);
+
+        ScheduledExecutorService createExecutor();
+
+        /**
+         * @return the executor for deadlines and timeouts, separate from the background executor
+         */
+        ScheduledExecutorService createTimer();
+
+        Executor createMainThreadExecutor();
+
+        /**
+         * @return the clock every time read goes through, matching the executors' timing
+         */
+        Clock createClock();
+
+        /**
+         * @return whether the app shows an activity right now, counted as started until the
+         * activity lifecycle tells otherwise
+         */
+        boolean isAppVisible(Context context);
+    }
+
+    /**
+     * Loads the inventory without blocking, reporting the outcome to {@code done} once.
+     */
+    interface InventoryLoader {
+        void load(RefreshCallback done);
+    }
+
+    interface RefreshCallback {
+        void onRefreshed(boolean loaded);
+    }
+
+    static final Environment DEFAULT_ENVIRONMENT = new Environment() {
+        @Override
+        public BillingClient createClient(Context context, PurchasesUpdatedListener listener) {
+            return BillingClient.newBuilder(context)
+                    .setListener(listener)
+                    .enablePendingPurchases()
+                    .build();
+        }
+
+        @Override
+        public ScheduledExecutorService createExecutor() {
+            return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "iabv3-background");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        @Override
+        public ScheduledExecutorService createTimer() {
+            return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "iabv3-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        @Override
+        public Executor createMainThreadExecutor() {
+            return CallbackDispatcher.executorFor(new Handler(Looper.getMainLooper()));
+        }
+
+        @Override
+        public Clock createClock() {
+            return Clock.SYSTEM;
+        }
+
+        @Override
+        public boolean isAppVisible(Context context) {
+            return ForegroundTracker.isProcessVisible(context);
+        }
+    };
+
+    private static BillingConnection sInstance;
+    private static Environment sEnvironment = DEFAULT_ENVIRONMENT;
+
+    /**
+     * Sets the environment used by connections created from now on, or restores the default
+     * if {@code null}.
+     */
+    @VisibleForTesting
+    static void setEnvironment(@Nullable Environment environment) {
+        synchronized (BillingConnection.class) {
+            sEnvironment = environment != null ? environment : DEFAULT_ENVIRONMENT;
+        }
+    }
+
+    /**
+     * Attaches {@code processor} to the shared connection, creating it if needed. Cache loading
+     * and client creation are recorded in {@code trace} when they happen.
+     */
+    static BillingConnection acquire(Context context, BillingProcessor processor, StartupTrace trace) {
+        synchronized (BillingConnection.class) {
+            if (sInstance == null) {
+                sInstance = new BillingConnection(context.getApplicationContext(), trace, sEnvironment);
+            }
+            sInstance.processors.add(processor);
+            return sInstance;
+        }
+    }
+
+    /**
+     * Detaches {@code processor}. The connection is ended and the caches dropped when no
+     * processors are left.
+     */
+    static void release(BillingConnection connection, BillingProcessor processor) {
+        synchronized (BillingConnection.class) {
+            if (!connection.processors.remove(processor) || !connection.processors.isEmpty()) {
+                return;
+            }
+            if (sInstance == connection) {
+                sInstance = null;
+            }
+        }
+        connection.close();
+    }
+
+    private final List<BillingProcessor> processors = new CopyOnWriteArrayList<>();
+    private final Environment environment;
+    private volatile BillingClient client;
+    private final BillingCache cachedProducts;
+    private final BillingCache cachedSubscriptions;
+    private final Map<String, SkuDetails> skuDetailsCache = new ConcurrentHashMap<>();
+    private final Map<String, PurchaseHistoryLog> purchaseHistoryLogs = new HashMap<>();
+    private final ScheduledExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final Clock clock;
+    private volatile Thread executorThread;
+    private final PendingPurchaseTracker pendingTracker;
+    private final BillingRequestQueue requestQueue;
+    private final BillingCallScheduler callScheduler;
+    private final SkuDetailsLookup skuDetailsLookup;
+    private final SubscriptionRefreshScheduler subscriptionScheduler;
+    private final Executor mainThread;
+    private final ForegroundTracker foregroundTracker;
+
+    private final Object lock = new Object();
+    private int state = DISCONNECTED;
+    private final List<Runnable> pendingOnConnected = new ArrayList<>();
+    private volatile boolean connected;
+    private volatile long connectedAt;
+    // guarded by lock
+    private boolean clientEnded;
+    private long idleSince;
+    private ScheduledFuture<?> idleCheck;
+    // unbound by the idle timeout, bound again on demand
+    private volatile boolean suspended;
+    private volatile long idleTimeoutMillis;
+    private volatile String account;
+    // answers of the last connection, for checks made while the service is unbound
+    private final Map<String, Boolean> supportedFeatures = new ConcurrentHashMap<>();
+
+    private final Object refreshLock = new Object();
+    // callbacks of the refresh in flight, guarded by refreshLock
+    private List<RefreshCallback> refreshCallbacks;
+    private volatile long lastSyncTime;
+
+    private BillingConnection(Context context, StartupTrace trace, Environment environment) {
+        super(context);
+        this.environment = environment;
+        clock = environment.createClock();
+        StartupTrace.Span load = trace.begin(StartupTrace.LOAD_PRODUCTS_CACHE);
+        cachedProducts = new BillingCache(context, MANAGED_PRODUCTS_CACHE_KEY, clock);
+        StartupTrace.end(load);
+        load = trace.begin(StartupTrace.LOAD_SUBSCRIPTIONS_CACHE);
+        cachedSubscriptions = new BillingCache(context, SUBSCRIPTIONS_CACHE_KEY, clock);
+        StartupTrace.end(load);
+        lastSyncTime = loadLong(getPreferencesBaseKey() + PURCHASES_SYNC_TIME_KEY, 0);
+        executor = environment.createExecutor();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executorThread = Thread.currentThread();
+            }
+        });
+        timer = environment.createTimer();
+        mainThread = environment.createMainThreadExecutor();
+        callScheduler = new BillingCallScheduler(executor, timer, clock,
+                BillingCallScheduler.DEFAULT_MAX_CONCURRENT_CALLS);
+        migrateCachesIfNeeded();
+        requestQueue = new BillingRequestQueue(new File(context.getFilesDir(), REQUEST_QUEUE_FILE));
+        pendingTracker = new PendingPurchaseTracker(
+                new BillingCache(context, PENDING_PRODUCTS_CACHE_KEY, clock),
+                new BillingCache(context, PENDING_SUBSCRIPTIONS_CACHE_KEY, clock),
+                executor, new PendingPurchaseTracker.Poller() {
+                    @Override
+                    public void queryPurchases(final String purchaseType,
+                                               final PendingPurchaseTracker.QueryCallback callback) {
+                        if (!connected) {
+                            callback.onPurchases(null);
+                            return;
+                        }
+                        callScheduler.submit(BillingCallScheduler.PRIORITY_INVENTORY,
+                                new Callable<Purchase.PurchasesResult>() {
+                                    @Override
+                                    public Purchase.PurchasesResult call() {
+                                        return client.queryPurchases(purchaseType);
+                                    }
+                                },
+                                new BillingCallScheduler.Callback<Purchase.PurchasesResult>() {
+                                    @Override
+                                    public void onComplete(@Nullable Purchase.PurchasesResult result) {
+                                        if (result == null ||
+                                                result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                                            callback.onPurchases(null);
+                                            return;
+                                        }
+                                        callback.onPurchases(result.getPurchasesList());
+                                    }
+                                });
+                    }
+
+                    @Override
+                    public void onResolved(String purchaseType, PendingPurchaseTracker.Resolution resolution) {
+                        BillingProcessor owner = getPipelineOwner();
+                        if (owner != null) {
+                            owner.submitPolledCompletions(purchaseType, resolution.completed);
+                        }
+                        for (BillingProcessor processor : processors) {
+                            processor.onPendingPurchasesResolved(purchaseType, resolution, true);
+                        }
+                    }
+                });
+        StartupTrace.Span build = trace.begin(StartupTrace.BUILD_CLIENT);
+        client = environment.createClient(context, this);
+        StartupTrace.end(build);
+        skuDetailsLookup = new SkuDetailsLookup(this, callScheduler, skuDetailsCache);
+        subscriptionScheduler = new SubscriptionRefreshScheduler(timer, clock, new Runnable() {
+            @Override
+            public void run() {
+                for (BillingProcessor processor : processors) {
+                    if (processor.isSubscriptionRefreshEnabled()) {
+                        processor.refreshSubscriptions();
+                        return;
+                    }
+                }
+            }
+        });
+        callScheduler.setGate(new BillingCallScheduler.Gate() {
+            @Override
+            public boolean isOpen() {
+                return !suspended;
+            }
+
+            @Override
+            public void open() {
+                wake();
+            }
+
+            @Override
+            public void onIdle() {
+                armIdleCheck();
+            }
+        });
+        foregroundTracker = ForegroundTracker.register(context, new ForegroundTracker.Listener() {
+            @Override
+            public void onForeground() {
+                // binding takes a while, start it before the first call needs it
+                wake();
+            }
+
+            @Override
+            public void onBackground() {
+                if (callScheduler.isIdle()) {
+                    armIdleCheck();
+                }
+            }
+        }, environment.isAppVisible(context));
+    }
+
+    BillingClient getClient() {
+        return client;
+    }
+
+    BillingCache getProductsCache() {
+        return cachedProducts;
+    }
+
+    BillingCache getSubscriptionsCache() {
+        return cachedSubscriptions;
+    }
+
+    Map<String, SkuDetails> getSkuDetailsCache() {
+        return skuDetailsCache;
+    }
+
+    ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return whether the calling thread may wait for an inventory refresh: it is not the
+     * background executor, which runs the refresh, nor the main thread while the service is
+     * unbound, as binding again is answered there
+     */
+    boolean mayWaitForRefresh() {
+        if (Thread.currentThread() == executorThread) {
+            return false;
+        }
+        return !suspended || Looper.myLooper() != Looper.getMainLooper();
+    }
+
+    Executor getMainThreadExecutor() {
+        return mainThread;
+    }
+
+    BillingCallScheduler getCallScheduler() {
+        return callScheduler;
+    }
+
+    SkuDetailsLookup getSkuDetailsLookup() {
+        return skuDetailsLookup;
+    }
+
+    SubscriptionRefreshScheduler getSubscriptionScheduler() {
+        return subscriptionScheduler;
+    }
+
+    /**
+     * @return whether any attached processor wants subscriptions refreshed at renewal times
+     */
+    boolean isSubscriptionRefreshEnabled() {
+        for (BillingProcessor processor : processors) {
+            if (processor.isSubscriptionRefreshEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    BillingRequestQueue getRequestQueue() {
+        return requestQueue;
+    }
+
+    PendingPurchaseTracker getPendingTracker() {
+        return pendingTracker;
+    }
+
+    List<BillingProcessor> getProcessors() {
+        return processors;
+    }
+
+    /**
+     * @return the processor whose verifier, journal and receipt outbox handle purchase updates
+     * for all attached processors, or {@code null} if none is attached
+     */
+    @Nullable
+    BillingProcessor getPipelineOwner() {
+        Iterator<BillingProcessor> attached = processors.iterator();
+        return attached.hasNext() ? attached.next() : null;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return whether calls can be made, either right away or once the service unbound by the
+     * idle timeout is bound again
+     */
+    boolean isAvailable() {
+        return connected || suspended;
+    }
+
+    /**
+     * Like {@link BillingClient#isReady()}, but also {@code true} while the service is unbound by
+     * the idle timeout, in which case it is bound again.
+     */
+    boolean isClientReady() {
+        if (suspended) {
+            wake();
+            return true;
+        }
+        return client.isReady();
+    }
+
+    /**
+     * Checks {@code feature} with Google Play. While the service is unbound by the idle timeout,
+     * answers as the last connection did and binds the service again.
+     *
+     * @param feature one of {@link BillingClient.FeatureType}
+     */
+    boolean isFeatureSupported(String feature) {
+        if (suspended) {
+            wake();
+            Boolean supported = supportedFeatures.get(feature);
+            return supported != null && supported;
+        }
+        BillingClient current = client;
+        if (!current.isReady()) {
+            return false;
+        }
+        boolean supported =
+                current.isFeatureSupported(feature).getResponseCode() == BillingClient.BillingResponseCode.OK;
+        supportedFeatures.put(feature, supported);
+        return supported;
+    }
+
+    /**
+     * Switches the purchase caches to the shard of {@code accountId}, or to the unpartitioned
+     * contents if {@code null}. Shards are loaded the first time their account is active.
+     */
+    void setAccount(@Nullable String accountId) {
+        synchronized (lock) {
+            account = accountId;
+            cachedProducts.setAccount(accountId);
+            cachedSubscriptions.setAccount(accountId);
+        }
+    }
+
+    @Nullable
+    String getAccount() {
+        return account;
+    }
+
+    /**
+     * @return whether {@code purchase} belongs in the caches of the active account, i.e. it was
+     * made for that account or without one
+     */
+    boolean isOfActiveAccount(Purchase purchase) {
+        String accountId = account;
+        if (accountId == null) {
+            return true;
+        }
+        AccountIdentifiers identifiers = purchase.getAccountIdentifiers();
+        return identifiers == null || identifiers.getObfuscatedAccountId() == null ||
+                accountId.equals(identifiers.getObfuscatedAccountId());
+    }
+
+    /**
+     * Unbinds the service after {@code timeoutMillis} without calls while the app is in the
+     * background. Non-positive values keep it bound until the last processor is released.
+     */
+    void setIdleTimeout(long timeoutMillis) {
+        idleTimeoutMillis = timeoutMillis;
+        if (callScheduler.isIdle()) {
+            armIdleCheck();
+        }
+    }
+
+    /**
+     * Runs {@code onConnected} once the service is connected. If the connection is already
+     * established it is posted to the main thread, so it never runs inside a constructor.
+     */
+    void connect(StartupTrace trace, final Runnable onConnected) {
+        boolean start = false;
+        synchronized (lock) {
+            if (state == CONNECTED) {
+                mainThread.execute(onConnected);
+                return;
+            }
+            pendingOnConnected.add(onConnected);
+            if (state == DISCONNECTED) {
+                state = CONNECTING;
+                start = true;
+            }
+        }
+        if (start) {
+            startConnection(trace);
+        }
+    }
+
+    private void startConnection(StartupTrace trace) {
+        synchronized (lock) {
+            if (clientEnded) {
+                // an ended BillingClient cannot be started again
+                client = environment.createClient(getContext(), this);
+                clientEnded = false;
+            }
+        }
+        final StartupTrace.Span connecting = trace.beginAsync(StartupTrace.CONNECTING);
+        final StartupTrace setupTrace = trace;
+        StartupTrace.Span startConnection = trace.begin(StartupTrace.START_CONNECTION);
+        client.startConnection(new BillingClientStateListener() {
+
+            @Override
+            public void onBillingSetupFinished(@NonNull BillingResult billingResult) {
+                StartupTrace.end(connecting);
+                setupTrace.mark(StartupTrace.SETUP_FINISHED);
+                Log.d(LOG_TAG, "Setup finished. Response code: " + billingResult.getResponseCode());
+                List<Runnable> callbacks;
+                synchronized (lock) {
+                    // held calls run either way, failing fast if the service is unavailable
+                    suspended = false;
+                    if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                        state = DISCONNECTED;
+                        callbacks = null;
+                    } else {
+                        state = CONNECTED;
+                        connected = true;
+                        connectedAt = clock.currentTimeMillis();
+                        callbacks = new ArrayList<>(pendingOnConnected);
+                        pendingOnConnected.clear();
+                    }
+                }
+                if (callbacks != null) {
+                    for (String feature : PROCESSOR_FEATURES) {
+                        isFeatureSupported(feature);
+                    }
+                }
+                callScheduler.resume();
+                if (callbacks == null) {
+                    return;
+                }
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+                pendingTracker.start();
+                replayQueuedRequests();
+            }
+
+            @Override
+            public void onBillingServiceDisconnected() {
+                Log.d(LOG_TAG, "onBillingServiceDisconnected");
+                synchronized (lock) {
+                    state = DISCONNECTED;
+                    connected = false;
+                }
+            }
+        });
+        StartupTrace.end(startConnection);
+    }
+
+    /**
+     * Sends the consume and acknowledge requests left from earlier, each through the processor
+     * that queued it so the outcome reaches its handler, see
+     * {@link BillingProcessor#replayQueuedRequests()}.
+     */
+    private void replayQueuedRequests() {
+        if (requestQueue.isEmpty()) {
+            return;
+        }
+        for (BillingProcessor processor : processors) {
+            processor.replayQueuedRequests();
+        }
+    }
+
+    /**
+     * Schedules a check for the idle timeout, counting from now.
+     */
+    private void armIdleCheck() {
+        long timeout = idleTimeoutMillis;
+        if (timeout <= 0) {
+            return;
+        }
+        synchronized (lock) {
+            idleSince = clock.elapsedRealtime();
+            if (idleCheck == null) {
+                scheduleIdleCheck(timeout);
+            }
+        }
+    }
+
+    // must hold lock
+    private void scheduleIdleCheck(long delayMillis) {
+        try {
+            idleCheck = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    checkIdle();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private void checkIdle() {
+        long timeout = idleTimeoutMillis;
+        synchronized (lock) {
+            idleCheck = null;
+            if (timeout <= 0 || state != CONNECTED ||
+                    (foregroundTracker != null && foregroundTracker.isInForeground())) {
+                // re-armed when the app goes to the background
+                return;
+            }
+            long remaining = idleSince + timeout - clock.elapsedRealtime();
+            if (remaining > 0) {
+                scheduleIdleCheck(remaining);
+                return;
+            }
+            // hold back new calls, then make sure none slipped in
+            suspended = true;
+        }
+        if (!callScheduler.isIdle()) {
+            synchronized (lock) {
+                suspended = false;
+            }
+            callScheduler.resume();
+            return;
+        }
+        Log.d(LOG_TAG, "Unbinding idle billing service");
+        synchronized (lock) {
+            state = DISCONNECTED;
+            connected = false;
+            clientEnded = true;
+        }
+        pendingTracker.cancel();
+        subscriptionScheduler.cancel();
+        client.endConnection();
+    }
+
+    /**
+     * Binds the service again if it was unbound by the idle timeout.
+     */
+    private void wake() {
+        synchronized (lock) {
+            if (!suspended || state != DISCONNECTED) {
+                return;
+            }
+            state = CONNECTING;
+        }
+        Log.d(LOG_TAG, "Binding billing service after idle");
+        startConnection(new StartupTrace());
+    }
+
+    private void close() {
+        synchronized (lock) {
+            state = DISCONNECTED;
+            connected = false;
+            suspended = false;
+            pendingOnConnected.clear();
+            if (idleCheck != null) {
+                idleCheck.cancel(false);
+                idleCheck = null;
+            }
+        }
+        if (foregroundTracker != null) {
+            foregroundTracker.unregister();
+        }
+        pendingTracker.cancel();
+        client.endConnection();
+        executor.shutdown();
+        timer.shutdown();
+    }
+
+    @Override
+    public void onPurchasesUpdated(@NonNull BillingResult result, @Nullable List<Purchase> purchases) {
+        BillingProcessor owner = getPipelineOwner();
+        if (owner != null) {
+            owner.onPurchasesUpdated(result, purchases);
+        }
+    }
+
+    /**
+     * Starts {@code loader} on the background executor unless another refresh is already in
+     * flight, in which case {@code callback} joins that one instead. Successful refreshes update
+     * the last sync time and notify every attached processor before the callbacks are called.
+     * Never blocks.
+     */
+    void refresh(final InventoryLoader loader, @Nullable RefreshCallback callback) {
+        synchronized (refreshLock) {
+            boolean inFlight = refreshCallbacks != null;
+            if (!inFlight) {
+                refreshCallbacks = new ArrayList<>();
+            }
+            if (callback != null) {
+                refreshCallbacks.add(callback);
+            }
+            if (inFlight) {
+                return;
+            }
+        }
+        final AtomicBoolean finished = new AtomicBoolean();
+        final RefreshCallback done = new RefreshCallback() {
+            @Override
+            public void onRefreshed(boolean loaded) {
+                if (finished.compareAndSet(false, true)) {
+                    finishRefresh(loaded);
+                }
+            }
+        };
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loader.load(done);
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, "Failed to load owned purchases", e);
+                        done.onRefreshed(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // released meanwhile
+            done.onRefreshed(false);
+        }
+    }
+
+    private void finishRefresh(boolean loaded) {
+        List<RefreshCallback> callbacks;
+        synchronized (refreshLock) {
+            callbacks = refreshCallbacks;
+            refreshCallbacks = null;
+        }
+        if (loaded) {
+            lastSyncTime = clock.currentTimeMillis();
+            saveLong(getPreferencesBaseKey() + PURCHASES_SYNC_TIME_KEY, lastSyncTime);
+            for (BillingProcessor processor : processors) {
+                processor.onInventoryRefreshed();
+            }
+        }
+        for (RefreshCallback callback : callbacks) {
+            callback.onRefreshed(loaded);
+        }
+    }
+
+    boolean isRefreshInProgress() {
+        synchronized (refreshLock) {
+            return refreshCallbacks != null;
+        }
+    }
+
+    long getLastSyncTime() {
+        return lastSyncTime;
+    }
+
+    /**
+     * @return {@code true} if the inventory was loaded since the current connection was set up,
+     * so a processor attaching now does not need to query it again
+     */
+    boolean hasSyncedSinceConnected() {
+        return connected && lastSyncTime >= connectedAt;
+    }
+
+    PurchaseHistoryLog getPurchaseHistoryLog(String purchaseType) {
+        synchronized (purchaseHistoryLogs) {
+            PurchaseHistoryLog log = purchaseHistoryLogs.get(purchaseType);
+            if (log == null) {
+                log = new PurchaseHistoryLog(new File(getContext().getFilesDir(),
+                        PURCHASE_HISTORY_LOG_FILE + purchaseType));
+                purchaseHistoryLogs.put(purchaseType, log);
+            }
+            return log;
+        }
+    }
+
+    private void migrateCachesIfNeeded() {
+        if (loadLong(getPreferencesBaseKey() + CACHE_FORMAT_KEY, 0) == CacheMigrator.FORMAT_VERSION) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                migrateCaches();
+            }
+        });
+    }
+
+    /**
+     * Rewrites caches left by older library versions in the current format and removes the
+     * preference keys they used. Until this has run the caches read the legacy keys directly.
+     */
+    private void migrateCaches() {
+        String baseKey = getPreferencesBaseKey();
+        cachedProducts.migrate();
+        cachedSubscriptions.migrate();
+        if (loadString(baseKey + PURCHASE_PAYLOAD_CACHE_KEY, null) == null) {
+            for (String legacyKey : CacheMigrator.getLegacyKeys(baseKey + PURCHASE_PAYLOAD_CACHE_KEY)) {
+                String payload = loadString(legacyKey, null);
+                if (payload != null) {
+                    saveString(baseKey + PURCHASE_PAYLOAD_CACHE_KEY, payload);
+                    break;
+                }
+            }
+        }
+
+        Set<String> liveKeys = new HashSet<>();
+        liveKeys.addAll(cachedProducts.getPreferencesKeys());
+        liveKeys.addAll(cachedSubscriptions.getPreferencesKeys());
+        liveKeys.add(baseKey + PURCHASE_PAYLOAD_CACHE_KEY);
+        liveKeys.add(baseKey + PURCHASES_SYNC_TIME_KEY);
+        // account shards are stored under BillingCache.ACCOUNT_KEY_PREFIX, outside these prefixes
+        List<String> prefixes = Arrays.asList(
+                baseKey + MANAGED_PRODUCTS_CACHE_KEY,
+                baseKey + SUBSCRIPTIONS_CACHE_KEY,
+                baseKey + PURCHASE_PAYLOAD_CACHE_KEY,
+                baseKey + PURCHASES_SYNC_TIME_KEY);
+        List<String> orphaned = CacheMigrator.findOrphanedKeys(loadKeys(), prefixes, liveKeys);
+        if (!orphaned.isEmpty()) {
+            Log.d(LOG_TAG, "Removing orphaned cache keys: " + orphaned);
+            removeKeys(orphaned);
+        }
+        saveLong(baseKey + CACHE_FORMAT_KEY, CacheMigrator.FORMAT_VERSION);
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+
+import com.android.billingclient.api.Purchase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Record of billing events for investigating disputed purchases, installed with
+ * {@link BillingProcessor#setJournal(BillingJournal)}.
+ * <p>
+ * Purchase updates, verification outcomes, consumptions, acknowledgements and billing errors
+ * are written as compact binary records to a memory-mapped ring file. Once the file is full the
+ * oldest records are overwritten. Records are written to the mapping only, so recording makes
+ * no system calls; the kernel writes the pages back, and they survive the process being killed.
+ * Purchases are identified by product and order id, purchase tokens are not recorded.
+ * <p>
+ * The file is opened and mapped by the constructor, so create the journal off the main thread.
+ * Use {@link #export(Writer)} to attach the journal to a support ticket.
+ */
+public final class BillingJournal {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String JOURNAL_FILE = "iabv3.journal";
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    private static final int MAGIC = 0x49414a31;
+    // magic, capacity, head, tail
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+    // length, type, time, code, field count
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 4 + 1;
+    private static final int MAX_FIELD_LENGTH = 256;
+    private static final int MIN_CAPACITY = 4096;
+
+    static final byte PURCHASE_UPDATE = 1;
+    static final byte VERIFICATION = 2;
+    static final byte CONSUME = 3;
+    static final byte ACKNOWLEDGE = 4;
+    static final byte ERROR = 5;
+    private static final String[] TYPE_NAMES =
+            {"UNKNOWN", "PURCHASE_UPDATE", "VERIFICATION", "CONSUME", "ACKNOWLEDGE", "ERROR"};
+
+    static final String VERIFICATION_VALID = "valid";
+    static final String VERIFICATION_INVALID = "invalid";
+    static final String VERIFICATION_UNVERIFIED = "unverified";
+
+    /**
+     * A journal record.
+     */
+    public static final class Entry {
+        private final long time;
+        private final String type;
+        private final int responseCode;
+        private final List<String> fields;
+
+        Entry(long time, String type, int responseCode, List<String> fields) {
+            this.time = time;
+            this.type = type;
+            this.responseCode = responseCode;
+            this.fields = fields;
+        }
+
+        /**
+         * @return when the event was recorded, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return {@code PURCHASE_UPDATE}, {@code VERIFICATION}, {@code CONSUME},
+         * {@code ACKNOWLEDGE} or {@code ERROR}
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return the {@link com.android.billingclient.api.BillingClient.BillingResponseCode}
+         * of the event, {@code 0} for events without one
+         */
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        /**
+         * @return the recorded values: product id, order id and state for purchase updates,
+         * product id, order id and outcome for verifications, product id and order id for
+         * consumptions and acknowledgements, and the debug message for errors
+         */
+        public List<String> getFields() {
+            return fields;
+        }
+    }
+
+    private final int capacity;
+    private volatile Clock clock = Clock.SYSTEM;
+    // guarded by this
+    private final MappedByteBuffer buffer;
+    private long head;
+    private long tail;
+
+    public BillingJournal(Context context) throws IOException {
+        this(new File(context.getFilesDir(), JOURNAL_FILE), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the journal in {@code file}, keeping its records if it was written with the same
+     * capacity and starting over otherwise.
+     *
+     * @param capacity size of the ring in bytes
+     */
+    public BillingJournal(File file, int capacity) throws IOException {
+        this.capacity = Math.max(capacity, MIN_CAPACITY);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + this.capacity);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+        synchronized (this) {
+            head = buffer.getLong(HEAD_OFFSET);
+            tail = buffer.getLong(TAIL_OFFSET);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != this.capacity ||
+                    tail < 0 || head < tail || head - tail > this.capacity) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, this.capacity);
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Drops every record.
+     */
+    public synchronized void clear() {
+        reset();
+    }
+
+    /**
+     * @return the records, oldest first
+     */
+    public synchronized List<Entry> read() {
+        List<Entry> entries = new ArrayList<>();
+        long position = tail;
+        while (position < head) {
+            int offset = offset(position);
+            int length = capacity - offset < 4 ? 0 : buffer.getInt(HEADER_SIZE + offset);
+            if (length <= 0) {
+                position += capacity - offset;
+                continue;
+            }
+            Entry entry;
+            try {
+                entry = decode(HEADER_SIZE + offset, length);
+            } catch (BufferUnderflowException | IllegalArgumentException |
+                    NegativeArraySizeException e) {
+                // damaged record, e.g. the device lost power before the page was written
+                break;
+            }
+            if (entry == null) {
+                break;
+            }
+            entries.add(entry);
+            position += length;
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the records as tab-separated text, one per line, oldest first.
+     */
+    public void export(Writer out) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (Entry entry : read()) {
+            out.write(format.format(new Date(entry.getTime())));
+            out.write('\t');
+            out.write(entry.getType());
+            out.write('\t');
+            out.write(Integer.toString(entry.getResponseCode()));
+            for (String field : entry.getFields()) {
+                out.write('\t');
+                out.write(field != null ? field.replace('\t', ' ').replace('\n', ' ') : "");
+            }
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Stamps the records appended from now on with {@code clock}, the clock of the processor
+     * the journal is set on.
+     */
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    void recordPurchaseUpdate(int responseCode, Purchase purchase) {
+        append(PURCHASE_UPDATE, responseCode, purchase.getSku(), purchase.getOrderId(),
+                Integer.toString(purchase.getPurchaseState()));
+    }
+
+    void recordVerification(Purchase purchase, String outcome) {
+        append(VERIFICATION, 0, purchase.getSku(), purchase.getOrderId(), outcome);
+    }
+
+    void recordConsume(int responseCode, Purchase purchase) {
+        append(CONSUME, responseCode, purchase.getSku(), purchase.getOrderId());
+    }
+
+    void recordAcknowledge(int responseCode, Purchase purchase) {
+        append(ACKNOWLEDGE, responseCode, purchase.getSku(), purchase.getOrderId());
+    }
+
+    void recordError(int responseCode, String debugMessage) {
+        append(ERROR, responseCode, debugMessage);
+    }
+
+    private synchronized void append(byte type, int responseCode, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = RECORD_HEADER_SIZE;
+        for (int i = 0; i < fields.length; i++) {
+            String field = fields[i] != null ? fields[i] : "";
+            if (field.length() > MAX_FIELD_LENGTH) {
+                field = field.substring(0, MAX_FIELD_LENGTH);
+            }
+            encoded[i] = field.getBytes(UTF_8);
+            length += 2 + encoded[i].length;
+        }
+
+        long start = head;
+        int offset = offset(start);
+        if (capacity - offset < length) {
+            // records never wrap, the rest of the ring is skipped
+            start += capacity - offset;
+        }
+        long end = start + length;
+        while (end - tail > capacity) {
+            // past the last record the ring holds stale bytes
+            tail = tail < head ? next(tail) : start;
+        }
+        if (start != head && capacity - offset >= 4) {
+            buffer.putInt(HEADER_SIZE + offset, 0);
+        }
+
+        buffer.position(HEADER_SIZE + offset(start));
+        buffer.putInt(length);
+        buffer.put(type);
+        buffer.putLong(clock.currentTimeMillis());
+        buffer.putInt(responseCode);
+        buffer.put((byte) encoded.length);
+        for (byte[] field : encoded) {
+            buffer.putShort((short) field.length);
+            buffer.put(field);
+        }
+        head = end;
+        buffer.putLong(TAIL_OFFSET, tail);
+        buffer.putLong(HEAD_OFFSET, head);
+    }
+
+    // must hold this
+    private long next(long position) {
+        int offset = offset(position);
+        int length = capacity - offset < 4 ? 0 : buffer.getInt(HEADER_SIZE + offset);
+        if (length <= 0) {
+            return position + capacity - offset;
+        }
+        return position + length;
+    }
+
+    // must hold this
+    private Entry decode(int start, int length) {
+        if (length < RECORD_HEADER_SIZE || start + length > HEADER_SIZE + capacity) {
+            return null;
+        }
+        buffer.position(start + 4);
+        byte type = buffer.get();
+        long time = buffer.getLong();
+        int responseCode = buffer.getInt();
+        int count = buffer.get();
+        List<String> fields = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] field = new byte[buffer.getShort()];
+            buffer.get(field);
+            fields.add(new String(field, UTF_8));
+        }
+        if (buffer.position() != start + length) {
+            return null;
+        }
+        String name = type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0];
+        return new Entry(time, name, responseCode, Collections.unmodifiableList(fields));
+    }
+
+    // must hold this
+    private void reset() {
+        head = 0;
+        tail = 0;
+        buffer.putLong(HEAD_OFFSET, head);
+        buffer.putLong(TAIL_OFFSET, tail);
+    }
+
+    private int offset(long position) {
+        return (int) (position % capacity);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle to an asynchronous {@link BillingProcessor} operation.
+ * <p>
+ * An operation ends exactly once: when Google Play responds, when it is cancelled, or when its
+ * deadline passes. Only the first of these counts. A response arriving after cancellation or
+ * after the deadline still updates the library's caches, but it is not reported to the
+ * {@link BillingProcessor.IBillingHandler}. A passed deadline is reported through
+ * {@link BillingProcessor.IBillingHandler#onBillingError} with
+ * {@link Constants#BILLING_ERROR_OPERATION_TIMEOUT}.
+ */
+public final class BillingOperation {
+    private static final int RUNNING = 0;
+    private static final int COMPLETED = 1;
+    private static final int CANCELLED = 2;
+    private static final int TIMED_OUT = 3;
+
+    private final AtomicInteger state;
+    private volatile ScheduledFuture<?> deadline;
+
+    private BillingOperation(int state) {
+        this.state = new AtomicInteger(state);
+    }
+
+    static BillingOperation start() {
+        return new BillingOperation(RUNNING);
+    }
+
+    /**
+     * @return an operation that ended without being started, e.g. because the processor is
+     * not initialized
+     */
+    static BillingOperation skipped() {
+        return new BillingOperation(COMPLETED);
+    }
+
+    /**
+     * Stops the operation from reporting its result.
+     *
+     * @return {@code false} if it had already ended
+     */
+    public boolean cancel() {
+        if (!state.compareAndSet(RUNNING, CANCELLED)) {
+            return false;
+        }
+        cancelDeadline();
+        return true;
+    }
+
+    public boolean isDone() {
+        return state.get() != RUNNING;
+    }
+
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    public boolean isTimedOut() {
+        return state.get() == TIMED_OUT;
+    }
+
+    /**
+     * Arms the deadline. {@code onTimeout} runs on {@code timer} if the operation is still
+     * running {@code timeoutMillis} from now. Non-positive timeouts mean no deadline, as does a
+     * timer that has been shut down.
+     */
+    void setDeadline(ScheduledExecutorService timer, long timeoutMillis, final Runnable onTimeout) {
+        if (timeoutMillis <= 0) {
+            return;
+        }
+        try {
+            deadline = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (state.compareAndSet(RUNNING, TIMED_OUT)) {
+                        onTimeout.run();
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        if (isDone()) {
+            cancelDeadline();
+        }
+    }
+
+    /**
+     * Marks the operation as completed by a response.
+     *
+     * @return {@code true} if the response should be reported, i.e. the operation was neither
+     * cancelled nor timed out
+     */
+    boolean complete() {
+        if (!state.compareAndSet(RUNNING, COMPLETED)) {
+            return false;
+        }
+        cancelDeadline();
+        return true;
+    }
+
+    private void cancelDeadline() {
+        ScheduledFuture<?> future = deadline;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -29,59 +30,81 @@ import androidx.annotation.Nullable;
 import com.android.billingclient.api.AcknowledgePurchaseParams;
 import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
 import com.android.billingclient.api.BillingClient;
-import com.android.billingclient.api.BillingClientStateListener;
 import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.BillingResult;
 import com.android.billingclient.api.ConsumeParams;
 import com.android.billingclient.api.ConsumeResponseListener;
 import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
 import com.android.billingclient.api.PurchasesUpdatedListener;
 import com.android.billingclient.api.SkuDetails;
 import com.android.billingclient.api.SkuDetailsParams;
 import com.android.billingclient.api.SkuDetailsResponseListener;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BillingProcessor extends BillingBase implements PurchasesUpdatedListener {
 
-    private void startServiceConnection(final Runnable executeOnSuccess) {
-        mBillingClient.startConnection(new BillingClientStateListener() {
-
-            @Override
-            public void onBillingSetupFinished(@NonNull BillingResult billingResult) {
-                Log.d(LOG_TAG, "Setup finished. Response code: " + billingResult.getResponseCode());
-                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                    mIsServiceConnected = true;
-                    if (executeOnSuccess != null) {
-                        executeOnSuccess.run();
-                    }
-                }
-            }
-
-            @Override
-            public void onBillingServiceDisconnected() {
-                Log.d("Billing", "onBillingServiceDisconnected");
-                mIsServiceConnected = false;
-            }
-        });
-    }
-
     private static final String LOG_TAG = "iabv3";
-    private boolean mIsServiceConnected;
-    private static final String SETTINGS_VERSION = ".v2_6";
-    private static final String MANAGED_PRODUCTS_CACHE_KEY = ".products.cache" + SETTINGS_VERSION;
-    private static final String SUBSCRIPTIONS_CACHE_KEY = ".subscriptions.cache" + SETTINGS_VERSION;
-    private static final String PURCHASE_PAYLOAD_CACHE_KEY = ".purchase.last" + SETTINGS_VERSION;
-    private BillingClient mBillingClient;
-    private final String signatureBase64;
+    public static final long FRAME_WINDOW_MILLIS = 16;
+    private static final int PURCHASE_HISTORY_PAGE_SIZE = 50;
+    private static final long INVENTORY_VERIFICATION_TIMEOUT_MILLIS = 15000;
+    // two queries and their verification
+    private static final long REFRESH_TIMEOUT_MILLIS =
+            2 * (BillingCallScheduler.CALL_TIMEOUT_MILLIS + INVENTORY_VERIFICATION_TIMEOUT_MILLIS);
+    private final BillingConnection mConnection;
+    private volatile boolean mReleased;
+    private final SignatureVerifier mSignatureVerifier;
     private final BillingCache cachedProducts;
     private final BillingCache cachedSubscriptions;
     private final Map<String, SkuDetails> mSkuDetailsCache;
+    private final EntitlementIndex mEntitlementIndex;
+    private final StartupTrace mStartupTrace;
+    private final ScheduledExecutorService mBackgroundExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final Clock mClock;
+    private final BillingCallScheduler mCallScheduler;
+    private final SkuDetailsLookup mSkuDetailsLookup;
+    private final SubscriptionRefreshScheduler mSubscriptionScheduler;
+    private volatile boolean mSubscriptionRefreshEnabled;
     private final IBillingHandler mEventHandler;
+    private final CallbackDispatcher mCallbackDispatcher;
+    private volatile RefreshPolicy mRefreshPolicy = RefreshPolicy.ALWAYS;
+    private volatile PurchaseVerifier mPurchaseVerifier;
+    private volatile ReceiptOutbox mReceiptOutbox;
+    private volatile ConsumableLedger mConsumableLedger;
+    private volatile BillingJournal mJournal;
+    private final PurchasePipeline mPurchasePipeline;
+    private volatile IPendingPurchaseListener mPendingPurchaseListener;
+    // tokens of pending purchases the poll found completed, reported once they are verified
+    private final Set<String> mPolledCompletions =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long mOperationTimeoutMillis;
+    private final Set<String> mConsumesInFlight =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // guarded by itself
+    private final Map<String, BillingOperation> mPurchasesInFlight = new HashMap<>();
+    private volatile List<String> mCatalogProducts = Collections.emptyList();
+    private volatile List<String> mCatalogSubscriptions = Collections.emptyList();
     private boolean isOneTimePurchasesSupported;
     private boolean isSubsUpdateSupported;
     private boolean isSubscriptionOnVRSupported;
@@ -104,52 +127,294 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
     private BillingProcessor(Context context, String licenseKey, IBillingHandler handler,
                              boolean bindImmediately) {
         super(context.getApplicationContext());
-        signatureBase64 = licenseKey;
-        mEventHandler = handler;
-        cachedProducts = new BillingCache(getContext(), MANAGED_PRODUCTS_CACHE_KEY);
-        cachedSubscriptions = new BillingCache(getContext(), SUBSCRIPTIONS_CACHE_KEY);
-        mSkuDetailsCache = new HashMap<>();
-        mBillingClient = BillingClient.newBuilder(context.getApplicationContext())
-                .setListener(this)
-                .enablePendingPurchases()
-                .build();
+        mStartupTrace = new StartupTrace();
+        StartupTrace.Span construction = mStartupTrace.begin(StartupTrace.CONSTRUCTION);
+        mSignatureVerifier = new SignatureVerifier(licenseKey);
+        mPurchaseVerifier = mSignatureVerifier;
+        mConnection = BillingConnection.acquire(getContext(), this, mStartupTrace);
+        cachedProducts = mConnection.getProductsCache();
+        cachedSubscriptions = mConnection.getSubscriptionsCache();
+        mSkuDetailsCache = mConnection.getSkuDetailsCache();
+        mBackgroundExecutor = mConnection.getExecutor();
+        mTimer = mConnection.getTimer();
+        mClock = mConnection.getClock();
+        mCallScheduler = mConnection.getCallScheduler();
+        mSkuDetailsLookup = mConnection.getSkuDetailsLookup();
+        mCallbackDispatcher = handler != null ? new CallbackDispatcher(handler, mTimer) : null;
+        mEventHandler = mCallbackDispatcher;
+        mEntitlementIndex = new EntitlementIndex(cachedProducts, cachedSubscriptions);
+        mPurchasePipeline = new PurchasePipeline(new PurchasePipeline.Stages() {
+            @Override
+            public void verify(List<Purchase> purchases, PurchaseVerifier.Callback callback) {
+                mPurchaseVerifier.verify(purchases, callback);
+            }
+
+            @Override
+            public void persist(String purchaseType, List<Purchase> valid) {
+                persistPurchases(purchaseType, valid);
+            }
+
+            @Override
+            public void dispatch(String purchaseType, List<Purchase> valid, List<Purchase> invalid,
+                                 List<Purchase> unverified) {
+                dispatchPurchases(purchaseType, valid, invalid, unverified);
+            }
+        }, mBackgroundExecutor, mConnection.getMainThreadExecutor(), mClock);
+        mSubscriptionScheduler = mConnection.getSubscriptionScheduler();
+        StartupTrace.end(construction);
         if (bindImmediately) {
             bindPlayServices();
         }
     }
 
+    /**
+     * Handles an update from the Play Billing Library. The connection delivers it only to the
+     * first attached processor, which verifies and persists it once; the handler callbacks are
+     * then fanned out to every attached processor.
+     */
     @Override
     public void onPurchasesUpdated(BillingResult result, @Nullable List<Purchase> purchases) {
+        BillingJournal journal = mJournal;
+        if (journal != null && purchases != null) {
+            for (Purchase purchase : purchases) {
+                journal.recordPurchaseUpdate(result.getResponseCode(), purchase);
+            }
+        }
         if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-            if (purchases == null) {
+            if (purchases == null || purchases.isEmpty()) {
                 return;
             }
+            String purchaseType = detectPurchaseTypeFromPurchaseResponseData();
+            List<Purchase> completed = new ArrayList<>();
             for (Purchase purchase : purchases) {
-                if (verifyPurchaseSignature(purchase.getSku(), purchase.getOriginalJson(),
-                        purchase.getSignature())) {
-                    BillingCache cache;
-                    if (TextUtils.equals(detectPurchaseTypeFromPurchaseResponseData(), BillingClient.SkuType.INAPP)) {
-                        cache = cachedProducts;
-                    } else {
-                        cache = cachedSubscriptions;
-                    }
-                    cache.put(purchase.getSku(), purchase);
-                    if (mEventHandler != null) {
-                        mEventHandler.onProductPurchased(purchase);
-                    }
+                if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+                    onPurchasePending(purchaseType, purchase);
                 } else {
-                    Log.e(LOG_TAG, "Public key signature doesn't match!");
-                    reportBillingError(BillingResult.newBuilder()
-                            .setResponseCode(BillingClient.BillingResponseCode.ERROR)
-                            .setDebugMessage("Public key signature doesn't match!")
-                            .build());
+                    completed.add(purchase);
                 }
             }
+            if (completed.isEmpty()) {
+                return;
+            }
+            mPurchasePipeline.submit(purchaseType, completed);
         } else {
-            reportBillingError(result);
+            recordBillingError(result);
+            for (BillingProcessor processor : mConnection.getProcessors()) {
+                processor.notifyBillingError(result);
+            }
+        }
+    }
+
+    private void persistPurchases(String purchaseType, List<Purchase> valid) {
+        List<Purchase> owned = new ArrayList<>();
+        for (Purchase purchase : valid) {
+            if (mConnection.isOfActiveAccount(purchase)) {
+                owned.add(purchase);
+            }
+        }
+        if (TextUtils.equals(purchaseType, BillingClient.SkuType.INAPP)) {
+            cachedProducts.putAll(owned);
+        } else {
+            cachedSubscriptions.putAll(owned);
+            updateSubscriptionSchedule(true);
+        }
+    }
+
+    private void dispatchPurchases(String purchaseType, List<Purchase> valid, List<Purchase> invalid,
+                                   List<Purchase> unverified) {
+        ReceiptOutbox outbox = mReceiptOutbox;
+        if (outbox != null) {
+            outbox.enqueue(valid);
+        }
+        BillingJournal journal = mJournal;
+        if (journal != null) {
+            for (Purchase purchase : valid) {
+                journal.recordVerification(purchase, BillingJournal.VERIFICATION_VALID);
+            }
+            for (Purchase purchase : invalid) {
+                journal.recordVerification(purchase, BillingJournal.VERIFICATION_INVALID);
+            }
+            for (Purchase purchase : unverified) {
+                journal.recordVerification(purchase, BillingJournal.VERIFICATION_UNVERIFIED);
+            }
+        }
+        PendingPurchaseTracker pendingTracker = mConnection.getPendingTracker();
+        Set<String> pendingCompleted = new HashSet<>();
+        for (Purchase purchase : valid) {
+            boolean completed = pendingTracker.complete(purchaseType, purchase);
+            completed |= mPolledCompletions.remove(purchase.getPurchaseToken());
+            if (completed) {
+                pendingCompleted.add(purchase.getPurchaseToken());
+            }
+        }
+        for (Purchase purchase : invalid) {
+            mPolledCompletions.remove(purchase.getPurchaseToken());
+            Log.e(LOG_TAG, "Public key signature doesn't match!");
+        }
+        for (Purchase purchase : unverified) {
+            mPolledCompletions.remove(purchase.getPurchaseToken());
+            Log.w(LOG_TAG, "Purchase of " + purchase.getSku() + " could not be verified");
+        }
+        BillingResult invalidResult = BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                .setDebugMessage("Public key signature doesn't match!")
+                .build();
+        BillingResult unverifiedResult = BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                .setDebugMessage("Purchase could not be verified")
+                .build();
+        for (int i = 0; i < invalid.size(); i++) {
+            recordBillingError(invalidResult);
+        }
+        for (int i = 0; i < unverified.size(); i++) {
+            recordBillingError(unverifiedResult);
+        }
+        for (BillingProcessor processor : mConnection.getProcessors()) {
+            processor.deliverPurchases(valid, pendingCompleted);
+            for (int i = 0; i < invalid.size(); i++) {
+                processor.notifyBillingError(invalidResult);
+            }
+            for (int i = 0; i < unverified.size(); i++) {
+                processor.notifyBillingError(unverifiedResult);
+            }
+        }
+    }
+
+    /**
+     * Reports purchases that were verified and persisted by the processor owning the purchase
+     * pipeline, see {@link BillingConnection#getPipelineOwner()}.
+     *
+     * @param pendingCompleted tokens of the purchases that completed a pending one
+     */
+    private void deliverPurchases(List<Purchase> valid, Set<String> pendingCompleted) {
+        IPendingPurchaseListener pendingListener = mPendingPurchaseListener;
+        for (Purchase purchase : valid) {
+            if (mEventHandler != null) {
+                mEventHandler.onProductPurchased(purchase);
+            }
+            if (pendingListener != null && pendingCompleted.contains(purchase.getPurchaseToken())) {
+                pendingListener.onPendingPurchaseCompleted(purchase);
+            }
+        }
+    }
+
+    /**
+     * Delivers {@link IBillingHandler} callbacks on {@code executor}. By default they are called
+     * directly on the thread that produced them.
+     */
+    public void setCallbackExecutor(@Nullable Executor executor) {
+        if (mCallbackDispatcher != null) {
+            mCallbackDispatcher.setExecutor(executor);
+        }
+    }
+
+    /**
+     * Delivers {@link IBillingHandler} callbacks on the thread of {@code handler}.
+     */
+    public void setCallbackHandler(@NonNull Handler handler) {
+        setCallbackExecutor(CallbackDispatcher.executorFor(handler));
+    }
+
+    /**
+     * If the handler implements {@link IBillingBatchHandler}, collects purchase, consume and
+     * acknowledge events for {@code millis} after the first one and delivers them as lists,
+     * e.g. {@link #FRAME_WINDOW_MILLIS} for one UI update per frame. {@code 0} disables batching.
+     */
+    public void setCallbackBatchWindow(long millis) {
+        if (mCallbackDispatcher != null) {
+            mCallbackDispatcher.setBatchWindow(millis);
+        }
+    }
+
+    private void onPurchasePending(String purchaseType, Purchase purchase) {
+        if (mConnection.getPendingTracker().track(purchaseType, purchase)) {
+            Log.d(LOG_TAG, "Purchase of " + purchase.getSku() + " is pending");
+        }
+        for (BillingProcessor processor : mConnection.getProcessors()) {
+            IPendingPurchaseListener listener = processor.mPendingPurchaseListener;
+            if (listener != null) {
+                listener.onPurchasePending(purchase);
+            }
+        }
+    }
+
+    /**
+     * Sends pending purchases found completed by polling through the purchase pipeline like new
+     * purchases. Called on the processor owning the pipeline only; every attached processor
+     * is told about them once they are verified.
+     */
+    void submitPolledCompletions(String purchaseType, List<Purchase> completed) {
+        if (completed.isEmpty()) {
+            return;
+        }
+        for (Purchase purchase : completed) {
+            mPolledCompletions.add(purchase.getPurchaseToken());
+        }
+        // the pipeline drops it if onPurchasesUpdated delivers the same purchase
+        mPurchasePipeline.submit(purchaseType, completed);
+    }
+
+    /**
+     * Reports pending purchases that completed or were cancelled. Completed purchases found by
+     * polling are reported once the owning processor has verified them, see
+     * {@link #submitPolledCompletions}; those found by an inventory query were already verified
+     * and cached by it.
+     */
+    void onPendingPurchasesResolved(String purchaseType, PendingPurchaseTracker.Resolution resolution,
+                                    boolean polled) {
+        IPendingPurchaseListener listener = mPendingPurchaseListener;
+        if (listener != null && !polled) {
+            for (Purchase purchase : resolution.completed) {
+                listener.onPendingPurchaseCompleted(purchase);
+            }
+        }
+        if (listener != null) {
+            for (String productId : resolution.cancelled) {
+                listener.onPendingPurchaseCancelled(productId);
+            }
         }
     }
 
+    /**
+     * Receives state changes of pending purchases, e.g. cash or carrier payments. May be called
+     * on a background thread.
+     */
+    public void setPendingPurchaseListener(@Nullable IPendingPurchaseListener listener) {
+        mPendingPurchaseListener = listener;
+    }
+
+    /**
+     * @return {@code true} if a purchase of {@code productId} is waiting for payment
+     */
+    public boolean isPurchasePending(String productId) {
+        return mConnection.getPendingTracker().isPending(productId);
+    }
+
+    public List<String> listPendingProducts() {
+        return mConnection.getPendingTracker().getPendingProducts(BillingClient.SkuType.INAPP);
+    }
+
+    public List<String> listPendingSubscriptions() {
+        return mConnection.getPendingTracker().getPendingProducts(BillingClient.SkuType.SUBS);
+    }
+
+    /**
+     * Replaces the verifier used for purchases reported by Google Play, both for new purchases
+     * and for inventory queries. Defaults to a {@link SignatureVerifier} with the license key
+     * passed to the constructor.
+     */
+    public void setPurchaseVerifier(@NonNull PurchaseVerifier verifier) {
+        mPurchaseVerifier = verifier;
+    }
+
+    /**
+     * Forwards verified purchases and purchases found by inventory refreshes to the given
+     * outbox, or stops forwarding if {@code null}.
+     */
+    public void setReceiptOutbox(@Nullable ReceiptOutbox outbox) {
+        mReceiptOutbox = outbox;
+    }
+
 
     /**
      * Binds to Play Services. When complete, caller will be notified via
@@ -166,24 +431,89 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
     }
 
     private void bindPlayServices() {
-        startServiceConnection(new Runnable() {
+        mConnection.connect(mStartupTrace, new Runnable() {
             @Override
             public void run() {
+                if (mReleased) {
+                    // released before the connection was established
+                    return;
+                }
+                // SkuDetails queries are asynchronous, so the catalog is fetched while the
+                // inventory query below is running
+                prefetchCatalog();
                 if (mEventHandler != null) {
+                    mStartupTrace.mark(StartupTrace.FIRST_HANDLER_CALLBACK);
                     mEventHandler.onBillingInitialized();
                 }
-                Log.d(LOG_TAG, "Setup successful. Querying inventory.");
-                queryPurchasesFromGoogle();
-
+                if (mConnection.hasSyncedSinceConnected()) {
+                    Log.d(LOG_TAG, "Setup successful. Inventory already loaded by another processor.");
+                    reportPurchaseHistoryRestored();
+                } else {
+                    Log.d(LOG_TAG, "Setup successful. Querying inventory.");
+                    queryPurchasesFromGoogle();
+                }
             }
         });
     }
 
+    /**
+     * Registers the products and subscriptions offered by the app. Their {@link SkuDetails} are
+     * fetched as soon as the connection to Play Services is established, together with the
+     * inventory, so that pricing and {@link #purchase(Activity, String)} are ready by the time
+     * the store screen is shown. Results are delivered through
+     * {@link IBillingHandler#onQuerySkuDetails(List)}.
+     * <p>
+     * If the processor is already initialized the catalog is fetched right away.
+     *
+     * @param productIds      managed product ids, may be {@code null}
+     * @param subscriptionIds subscription ids, may be {@code null}
+     */
+    public void setCatalog(@Nullable List<String> productIds, @Nullable List<String> subscriptionIds) {
+        mCatalogProducts = productIds != null ?
+                Collections.unmodifiableList(new ArrayList<>(productIds)) :
+                Collections.<String>emptyList();
+        mCatalogSubscriptions = subscriptionIds != null ?
+                Collections.unmodifiableList(new ArrayList<>(subscriptionIds)) :
+                Collections.<String>emptyList();
+        if (isInitialized()) {
+            prefetchCatalog();
+        }
+    }
+
+    private void prefetchCatalog() {
+        querySkuDetails(mCatalogProducts, BillingClient.SkuType.INAPP, BillingOperation.start());
+        querySkuDetails(mCatalogSubscriptions, BillingClient.SkuType.SUBS, BillingOperation.start());
+    }
+
+    /**
+     * Loads the owned purchases like {@link #loadOwnedPurchasesFromGoogle()} and reports the
+     * owned products through {@link IBillingHandler#onPurchaseHistoryRestored}. Where that call
+     * cannot wait, the products are reported once the refresh finishes.
+     */
     public void queryPurchasesFromGoogle() {
-        if (loadOwnedPurchasesFromGoogle() && mEventHandler != null) {
-            if (cachedProducts.getContents().size() > 0) {
-                mEventHandler.onPurchaseHistoryRestored(cachedProducts.getContents());
-            }
+        if (!isInitialized()) {
+            return;
+        }
+        if (!mConnection.mayWaitForRefresh()) {
+            loadOwnedPurchasesFromGoogleAsync(new IOwnedPurchasesListener() {
+                @Override
+                public void onOwnedPurchasesLoaded(boolean loaded) {
+                    if (loaded) {
+                        reportPurchaseHistoryRestored();
+                    }
+                }
+            });
+            return;
+        }
+        if (loadOwnedPurchasesFromGoogle()) {
+            reportPurchaseHistoryRestored();
+        }
+    }
+
+    private void reportPurchaseHistoryRestored() {
+        List<String> products = cachedProducts.getContents();
+        if (mEventHandler != null && products.size() > 0) {
+            mEventHandler.onPurchaseHistoryRestored(new ArrayList<>(products));
         }
     }
 
@@ -224,110 +554,696 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         return list != null && list.size() > 0;
     }
 
+    /**
+     * Detaches this processor from the shared billing connection. The connection itself is ended
+     * once every processor in the process has been released.
+     */
     public void release() {
-        if (isInitialized()) {
-            mBillingClient.endConnection();
-            mBillingClient = null;
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        if (mSubscriptionRefreshEnabled) {
+            mSubscriptionRefreshEnabled = false;
+            updateSubscriptionSchedule(false);
         }
+        BillingConnection.release(mConnection, this);
+    }
+
+    /**
+     * @return the cold start timeline of this processor, useful to find out why
+     * {@link IBillingHandler#onBillingInitialized()} arrives late
+     */
+    public StartupTrace getStartupTrace() {
+        return mStartupTrace;
     }
 
     public boolean isInitialized() {
-        return mIsServiceConnected && mBillingClient != null;
+        return !mReleased && mConnection.isAvailable();
     }
 
     public boolean isPurchased(String productId) {
+        revalidateIfStale();
         return cachedProducts.includesProduct(productId);
     }
 
     public boolean isSubscribed(String productId) {
+        revalidateIfStale();
+        mSubscriptionScheduler.checkOverdue(mClock.currentTimeMillis());
         return cachedSubscriptions.includesProduct(productId);
     }
 
+    /**
+     * @return an index for checking ownership of many products by pre-resolved int ids
+     * @see EntitlementIndex
+     */
+    public EntitlementIndex getEntitlementIndex() {
+        return mEntitlementIndex;
+    }
+
+    /**
+     * @return the owned product ids, in a new list the caller may change
+     */
     public List<String> listOwnedProducts() {
-        return cachedProducts.getContents();
+        revalidateIfStale();
+        return new ArrayList<>(cachedProducts.getContents());
     }
 
+    /**
+     * @return the owned subscription ids, in a new list the caller may change
+     */
     public List<String> listOwnedSubscriptions() {
-        return cachedSubscriptions.getContents();
+        revalidateIfStale();
+        return new ArrayList<>(cachedSubscriptions.getContents());
     }
 
-    private boolean loadPurchasesByType(String type, BillingCache cacheStorage) {
-        if (!isInitialized()) {
-            return false;
+    /**
+     * Finds a cached purchase by its token, e.g. one named in a real-time developer notification,
+     * without scanning the cache.
+     *
+     * @return the managed product or subscription purchase, or {@code null} if not cached
+     */
+    @Nullable
+    public Purchase getPurchaseByToken(String purchaseToken) {
+        revalidateIfStale();
+        String productId = cachedProducts.findProductIdByToken(purchaseToken);
+        if (productId != null) {
+            return cachedProducts.getDetails(productId);
         }
+        productId = cachedSubscriptions.findProductIdByToken(purchaseToken);
+        return productId != null ? cachedSubscriptions.getDetails(productId) : null;
+    }
 
-        Purchase.PurchasesResult purchasesResult = mBillingClient.queryPurchases(type);
-        if (purchasesResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-            cacheStorage.clear();
-            List<Purchase> purchaseList = purchasesResult.getPurchasesList();
-            if (purchaseList != null) {
-                for (Purchase purchase : purchaseList) {
-                    if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED || purchase.getPurchaseState() == Purchase.PurchaseState.UNSPECIFIED_STATE) {
-                        cacheStorage.put(purchase.getSku(), purchase);
-                    }
-                }
+    /**
+     * @return the cached managed product or subscription purchase with {@code orderId}, or
+     * {@code null} if not cached
+     */
+    @Nullable
+    public Purchase getPurchaseByOrderId(String orderId) {
+        revalidateIfStale();
+        String productId = cachedProducts.findProductIdByOrderId(orderId);
+        if (productId != null) {
+            return cachedProducts.getDetails(productId);
+        }
+        productId = cachedSubscriptions.findProductIdByOrderId(orderId);
+        return productId != null ? cachedSubscriptions.getDetails(productId) : null;
+    }
+
+    /**
+     * @return the cached managed product and subscription purchases made at or after
+     * {@code purchaseTimeMillis}, oldest first
+     */
+    public List<Purchase> listPurchasesSince(long purchaseTimeMillis) {
+        revalidateIfStale();
+        List<CompactPurchase> products = cachedProducts.getRecordsSince(purchaseTimeMillis);
+        List<CompactPurchase> subscriptions = cachedSubscriptions.getRecordsSince(purchaseTimeMillis);
+        List<Purchase> result = new ArrayList<>(products.size() + subscriptions.size());
+        int p = 0;
+        int s = 0;
+        while (p < products.size() || s < subscriptions.size()) {
+            CompactPurchase next;
+            if (s == subscriptions.size() || (p < products.size() &&
+                    products.get(p).getPurchaseTime() <= subscriptions.get(s).getPurchaseTime())) {
+                next = products.get(p++);
+            } else {
+                next = subscriptions.get(s++);
+            }
+            Purchase purchase = next.toPurchase();
+            if (purchase != null) {
+                result.add(purchase);
             }
-            return true;
         }
-        return false;
+        return result;
     }
 
     /**
-     * Attempt to fetch purchases from the server and update our cache if successful
-     *
-     * @return {@code true} if all retrievals are successful, {@code false} otherwise
+     * Queries the owned purchases of {@code type} and replaces the cached ones with those that
+     * pass verification. {@code done} is called on the background executor, or on the timer
+     * thread if the query is abandoned.
      */
-    public boolean loadOwnedPurchasesFromGoogle() {
-        return loadPurchasesByType(BillingClient.SkuType.INAPP, cachedProducts) &&
-                loadPurchasesByType(BillingClient.SkuType.SUBS, cachedSubscriptions);
+    private void loadPurchasesByType(final String type, final BillingCache cacheStorage,
+                                     final BillingConnection.RefreshCallback done) {
+        if (!isInitialized()) {
+            done.onRefreshed(false);
+            return;
+        }
+        mCallScheduler.submit(BillingCallScheduler.PRIORITY_INVENTORY,
+                new Callable<Purchase.PurchasesResult>() {
+                    @Override
+                    public Purchase.PurchasesResult call() {
+                        StartupTrace.Span query = mStartupTrace.begin(StartupTrace.FIRST_QUERY_PURCHASES);
+                        try {
+                            return mConnection.getClient().queryPurchases(type);
+                        } finally {
+                            StartupTrace.end(query);
+                        }
+                    }
+                },
+                new BillingCallScheduler.Callback<Purchase.PurchasesResult>() {
+                    @Override
+                    public void onComplete(@Nullable Purchase.PurchasesResult purchasesResult) {
+                        if (purchasesResult == null ||
+                                purchasesResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                            Log.e(LOG_TAG, "Failed to query " + type + " purchases");
+                            done.onRefreshed(false);
+                            return;
+                        }
+                        onPurchasesLoaded(type, cacheStorage, purchasesResult.getPurchasesList(), done);
+                    }
+                });
     }
 
-    public boolean purchase(Activity activity, String productId) {
-        return purchase(activity, null, productId, BillingClient.SkuType.INAPP, null);
+    /**
+     * Verifies the loaded purchases, then publishes them on the background executor.
+     */
+    private void onPurchasesLoaded(final String type, final BillingCache cacheStorage,
+                                   @Nullable final List<Purchase> purchaseList,
+                                   final BillingConnection.RefreshCallback done) {
+        List<Purchase> candidates = new ArrayList<>();
+        if (purchaseList != null) {
+            for (Purchase purchase : purchaseList) {
+                if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED || purchase.getPurchaseState() == Purchase.PurchaseState.UNSPECIFIED_STATE) {
+                    candidates.add(purchase);
+                }
+            }
+        }
+        verifyOwnedPurchases(candidates, cacheStorage, new OwnedPurchasesCallback() {
+            @Override
+            public void onVerified(final List<Purchase> verified) {
+                try {
+                    mBackgroundExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            publishOwnedPurchases(type, cacheStorage, purchaseList, verified);
+                            done.onRefreshed(true);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    done.onRefreshed(false);
+                }
+            }
+        });
     }
 
-    public boolean subscribe(Activity activity, String productId) {
-        return purchase(activity, null, productId, BillingClient.SkuType.SUBS, null);
+    private void publishOwnedPurchases(String type, BillingCache cacheStorage,
+                                       @Nullable List<Purchase> purchaseList, List<Purchase> verified) {
+        Map<String, Purchase> owned = new HashMap<>();
+        for (Purchase purchase : verified) {
+            if (mConnection.isOfActiveAccount(purchase)) {
+                owned.put(purchase.getSku(), purchase);
+            }
+        }
+        cacheStorage.replaceAll(owned);
+        ReceiptOutbox outbox = mReceiptOutbox;
+        if (outbox != null) {
+            outbox.enqueue(verified);
+        }
+        if (purchaseList != null && TextUtils.equals(type, BillingClient.SkuType.INAPP)) {
+            settlePendingGrants(purchaseList, verified);
+        }
+        if (purchaseList != null) {
+            PendingPurchaseTracker.Resolution resolution =
+                    mConnection.getPendingTracker().reconcile(type, purchaseList);
+            if (!resolution.isEmpty()) {
+                onPendingPurchasesResolved(type, resolution, false);
+            }
+        }
     }
 
-    public boolean purchase(Activity activity, String productId, String developerPayload) {
-        return purchase(activity, productId, BillingClient.SkuType.INAPP, developerPayload);
+    private interface OwnedPurchasesCallback {
+        void onVerified(List<Purchase> verified);
     }
 
-    public boolean subscribe(Activity activity, String productId, String developerPayload) {
-        return purchase(activity, productId, BillingClient.SkuType.SUBS, developerPayload);
+    /**
+     * Runs the {@link PurchaseVerifier} over purchases returned by an inventory query, giving it
+     * at most {@link #INVENTORY_VERIFICATION_TIMEOUT_MILLIS}. Purchases that could not be
+     * verified keep their cached state: they stay owned only if the same purchase token is
+     * already cached. {@code callback} is called once, on the verifier's thread or on the timer.
+     */
+    private void verifyOwnedPurchases(final List<Purchase> purchases, final BillingCache cacheStorage,
+                                      final OwnedPurchasesCallback callback) {
+        if (purchases.isEmpty()) {
+            callback.onVerified(purchases);
+            return;
+        }
+        final AtomicBoolean answered = new AtomicBoolean();
+        ScheduledFuture<?> scheduled = null;
+        try {
+            scheduled = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (answered.compareAndSet(false, true)) {
+                        Log.w(LOG_TAG, "Timed out verifying owned purchases");
+                        callback.onVerified(keepCached(purchases, cacheStorage));
+                    }
+                }
+            }, INVENTORY_VERIFICATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // released, the verifier still answers
+        }
+        final ScheduledFuture<?> timeout = scheduled;
+        mPurchaseVerifier.verify(purchases, new PurchaseVerifier.Callback() {
+            @Override
+            public void onVerified(List<Purchase> valid, List<Purchase> invalid,
+                                   List<Purchase> notVerified) {
+                if (!answered.compareAndSet(false, true)) {
+                    return;
+                }
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                if (!invalid.isEmpty()) {
+                    Log.e(LOG_TAG, "Dropping " + invalid.size() + " owned purchases that failed verification");
+                }
+                List<Purchase> result = new ArrayList<>(valid);
+                result.addAll(keepCached(notVerified, cacheStorage));
+                callback.onVerified(result);
+            }
+        });
     }
 
-    /***
-     * Purchase a product
-     *
-     * @param activity the activity calling this method
-     * @param productId the product id to purchase
-     * @see <a href="https://developer.android.com/google/play/billing/billing_reference.html#getBuyIntentExtraParams">extra
-     * params documentation on developer.android.com</a>
-     * @return {@code false} if the billing system is not initialized, {@code productId} is empty
-     * or if an exception occurs. Will return {@code true} otherwise.
+    /**
+     * @return the purchases among {@code unverified} whose purchase token is already cached
      */
-    public boolean purchaseOnVR(Activity activity, String productId, String developerPayload) {
-        if (!isOneTimePurchaseWithVRSupported()) {
-            return purchase(activity, productId, developerPayload);
-        } else {
-            return purchase(activity, null, productId, BillingClient.SkuType.INAPP, developerPayload, true);
+    private static List<Purchase> keepCached(List<Purchase> unverified, BillingCache cacheStorage) {
+        List<Purchase> kept = new ArrayList<>();
+        for (Purchase purchase : unverified) {
+            CompactPurchase cached = cacheStorage.getRecord(purchase.getSku());
+            if (cached != null && cached.hasPurchaseToken(purchase.getPurchaseToken())) {
+                kept.add(purchase);
+            }
         }
+        return kept;
     }
 
     /**
-     * Subscribe to a product
+     * Attempt to fetch purchases from the server and update our cache if successful.
+     * <p>
+     * Honors the {@link RefreshPolicy}: within the minimum refresh interval after a successful
+     * sync the cache is considered up to date and no query is made. Concurrent calls share a
+     * single query.
+     * <p>
+     * Waits for the query to finish. Two callers cannot wait, as the query needs their thread:
+     * callbacks made on the library's background thread, such as
+     * {@link IPendingPurchaseListener}, and the main thread while the service is unbound after
+     * {@link #setIdleDisconnectTimeout idling}. There the query is started and {@code false} returned;
+     * use {@link #loadOwnedPurchasesFromGoogleAsync(IOwnedPurchasesListener)} instead.
      *
-     * @param activity  the activity calling this method
-     * @param productId the product id to purchase
-     * @return {@code false} if the billing system is not initialized, {@code productId} is empty or if an exception occurs.
-     * Will return {@code true} otherwise.
-     * @see <a href="https://developer.android.com/google/play/billing/billing_reference.html#getBuyIntentExtraParams">extra
-     * params documentation on developer.android.com</a>
+     * @return {@code true} if all retrievals are successful or the cache is fresh, {@code false}
+     * otherwise
      */
-    public boolean subscribe(Activity activity, String productId, String developerPayload,
-                             boolean isVR) {
+    public boolean loadOwnedPurchasesFromGoogle() {
+        if (!isInitialized()) {
+            return false;
+        }
+        if (mRefreshPolicy.isFresh(mConnection.getLastSyncTime(), mClock.currentTimeMillis())) {
+            return true;
+        }
+        if (!mConnection.mayWaitForRefresh()) {
+            refreshOwnedPurchases(null);
+            return false;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean loaded = new AtomicBoolean();
+        refreshOwnedPurchases(new BillingConnection.RefreshCallback() {
+            @Override
+            public void onRefreshed(boolean success) {
+                loaded.set(success);
+                latch.countDown();
+            }
+        });
+        try {
+            if (!latch.await(REFRESH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(LOG_TAG, "Timed out waiting for owned purchases");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return loaded.get();
+    }
+
+    /**
+     * Loads the owned purchases like {@link #loadOwnedPurchasesFromGoogle()} without waiting,
+     * and reports the outcome to {@code listener} on the main thread.
+     */
+    public void loadOwnedPurchasesFromGoogleAsync(@Nullable final IOwnedPurchasesListener listener) {
+        if (!isInitialized() ||
+                mRefreshPolicy.isFresh(mConnection.getLastSyncTime(), mClock.currentTimeMillis())) {
+            reportOwnedPurchasesLoaded(listener, isInitialized());
+            return;
+        }
+        refreshOwnedPurchases(new BillingConnection.RefreshCallback() {
+            @Override
+            public void onRefreshed(boolean loaded) {
+                reportOwnedPurchasesLoaded(listener, loaded);
+            }
+        });
+    }
+
+    private void reportOwnedPurchasesLoaded(@Nullable final IOwnedPurchasesListener listener,
+                                            final boolean loaded) {
+        if (listener == null) {
+            return;
+        }
+        mConnection.getMainThreadExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onOwnedPurchasesLoaded(loaded);
+            }
+        });
+    }
+
+    /**
+     * Refreshes both purchase types in the background, sharing a refresh already in flight.
+     */
+    private void refreshOwnedPurchases(@Nullable BillingConnection.RefreshCallback callback) {
+        mConnection.refresh(new BillingConnection.InventoryLoader() {
+            @Override
+            public void load(final BillingConnection.RefreshCallback done) {
+                loadPurchasesByType(BillingClient.SkuType.INAPP, cachedProducts,
+                        new BillingConnection.RefreshCallback() {
+                            @Override
+                            public void onRefreshed(boolean loaded) {
+                                if (!loaded) {
+                                    done.onRefreshed(false);
+                                    return;
+                                }
+                                loadPurchasesByType(BillingClient.SkuType.SUBS, cachedSubscriptions, done);
+                            }
+                        });
+            }
+        }, callback);
+    }
+
+    /**
+     * Called by the shared connection after any attached processor refreshed the inventory.
+     */
+    void onInventoryRefreshed() {
+        updateSubscriptionSchedule(true);
+    }
+
+    private void revalidateIfStale() {
+        RefreshPolicy policy = mRefreshPolicy;
+        if (policy.getMaxStaleMillis() == Long.MAX_VALUE || !isInitialized() ||
+                !policy.isStale(mConnection.getLastSyncTime(), mClock.currentTimeMillis()) ||
+                mConnection.isRefreshInProgress()) {
+            return;
+        }
+        refreshOwnedPurchases(null);
+    }
+
+    /**
+     * Enables refreshing subscriptions around their expected renewal times. Each owned
+     * subscription is tracked by its purchaseTime and the billing period from its
+     * {@link SkuDetails}, which are fetched if missing. A single timer per process then triggers
+     * an inventory refresh shortly after the next renewal boundary and at the end of the grace
+     * period, so {@link #isSubscribed(String)} stays accurate without polling. The timer runs
+     * while any attached processor has this enabled.
+     */
+    public void setSubscriptionRefreshEnabled(boolean enabled) {
+        mSubscriptionRefreshEnabled = enabled;
+        updateSubscriptionSchedule(true);
+    }
+
+    /**
+     * Sets how long after a missed renewal a subscription may stay in its grace period before it
+     * is checked again, for every processor in the process. Defaults to 3 days.
+     */
+    public void setSubscriptionGracePeriod(long gracePeriodMillis) {
+        mSubscriptionScheduler.setGracePeriodMillis(gracePeriodMillis);
+    }
+
+    /**
+     * @return the wall clock time of the next scheduled subscription refresh, or
+     * {@link Long#MAX_VALUE} if none is scheduled
+     */
+    public long getNextSubscriptionRefreshTime() {
+        return mSubscriptionScheduler.getNextDeadline();
+    }
+
+    boolean isSubscriptionRefreshEnabled() {
+        return mSubscriptionRefreshEnabled;
+    }
+
+    /**
+     * Called by the shared connection when a renewal boundary passes. Goes through the shared
+     * refresh, so it joins a refresh already in flight instead of querying again.
+     */
+    void refreshSubscriptions() {
+        refreshOwnedPurchases(new BillingConnection.RefreshCallback() {
+            @Override
+            public void onRefreshed(boolean loaded) {
+                if (loaded) {
+                    Log.d(LOG_TAG, "Refreshed subscriptions at renewal boundary");
+                }
+                updateSubscriptionSchedule(true);
+            }
+        });
+    }
+
+    private void updateSubscriptionSchedule(boolean fetchMissingPeriods) {
+        if (!mConnection.isSubscriptionRefreshEnabled()) {
+            mSubscriptionScheduler.cancel();
+            return;
+        }
+        Map<String, SubscriptionRefreshScheduler.Entry> entries = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (Map.Entry<String, CompactPurchase> owned : cachedSubscriptions.snapshot().records.entrySet()) {
+            SkuDetails details = mSkuDetailsCache.get(owned.getKey());
+            if (details != null && !TextUtils.isEmpty(details.getSubscriptionPeriod())) {
+                entries.put(owned.getKey(), new SubscriptionRefreshScheduler.Entry(
+                        owned.getValue().getPurchaseTime(), details.getSubscriptionPeriod()));
+            } else {
+                missing.add(owned.getKey());
+            }
+        }
+        mSubscriptionScheduler.track(entries);
+        if (fetchMissingPeriods && mSubscriptionRefreshEnabled && !missing.isEmpty()) {
+            querySkuDetails(missing, BillingClient.SkuType.SUBS, null);
+        }
+    }
+
+    /**
+     * Sets the policy used to rate limit inventory queries and to revalidate stale cached
+     * ownership in the background.
+     */
+    public void setRefreshPolicy(@NonNull RefreshPolicy policy) {
+        mRefreshPolicy = policy;
+    }
+
+    public RefreshPolicy getRefreshPolicy() {
+        return mRefreshPolicy;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch of the last successful query of owned
+     * purchases, or {@code 0} if purchases were never loaded from Google Play
+     */
+    public long getLastPurchasesSyncTime() {
+        return mConnection.getLastSyncTime();
+    }
+
+    /**
+     * @return {@code true} if the cached purchases are older than the max-stale age of the
+     * current {@link RefreshPolicy}
+     */
+    public boolean isPurchasesCacheStale() {
+        return mRefreshPolicy.isStale(mConnection.getLastSyncTime(), mClock.currentTimeMillis());
+    }
+
+    /**
+     * @return {@code true} while a query of owned purchases is running
+     */
+    public boolean isPurchasesRefreshInProgress() {
+        return mConnection.isRefreshInProgress();
+    }
+
+    /**
+     * Fetches the purchase history of the given type from Google Play, including consumed and
+     * expired purchases. Records newer than the last one already in the local history log are
+     * appended to it and streamed to {@code listener} page by page, oldest first, on a
+     * background thread.
+     *
+     * @param purchaseType {@link BillingClient.SkuType#INAPP} or {@link BillingClient.SkuType#SUBS}
+     * @param listener     receives the new records
+     */
+    public void queryPurchaseHistory(final String purchaseType,
+                                     final IPurchaseHistoryListener listener) {
+        if (!isInitialized()) {
+            listener.onPurchaseHistoryError(purchaseType, BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED)
+                    .setDebugMessage("BillingProcessor is not initialized")
+                    .build());
+            return;
+        }
+        final AtomicBoolean answered = new AtomicBoolean();
+        mCallScheduler.execute(BillingCallScheduler.PRIORITY_INVENTORY, new BillingCallScheduler.Call() {
+            @Override
+            public void start(final BillingCallScheduler.Slot slot) {
+                mConnection.getClient().queryPurchaseHistoryAsync(purchaseType, new PurchaseHistoryResponseListener() {
+                    @Override
+                    public void onPurchaseHistoryResponse(@NonNull final BillingResult result,
+                                                          @Nullable final List<PurchaseHistoryRecord> records) {
+                        slot.release();
+                        if (!answered.compareAndSet(false, true)) {
+                            // already reported as abandoned, the next query picks the records up
+                            return;
+                        }
+                        if (result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                            Log.e(LOG_TAG, String.format("Failed to query %s purchase history: %d",
+                                    purchaseType, result.getResponseCode()));
+                            listener.onPurchaseHistoryError(purchaseType, result);
+                            return;
+                        }
+                        mBackgroundExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                storePurchaseHistory(purchaseType, records, listener);
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            public void onAbandoned() {
+                if (answered.compareAndSet(false, true)) {
+                    listener.onPurchaseHistoryError(purchaseType, BillingCallScheduler.abandonedResult());
+                }
+            }
+        });
+    }
+
+    /**
+     * Streams records from the local purchase history log on a background thread, without
+     * contacting Google Play.
+     *
+     * @param purchaseType {@link BillingClient.SkuType#INAPP} or {@link BillingClient.SkuType#SUBS}
+     * @param after        only records with a purchaseTime greater than this are returned
+     * @param listener     receives the records page by page, oldest first
+     */
+    public void readPurchaseHistory(final String purchaseType, final long after,
+                                    final IPurchaseHistoryListener listener) {
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    streamPurchaseHistory(getPurchaseHistoryLog(purchaseType), after, purchaseType, listener);
+                    listener.onPurchaseHistoryComplete(purchaseType);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to read purchase history", e);
+                    listener.onPurchaseHistoryError(purchaseType, BillingResult.newBuilder()
+                            .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                            .setDebugMessage(e.getMessage())
+                            .build());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the purchaseTime of the newest record in the local purchase history log, or
+     * {@code 0} if no history was recorded yet. Performs disk I/O on first use.
+     */
+    public long getLastPurchaseHistoryTime(String purchaseType) {
+        return getPurchaseHistoryLog(purchaseType).getLastPurchaseTime();
+    }
+
+    private void storePurchaseHistory(String purchaseType, @Nullable List<PurchaseHistoryRecord> records,
+                                      IPurchaseHistoryListener listener) {
+        PurchaseHistoryLog log = getPurchaseHistoryLog(purchaseType);
+        try {
+            long last = log.getLastPurchaseTime();
+            List<PurchaseHistoryRecord> newer = new ArrayList<>();
+            if (records != null) {
+                for (PurchaseHistoryRecord record : records) {
+                    if (record.getPurchaseTime() > last) {
+                        newer.add(record);
+                    }
+                }
+            }
+            Collections.sort(newer, new Comparator<PurchaseHistoryRecord>() {
+                @Override
+                public int compare(PurchaseHistoryRecord lhs, PurchaseHistoryRecord rhs) {
+                    return lhs.getPurchaseTime() < rhs.getPurchaseTime() ? -1 :
+                            (lhs.getPurchaseTime() == rhs.getPurchaseTime() ? 0 : 1);
+                }
+            });
+            log.append(newer);
+            Log.d(LOG_TAG, String.format("Recorded %d new %s purchase history records", newer.size(), purchaseType));
+            streamPurchaseHistory(log, last, purchaseType, listener);
+            listener.onPurchaseHistoryComplete(purchaseType);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to store purchase history", e);
+            listener.onPurchaseHistoryError(purchaseType, BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                    .setDebugMessage(e.getMessage())
+                    .build());
+        }
+    }
+
+    private static void streamPurchaseHistory(PurchaseHistoryLog log, long after, final String purchaseType,
+                                              final IPurchaseHistoryListener listener) throws IOException {
+        log.read(after, PURCHASE_HISTORY_PAGE_SIZE, new PurchaseHistoryLog.PageCallback() {
+            @Override
+            public void onPage(List<PurchaseHistoryRecord> page) {
+                listener.onPurchaseHistoryPage(purchaseType, page);
+            }
+        });
+    }
+
+    private PurchaseHistoryLog getPurchaseHistoryLog(String purchaseType) {
+        return mConnection.getPurchaseHistoryLog(purchaseType);
+    }
+
+    public boolean purchase(Activity activity, String productId) {
+        return purchase(activity, null, productId, BillingClient.SkuType.INAPP, null);
+    }
+
+    public boolean subscribe(Activity activity, String productId) {
+        return purchase(activity, null, productId, BillingClient.SkuType.SUBS, null);
+    }
+
+    public boolean purchase(Activity activity, String productId, String developerPayload) {
+        return purchase(activity, productId, BillingClient.SkuType.INAPP, developerPayload);
+    }
+
+    public boolean subscribe(Activity activity, String productId, String developerPayload) {
+        return purchase(activity, productId, BillingClient.SkuType.SUBS, developerPayload);
+    }
+
+    /***
+     * Purchase a product
+     *
+     * @param activity the activity calling this method
+     * @param productId the product id to purchase
+     * @see <a href="https://developer.android.com/google/play/billing/billing_reference.html#getBuyIntentExtraParams">extra
+     * params documentation on developer.android.com</a>
+     * @return {@code false} if the billing system is not initialized, {@code productId} is empty
+     * or if an exception occurs. Will return {@code true} otherwise.
+     */
+    public boolean purchaseOnVR(Activity activity, String productId, String developerPayload) {
+        if (!isOneTimePurchaseWithVRSupported()) {
+            return purchase(activity, productId, developerPayload);
+        } else {
+            return purchase(activity, null, productId, BillingClient.SkuType.INAPP, developerPayload, true);
+        }
+    }
+
+    /**
+     * Subscribe to a product
+     *
+     * @param activity  the activity calling this method
+     * @param productId the product id to purchase
+     * @return {@code false} if the billing system is not initialized, {@code productId} is empty or if an exception occurs.
+     * Will return {@code true} otherwise.
+     * @see <a href="https://developer.android.com/google/play/billing/billing_reference.html#getBuyIntentExtraParams">extra
+     * params documentation on developer.android.com</a>
+     */
+    public boolean subscribe(Activity activity, String productId, String developerPayload,
+                             boolean isVR) {
         return purchase(activity,
                 null,
                 productId,
@@ -344,7 +1260,7 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         if (isOneTimePurchasesSupported) {
             return true;
         }
-        isOneTimePurchasesSupported = mBillingClient.isReady();
+        isOneTimePurchasesSupported = mConnection.isClientReady();
         return isOneTimePurchasesSupported;
     }
 
@@ -355,9 +1271,7 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         }
 
 
-        int response = mBillingClient.isFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS_UPDATE).getResponseCode();
-
-        isSubsUpdateSupported = response == BillingClient.BillingResponseCode.OK;
+        isSubsUpdateSupported = mConnection.isFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS_UPDATE);
 
         return isSubsUpdateSupported;
     }
@@ -374,9 +1288,7 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         }
 
 
-        int response =
-                mBillingClient.isFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS_ON_VR).getResponseCode();
-        isSubscriptionOnVRSupported = response == BillingClient.BillingResponseCode.OK;
+        isSubscriptionOnVRSupported = mConnection.isFeatureSupported(BillingClient.FeatureType.SUBSCRIPTIONS_ON_VR);
         return isSubscriptionOnVRSupported;
     }
 
@@ -392,9 +1304,7 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         }
 
 
-        int response =
-                mBillingClient.isFeatureSupported(BillingClient.FeatureType.IN_APP_ITEMS_ON_VR).getResponseCode();
-        isOneTimePurchaseOnVRSupported = response == BillingClient.BillingResponseCode.OK;
+        isOneTimePurchaseOnVRSupported = mConnection.isFeatureSupported(BillingClient.FeatureType.IN_APP_ITEMS_ON_VR);
         return isOneTimePurchaseOnVRSupported;
     }
 
@@ -413,53 +1323,361 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
     }
 
     /**
-     * @param activity         the activity calling this method
-     * @param productId        the new subscription id
-     * @param developerPayload the developer payload
-     * @return {@code false} if {@code oldProductIds} is not {@code null} AND change subscription
-     * is not supported.
+     * @param activity         the activity calling this method
+     * @param productId        the new subscription id
+     * @param developerPayload the developer payload
+     * @return {@code false} if {@code oldProductIds} is not {@code null} AND change subscription
+     * is not supported.
+     */
+    public boolean updateSubscription(Activity activity, String oldProductId,
+                                      String productId, String developerPayload) {
+        if (!TextUtils.isEmpty(oldProductId) && !isSubscriptionUpdateSupported()) {
+            return false;
+        }
+        return purchase(activity, oldProductId, productId, BillingClient.SkuType.SUBS,
+                developerPayload, false);
+    }
+
+    public BillingOperation consumePurchase(String productId) {
+        return consumePurchase(productId, mOperationTimeoutMillis);
+    }
+
+    /**
+     * Consumes the cached purchase of {@code productId}. The request is saved before it is sent,
+     * and if the service is not connected, or the process dies before Google Play answers, it is
+     * sent again after the next connection.
+     *
+     * @param timeoutMillis deadline for Google Play to respond, or {@code 0} for none. Does not
+     *                      apply to requests waiting for a connection.
+     */
+    public BillingOperation consumePurchase(final String productId, long timeoutMillis) {
+        if (mReleased) {
+            return BillingOperation.skipped();
+        }
+
+        final Purchase transaction = getPurchaseTransactionDetails(productId);
+        if (transaction == null || TextUtils.isEmpty(transaction.getPurchaseToken())) {
+            return BillingOperation.skipped();
+        }
+        if (!isInitialized()) {
+            return queueRequest(BillingRequestQueue.CONSUME, BillingClient.SkuType.INAPP, transaction);
+        }
+        final BillingOperation operation = startOperation("consumePurchase", timeoutMillis);
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                startConsume(productId, transaction, operation);
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * Runs on the background executor, as the ledger grant and the request are synced to disk.
+     */
+    private void startConsume(String productId, Purchase transaction, BillingOperation operation) {
+        ConsumableLedger ledger = mConsumableLedger;
+        if (ledger != null && ledger.getUnits(productId) > 0) {
+            consumeWithGrant(ledger, productId, transaction, operation);
+        } else {
+            consume(productId, transaction, null, operation);
+        }
+    }
+
+    /**
+     * Saves a consume or acknowledge request to send after the next connection.
+     */
+    private BillingOperation queueRequest(final char kind, final String purchaseType,
+                                          final Purchase transaction) {
+        Log.d(LOG_TAG, "Not connected, queueing request for " + transaction.getSku());
+        final BillingOperation operation = BillingOperation.start();
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mConnection.getRequestQueue().enqueue(kind, purchaseType, transaction, operation,
+                        BillingProcessor.this);
+                if (mConnection.isConnected()) {
+                    // connected while queueing, after the replay
+                    replayQueuedRequests();
+                }
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * Sends the consume and acknowledge requests this processor queued while offline, so their
+     * outcome reaches its handler. The processor owning the purchase pipeline also sends those
+     * left unanswered by a previous process or queued by a processor released since.
+     */
+    void replayQueuedRequests() {
+        final BillingRequestQueue queue = mConnection.getRequestQueue();
+        boolean owner = mConnection.getPipelineOwner() == this;
+        final List<BillingRequestQueue.Request> requests = new ArrayList<>();
+        for (BillingRequestQueue.Request request : queue.getUnclaimed()) {
+            BillingProcessor origin = queue.getOrigin(request.purchase.getPurchaseToken());
+            if (origin == this || (owner && (origin == null || !mConnection.getProcessors().contains(origin)))) {
+                requests.add(request);
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+        Log.d(LOG_TAG, "Replaying " + requests.size() + " queued billing requests");
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (BillingRequestQueue.Request request : requests) {
+                    Purchase purchase = request.purchase;
+                    BillingOperation operation = queue.takeOperation(purchase.getPurchaseToken());
+                    if (request.kind == BillingRequestQueue.CONSUME) {
+                        startConsume(purchase.getSku(), purchase, operation);
+                    } else {
+                        sendAcknowledge(purchase.getSku(), request.purchaseType, purchase, operation);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Keeps a request whose call failed for a reason that may go away for the next replay, up to
+     * {@link BillingRequestQueue#MAX_ATTEMPTS} times, and drops it otherwise. Called on the main
+     * thread, so updating the queue, which rewrites its file, happens on the background
+     * executor; the token stays claimed until then.
+     */
+    private void settleQueuedRequest(final char kind, final String purchaseToken, final int responseCode) {
+        final BillingRequestQueue queue = mConnection.getRequestQueue();
+        try {
+            mBackgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (BillingRequestQueue.isRetryable(responseCode)) {
+                        queue.retry(purchaseToken, kind, responseCode);
+                    } else {
+                        queue.remove(purchaseToken, kind);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed, the next process replays the request and gets an answer again
+            queue.release(purchaseToken);
+        }
+    }
+
+    /**
+     * Writes the ledger grant for {@code transaction} before consuming it. Runs on the background
+     * executor, as the grant is synced to disk.
+     */
+    private void consumeWithGrant(ConsumableLedger ledger, String productId, Purchase transaction,
+                                  BillingOperation operation) {
+        String purchaseToken = transaction.getPurchaseToken();
+        if (!mConsumesInFlight.add(purchaseToken)) {
+            operation.complete();
+            return;
+        }
+        if (!ledger.isCredited(purchaseToken) && !ledger.beginGrant(purchaseToken, productId)) {
+            mConsumesInFlight.remove(purchaseToken);
+            if (operation.complete()) {
+                reportBillingError(BillingResult.newBuilder()
+                        .setResponseCode(BillingClient.BillingResponseCode.ERROR)
+                        .setDebugMessage("Failed to record consumable grant")
+                        .build());
+            }
+            return;
+        }
+        consume(productId, transaction, ledger, operation);
+    }
+
+    /**
+     * Consumes {@code transaction}. Caches and the ledger are updated whenever Google Play
+     * responds; the handler is only notified if {@code operation} did not end before that.
+     */
+    private void consume(final String productId, final Purchase transaction,
+                         @Nullable final ConsumableLedger ledger, final BillingOperation operation) {
+        final String token = transaction.getPurchaseToken();
+        if (!mConnection.getRequestQueue().add(BillingRequestQueue.CONSUME, BillingClient.SkuType.INAPP,
+                transaction)) {
+            // another call for this token is in flight, the grant is settled after the next refresh
+            mConsumesInFlight.remove(token);
+            operation.complete();
+            return;
+        }
+        final ConsumeParams params = ConsumeParams.newBuilder()
+                .setPurchaseToken(token)
+                .build();
+        mCallScheduler.execute(BillingCallScheduler.PRIORITY_CONSUME, new BillingCallScheduler.Call() {
+            @Override
+            public void start(final BillingCallScheduler.Slot slot) {
+                mConnection.getClient().consumeAsync(params, new ConsumeResponseListener() {
+                    @Override
+                    public void onConsumeResponse(BillingResult result, String purchaseToken) {
+                        slot.release();
+                        mConsumesInFlight.remove(token);
+                        settleQueuedRequest(BillingRequestQueue.CONSUME, token, result.getResponseCode());
+                        BillingJournal journal = mJournal;
+                        if (journal != null) {
+                            journal.recordConsume(result.getResponseCode(), transaction);
+                        }
+                        boolean report = operation.complete();
+                        if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                            if (ledger != null) {
+                                ledger.commitGrant(token);
+                            }
+                            cachedProducts.remove(productId);
+                            savePurchasePayload(null);
+                            Log.d(LOG_TAG, "Successfully consumed " + productId + " purchase.");
+                            if (report && mEventHandler != null) {
+                                mEventHandler.onConsumeSuccess(transaction);
+                            }
+                        } else {
+                            if (result.getResponseCode() == BillingClient.BillingResponseCode.ITEM_NOT_OWNED) {
+                                // consumed earlier, e.g. right before the process died, or refunded;
+                                // the purchase history tells which
+                                if (ledger != null) {
+                                    settleGrantsFromHistory(ledger, Collections.singletonMap(token, productId));
+                                }
+                                cachedProducts.remove(productId);
+                                savePurchasePayload(null);
+                            } else if (ledger != null) {
+                                ledger.abortGrant(token);
+                            }
+                            if (report) {
+                                reportBillingError(result);
+                            }
+                            Log.e(LOG_TAG, String.format("Failed to consume %s: %d", productId, result.getResponseCode()));
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onAbandoned() {
+                // stays queued for the next connection, a ledger grant is settled by the next refresh
+                mConsumesInFlight.remove(token);
+                mConnection.getRequestQueue().release(token);
+                if (operation.complete()) {
+                    reportBillingError(BillingCallScheduler.abandonedResult());
+                }
+            }
+        });
+    }
+
+    /**
+     * Settles ledger grants left unsettled by an unanswered or failed consume: verified purchases
+     * still owned are consumed again, and grants for purchases no longer owned are settled
+     * against the purchase history. Grants for purchases owned but not verified, e.g. because the
+     * verifier timed out, wait for the next refresh.
+     */
+    private void settlePendingGrants(List<Purchase> owned, List<Purchase> verified) {
+        ConsumableLedger ledger = mConsumableLedger;
+        if (ledger == null) {
+            return;
+        }
+        Set<String> ownedTokens = new HashSet<>();
+        for (Purchase purchase : owned) {
+            ownedTokens.add(purchase.getPurchaseToken());
+        }
+        Map<String, Purchase> verifiedByToken = new HashMap<>();
+        for (Purchase purchase : verified) {
+            verifiedByToken.put(purchase.getPurchaseToken(), purchase);
+        }
+        Map<String, String> notOwned = new HashMap<>();
+        for (Map.Entry<String, String> grant : ledger.getPendingGrants().entrySet()) {
+            if (mConsumesInFlight.contains(grant.getKey())) {
+                continue;
+            }
+            Purchase purchase = verifiedByToken.get(grant.getKey());
+            if (purchase != null) {
+                consumeWithGrant(ledger, grant.getValue(), purchase, BillingOperation.start());
+            } else if (!ownedTokens.contains(grant.getKey())) {
+                notOwned.put(grant.getKey(), grant.getValue());
+            }
+        }
+        if (!notOwned.isEmpty()) {
+            settleGrantsFromHistory(ledger, notOwned);
+        }
+    }
+
+    /**
+     * Applies the grants whose purchase, or a later purchase of the same product, is the latest
+     * in the purchase history; Google Play only sells a consumable again once it was consumed.
+     * Grants of products missing from the history are dropped, as their purchase was refunded or
+     * revoked. If the history cannot be queried, the grants wait for the next refresh.
+     *
+     * @param grants purchase tokens mapped to product ids
      */
-    public boolean updateSubscription(Activity activity, String oldProductId,
-                                      String productId, String developerPayload) {
-        if (!TextUtils.isEmpty(oldProductId) && !isSubscriptionUpdateSupported()) {
-            return false;
-        }
-        return purchase(activity, oldProductId, productId, BillingClient.SkuType.SUBS,
-                developerPayload, false);
+    private void settleGrantsFromHistory(final ConsumableLedger ledger, final Map<String, String> grants) {
+        mCallScheduler.execute(BillingCallScheduler.PRIORITY_INVENTORY, new BillingCallScheduler.Call() {
+            @Override
+            public void start(final BillingCallScheduler.Slot slot) {
+                mConnection.getClient().queryPurchaseHistoryAsync(BillingClient.SkuType.INAPP,
+                        new PurchaseHistoryResponseListener() {
+                            @Override
+                            public void onPurchaseHistoryResponse(@NonNull BillingResult result,
+                                                                  @Nullable final List<PurchaseHistoryRecord> records) {
+                                slot.release();
+                                if (result.getResponseCode() != BillingClient.BillingResponseCode.OK || records == null) {
+                                    Log.w(LOG_TAG, "Failed to query purchase history, ledger grants stay pending");
+                                    return;
+                                }
+                                try {
+                                    mBackgroundExecutor.execute(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            applyHistoryToGrants(ledger, grants, records);
+                                        }
+                                    });
+                                } catch (RejectedExecutionException e) {
+                                    // closed, settled by the next process
+                                }
+                            }
+                        });
+            }
+
+            @Override
+            public void onAbandoned() {
+                // settled after the next refresh
+            }
+        });
     }
 
-    public void consumePurchase(final String productId) {
-        if (!isInitialized()) {
-            return;
+    private void applyHistoryToGrants(ConsumableLedger ledger, Map<String, String> grants,
+                                      List<PurchaseHistoryRecord> records) {
+        Set<String> listedProducts = new HashSet<>();
+        for (PurchaseHistoryRecord record : records) {
+            listedProducts.add(record.getSku());
         }
+        for (Map.Entry<String, String> grant : grants.entrySet()) {
+            if (mConsumesInFlight.contains(grant.getKey())) {
+                continue;
+            }
+            if (listedProducts.contains(grant.getValue())) {
+                ledger.commitGrant(grant.getKey());
+            } else {
+                Log.w(LOG_TAG, "Dropping ledger grant for " + grant.getValue() + ", it is not in the purchase history");
+                ledger.abortGrant(grant.getKey());
+            }
+        }
+    }
 
-        final Purchase transaction = getPurchaseTransactionDetails(productId);
-        if (transaction != null && !TextUtils.isEmpty(transaction.getPurchaseToken())) {
-            ConsumeParams params = ConsumeParams.newBuilder()
-                    .setPurchaseToken(transaction.getPurchaseToken())
-                    .build();
-            mBillingClient.consumeAsync(params, new ConsumeResponseListener() {
-                @Override
-                public void onConsumeResponse(BillingResult result, String purchaseToken) {
-                    if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                        cachedProducts.remove(productId);
-                        savePurchasePayload(null);
-                        Log.d(LOG_TAG, "Successfully consumed " + productId + " purchase.");
-                        if (mEventHandler != null) {
-                            mEventHandler.onConsumeSuccess(transaction);
-                        }
-                    } else {
-                        if (result.getResponseCode() == BillingClient.BillingResponseCode.ITEM_NOT_OWNED) {
-                            cachedProducts.remove(productId);
-                            savePurchasePayload(null);
-                        }
-                        reportBillingError(result);
-                        Log.e(LOG_TAG, String.format("Failed to consume %s: %d", productId, result.getResponseCode()));
-                    }
-                }
-            });
-
+    /**
+     * Records billing events in {@code journal}, or stops recording them if {@code null}.
+     */
+    public void setJournal(@Nullable BillingJournal journal) {
+        if (journal != null) {
+            journal.setClock(mClock);
         }
+        mJournal = journal;
+    }
+
+    /**
+     * Records grants for consumed purchases in {@code ledger}, or stops recording them if
+     * {@code null}. Grants left unsettled by a previous process are settled after the next
+     * inventory refresh.
+     */
+    public void setConsumableLedger(@Nullable ConsumableLedger ledger) {
+        mConsumableLedger = ledger;
     }
 
     private boolean purchase(Activity activity, String productId, String purchaseType,
@@ -472,20 +1690,13 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         return purchase(activity, oldProductId, productId, purchaseType, developerPayload, false);
     }
 
-    private boolean purchase(Activity activity, String oldProductId, String productId,
+    private boolean purchase(final Activity activity, String oldProductId, String productId,
                              String purchaseType, String developerPayload, boolean isSupportVR) {
         if (!isInitialized() || TextUtils.isEmpty(productId) || TextUtils.isEmpty(purchaseType)) {
             return false;
         }
 
-        String purchasePayload = purchaseType + ":" + productId;
-        if (!purchaseType.equals(BillingClient.SkuType.SUBS)) {
-            purchasePayload += ":" + UUID.randomUUID().toString();
-        }
-        if (developerPayload != null) {
-            purchasePayload += ":" + developerPayload;
-        }
-        savePurchasePayload(purchasePayload);
+        savePurchasePayload(purchaseType, productId, developerPayload);
 
         SkuDetails details = getSkuDetails(productId);
         if (details == null) {
@@ -495,13 +1706,141 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
                     .build());
             return false;
         }
-        BillingFlowParams purchaseParams = BillingFlowParams.newBuilder()
-                .setVrPurchaseFlow(isSupportVR)
-                .setSkuDetails(details)
-                .build();
-        int response = mBillingClient.launchBillingFlow(activity, purchaseParams).getResponseCode();
-        return response == BillingClient.BillingResponseCode.OK;
+        if (!mConnection.isConnected()) {
+            // unbound while idle, launched once bound again
+            launchPurchaseFlowWhenConnected(activity, details, isSupportVR);
+            return true;
+        }
+        BillingResult result = launchPurchaseFlow(activity, details, isSupportVR);
+        return result != null && result.getResponseCode() == BillingClient.BillingResponseCode.OK;
+
+    }
+
+    /**
+     * Launches the purchase flow for {@code productId}, first fetching its SkuDetails from
+     * Google Play if {@link #getSkuDetails} has none. Must be called on the main thread.
+     * <p>
+     * Calls made while a previous call for the same product is still fetching return that
+     * call's operation, so repeated taps launch a single flow. Failures, including an unknown
+     * product, are reported through {@link IBillingHandler#onBillingError}.
+     *
+     * @return the operation, which completes when the flow has been launched or has failed to
+     * launch. Cancelling it before then prevents the launch.
+     */
+    public BillingOperation purchaseAsync(Activity activity, String productId, String developerPayload) {
+        return purchaseAsync(activity, productId, BillingClient.SkuType.INAPP, developerPayload);
+    }
+
+    /**
+     * Subscription counterpart of {@link #purchaseAsync}.
+     */
+    public BillingOperation subscribeAsync(Activity activity, String productId, String developerPayload) {
+        return purchaseAsync(activity, productId, BillingClient.SkuType.SUBS, developerPayload);
+    }
+
+    private BillingOperation purchaseAsync(final Activity activity, final String productId,
+                                           final String purchaseType, final String developerPayload) {
+        if (!isInitialized() || TextUtils.isEmpty(productId)) {
+            return BillingOperation.skipped();
+        }
+        final String key = purchaseType + ":" + productId;
+        final BillingOperation operation = BillingOperation.start();
+        synchronized (mPurchasesInFlight) {
+            BillingOperation existing = mPurchasesInFlight.get(key);
+            if (existing != null && !existing.isDone()) {
+                Log.d(LOG_TAG, "Purchase of " + productId + " already in progress");
+                return existing;
+            }
+            mPurchasesInFlight.put(key, operation);
+        }
+        setOperationDeadline(operation, "purchase", mOperationTimeoutMillis);
+        mSkuDetailsLookup.lookup(productId, purchaseType, new SkuDetailsLookup.Callback() {
+            @Override
+            public void onSkuDetails(SkuDetails details, BillingResult result) {
+                synchronized (mPurchasesInFlight) {
+                    if (mPurchasesInFlight.get(key) == operation) {
+                        mPurchasesInFlight.remove(key);
+                    }
+                }
+                if (!operation.complete()) {
+                    Log.d(LOG_TAG, "Not launching purchase flow for " + productId + ": operation ended");
+                    return;
+                }
+                if (details == null) {
+                    if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                        result = BillingResult.newBuilder()
+                                .setDebugMessage("SkuDetails not found")
+                                .setResponseCode(BillingClient.BillingResponseCode.DEVELOPER_ERROR)
+                                .build();
+                    }
+                    reportBillingError(result);
+                    return;
+                }
+                savePurchasePayload(purchaseType, productId, developerPayload);
+                launchPurchaseFlowWhenConnected(activity, details, false);
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * Launches the purchase flow right away, or once the service unbound by the idle timeout is
+     * bound again. Launch failures are reported through {@link IBillingHandler#onBillingError}.
+     */
+    private void launchPurchaseFlowWhenConnected(final Activity activity, final SkuDetails details,
+                                                 final boolean isSupportVR) {
+        Runnable launch = new Runnable() {
+            @Override
+            public void run() {
+                BillingResult result = launchPurchaseFlow(activity, details, isSupportVR);
+                if (result != null && result.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                    reportBillingError(result);
+                }
+            }
+        };
+        if (mConnection.isConnected()) {
+            launch.run();
+        } else {
+            mConnection.connect(new StartupTrace(), launch);
+        }
+    }
+
+    private void savePurchasePayload(String purchaseType, String productId, String developerPayload) {
+        String purchasePayload = purchaseType + ":" + productId;
+        if (!purchaseType.equals(BillingClient.SkuType.SUBS)) {
+            purchasePayload += ":" + UUID.randomUUID().toString();
+        }
+        if (developerPayload != null) {
+            purchasePayload += ":" + developerPayload;
+        }
+        savePurchasePayload(purchasePayload);
+    }
 
+    /**
+     * @return Google Play's response, or {@code null} if launching threw
+     */
+    @Nullable
+    private BillingResult launchPurchaseFlow(final Activity activity, SkuDetails details,
+                                             boolean isSupportVR) {
+        BillingFlowParams.Builder builder = BillingFlowParams.newBuilder()
+                .setVrPurchaseFlow(isSupportVR)
+                .setSkuDetails(details);
+        String accountId = mConnection.getAccount();
+        if (accountId != null) {
+            builder.setObfuscatedAccountId(accountId);
+        }
+        final BillingFlowParams purchaseParams = builder.build();
+        try {
+            return mCallScheduler.callInteractive(new Callable<BillingResult>() {
+                @Override
+                public BillingResult call() {
+                    return mConnection.getClient().launchBillingFlow(activity, purchaseParams);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Failed to launch billing flow", e);
+            return null;
+        }
     }
 
 
@@ -514,72 +1853,196 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         return null;
     }
 
-    public void acknowledgeSubscription(final String productId) {
-        if (!isInitialized()) {
-            return;
-        }
+    public BillingOperation acknowledgeSubscription(String productId) {
+        return acknowledgeSubscription(productId, mOperationTimeoutMillis);
+    }
 
-        final Purchase transaction = getSubscriptionTransactionDetails(productId);
-        if (transaction != null && !TextUtils.isEmpty(transaction.getPurchaseToken())) {
-            if (transaction.isAcknowledged()) {
-                return;
-            }
-            AcknowledgePurchaseParams acknowledgePurchaseParams =
-                    AcknowledgePurchaseParams.newBuilder()
-                            .setPurchaseToken(transaction.getPurchaseToken())
-                            .build();
+    /**
+     * @param timeoutMillis deadline for Google Play to respond, or {@code 0} for none
+     */
+    public BillingOperation acknowledgeSubscription(String productId, long timeoutMillis) {
+        if (mReleased) {
+            return BillingOperation.skipped();
+        }
+        return acknowledge(productId, BillingClient.SkuType.SUBS,
+                getSubscriptionTransactionDetails(productId), timeoutMillis);
+    }
 
-            mBillingClient.acknowledgePurchase(acknowledgePurchaseParams, new AcknowledgePurchaseResponseListener() {
-                @Override
-                public void onAcknowledgePurchaseResponse(BillingResult result) {
-                    if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                        savePurchasePayload(null);
-                        Log.d(LOG_TAG, "Successfully consumed " + productId + " purchase.");
-                        if (mEventHandler != null) {
-                            mEventHandler.onAcknowledgeSuccess(transaction);
-                        }
-                    } else {
-                        reportBillingError(result);
-                        Log.e(LOG_TAG, String.format("Failed to acknowledgePurchase %s: %d", productId, result.getResponseCode()));
-                    }
-                }
-            });
+    public BillingOperation acknowledgeManagedProduct(String productId) {
+        return acknowledgeManagedProduct(productId, mOperationTimeoutMillis);
+    }
 
+    /**
+     * @param timeoutMillis deadline for Google Play to respond, or {@code 0} for none
+     */
+    public BillingOperation acknowledgeManagedProduct(String productId, long timeoutMillis) {
+        if (mReleased) {
+            return BillingOperation.skipped();
         }
+        return acknowledge(productId, BillingClient.SkuType.INAPP,
+                getPurchaseTransactionDetails(productId), timeoutMillis);
     }
 
-    public void acknowledgeManagedProduct(final String productId) {
+    /**
+     * Acknowledges {@code transaction}, saving the request like {@link #consumePurchase} does.
+     */
+    private BillingOperation acknowledge(final String productId, final String purchaseType,
+                                         final Purchase transaction, long timeoutMillis) {
+        if (transaction == null || TextUtils.isEmpty(transaction.getPurchaseToken()) ||
+                transaction.isAcknowledged()) {
+            return BillingOperation.skipped();
+        }
         if (!isInitialized()) {
-            return;
+            return queueRequest(BillingRequestQueue.ACKNOWLEDGE, purchaseType, transaction);
         }
-
-        final Purchase transaction = getPurchaseTransactionDetails(productId);
-        if (transaction != null && !TextUtils.isEmpty(transaction.getPurchaseToken())) {
-            if (transaction.isAcknowledged()) {
-                return;
+        final BillingOperation operation = startOperation("acknowledgePurchase", timeoutMillis);
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendAcknowledge(productId, purchaseType, transaction, operation);
             }
-            AcknowledgePurchaseParams acknowledgePurchaseParams =
-                    AcknowledgePurchaseParams.newBuilder()
-                            .setPurchaseToken(transaction.getPurchaseToken())
-                            .build();
+        });
+        return operation;
+    }
 
-            mBillingClient.acknowledgePurchase(acknowledgePurchaseParams, new AcknowledgePurchaseResponseListener() {
-                @Override
-                public void onAcknowledgePurchaseResponse(BillingResult result) {
-                    if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                        savePurchasePayload(null);
-                        Log.d(LOG_TAG, "Successfully consumed " + productId + " purchase.");
-                        if (mEventHandler != null) {
-                            mEventHandler.onAcknowledgeSuccess(transaction);
+    /**
+     * Runs on the background executor, as the request is synced to disk.
+     */
+    private void sendAcknowledge(final String productId, String purchaseType, final Purchase transaction,
+                                 final BillingOperation operation) {
+        final String token = transaction.getPurchaseToken();
+        if (!mConnection.getRequestQueue().add(BillingRequestQueue.ACKNOWLEDGE, purchaseType, transaction)) {
+            // already being acknowledged or consumed
+            operation.complete();
+            return;
+        }
+        final AcknowledgePurchaseParams acknowledgePurchaseParams =
+                AcknowledgePurchaseParams.newBuilder()
+                        .setPurchaseToken(token)
+                        .build();
+        mCallScheduler.execute(BillingCallScheduler.PRIORITY_CONSUME, new BillingCallScheduler.Call() {
+            @Override
+            public void start(final BillingCallScheduler.Slot slot) {
+                mConnection.getClient().acknowledgePurchase(acknowledgePurchaseParams, new AcknowledgePurchaseResponseListener() {
+                    @Override
+                    public void onAcknowledgePurchaseResponse(BillingResult result) {
+                        slot.release();
+                        settleQueuedRequest(BillingRequestQueue.ACKNOWLEDGE, token, result.getResponseCode());
+                        BillingJournal journal = mJournal;
+                        if (journal != null) {
+                            journal.recordAcknowledge(result.getResponseCode(), transaction);
+                        }
+                        if (!operation.complete()) {
+                            Log.d(LOG_TAG, "Dropping late acknowledgePurchase response for " + productId);
+                            return;
+                        }
+                        if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                            savePurchasePayload(null);
+                            Log.d(LOG_TAG, "Successfully acknowledged " + productId + " purchase.");
+                            if (mEventHandler != null) {
+                                mEventHandler.onAcknowledgeSuccess(transaction);
+                            }
+                        } else {
+                            reportBillingError(result);
+                            Log.e(LOG_TAG, String.format("Failed to acknowledgePurchase %s: %d", productId, result.getResponseCode()));
                         }
-                    } else {
-                        reportBillingError(result);
-                        Log.e(LOG_TAG, String.format("Failed to acknowledgePurchase %s: %d", productId, result.getResponseCode()));
                     }
+                });
+            }
+
+            @Override
+            public void onAbandoned() {
+                // stays queued for the next connection
+                mConnection.getRequestQueue().release(token);
+                if (operation.complete()) {
+                    reportBillingError(BillingCallScheduler.abandonedResult());
                 }
-            });
+            }
+        });
+    }
 
-        }
+    /**
+     * Starts an operation that reports {@link Constants#BILLING_ERROR_OPERATION_TIMEOUT} if
+     * Google Play does not respond within {@code timeoutMillis}.
+     */
+    private BillingOperation startOperation(String name, long timeoutMillis) {
+        BillingOperation operation = BillingOperation.start();
+        setOperationDeadline(operation, name, timeoutMillis);
+        return operation;
+    }
+
+    private void setOperationDeadline(BillingOperation operation, final String name,
+                                      final long timeoutMillis) {
+        operation.setDeadline(mTimer, timeoutMillis, new Runnable() {
+            @Override
+            public void run() {
+                Log.w(LOG_TAG, name + " timed out after " + timeoutMillis + " ms");
+                reportBillingError(BillingResult.newBuilder()
+                        .setResponseCode(Constants.BILLING_ERROR_OPERATION_TIMEOUT)
+                        .setDebugMessage(name + " timed out")
+                        .build());
+            }
+        });
+    }
+
+    /**
+     * @return queue depths and latencies of the stages new purchases go through, for sizing
+     * {@link #setPurchasePipelineCapacity(int)}
+     */
+    public PurchasePipelineStats getPurchasePipelineStats() {
+        return mPurchasePipeline.getStats();
+    }
+
+    /**
+     * Sets how many purchases each stage of the purchase pipeline may hold before the previous
+     * stage waits for it. Defaults to 64.
+     */
+    public void setPurchasePipelineCapacity(int capacity) {
+        mPurchasePipeline.setCapacity(capacity);
+    }
+
+    /**
+     * Receives backpressure signals from the purchase pipeline. May be called on a background
+     * thread.
+     */
+    public void setPurchasePipelineListener(@Nullable IPurchasePipelineListener listener) {
+        mPurchasePipeline.setListener(listener);
+    }
+
+    /**
+     * Partitions the purchase caches by app account, e.g. for apps with several signed-in
+     * profiles. Only the cached purchases of {@code obfuscatedAccountId} are loaded and reported
+     * as owned; purchase flows tag new purchases with it. Purchases made without an account id
+     * are owned by every account. Applies to every processor in the process. {@code null}, the
+     * default, uses the unpartitioned caches.
+     * <p>
+     * The cached purchases of an account are only as fresh as its last inventory refresh, so
+     * call {@link #loadOwnedPurchasesFromGoogle()} after switching.
+     *
+     * @param obfuscatedAccountId the id also passed to Google Play, at most 64 characters and
+     *                            without personal information
+     */
+    public void setAccount(@Nullable String obfuscatedAccountId) {
+        mConnection.setAccount(obfuscatedAccountId);
+    }
+
+    /**
+     * Lets the shared connection unbind from Play Services after {@code timeoutMillis} without
+     * billing calls while the app is in the background, to save memory and battery in long-lived
+     * processes. The next call binds it again and waits for the connection, and returning to the
+     * foreground binds it ahead of time. Applies to every processor in the process. Defaults to
+     * {@code 0}, staying bound until the last processor is released.
+     */
+    public void setIdleDisconnectTimeout(long timeoutMillis) {
+        mConnection.setIdleTimeout(timeoutMillis);
+    }
+
+    /**
+     * Sets the deadline used by asynchronous operations called without an explicit timeout.
+     * Defaults to {@code 0}, no deadline.
+     */
+    public void setOperationTimeout(long timeoutMillis) {
+        mOperationTimeoutMillis = timeoutMillis;
     }
 
     /**
@@ -603,6 +2066,82 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         void onQuerySkuDetails(List<SkuDetails> skuDetails);
     }
 
+    /**
+     * Optional extension of {@link IBillingHandler} that receives bursts of events as lists.
+     * Used when a batch window is set with {@link #setCallbackBatchWindow(long)}; the
+     * single-item variants of these callbacks are then not called.
+     */
+    public interface IBillingBatchHandler extends IBillingHandler {
+
+        void onProductsPurchased(List<Purchase> purchases);
+
+        void onConsumeSuccess(List<Purchase> transactions);
+
+        void onAcknowledgeSuccess(List<Purchase> transactions);
+    }
+
+    /**
+     * Receives the outcome of {@link #loadOwnedPurchasesFromGoogleAsync}.
+     */
+    public interface IOwnedPurchasesListener {
+
+        /**
+         * @param loaded {@code true} if all retrievals were successful or the cache was fresh
+         */
+        void onOwnedPurchasesLoaded(boolean loaded);
+    }
+
+    /**
+     * Receives state changes of purchases awaiting payment. Purchases that complete are also
+     * reported to {@link IBillingHandler#onProductPurchased} as usual.
+     */
+    public interface IPendingPurchaseListener {
+
+        void onPurchasePending(Purchase purchase);
+
+        void onPendingPurchaseCompleted(Purchase purchase);
+
+        void onPendingPurchaseCancelled(String productId);
+    }
+
+    /**
+     * Receives backpressure signals from the purchase pipeline, see
+     * {@link PurchasePipelineStats} for the stages.
+     */
+    public interface IPurchasePipelineListener {
+
+        /**
+         * The queue of {@code stage} reached its capacity, so the previous stage is waiting.
+         */
+        void onStageSaturated(String stage, int depth);
+
+        /**
+         * The queue of {@code stage} dropped below its capacity again.
+         */
+        void onStageRelieved(String stage, int depth);
+
+        /**
+         * Purchase updates arrived while the queue of {@code stage} was full. They wait in an
+         * overflow queue and are processed in order once there is room, none is dropped.
+         *
+         * @param overflowDepth updates waiting in the overflow queue
+         */
+        void onStageOverflow(String stage, int overflowDepth);
+    }
+
+    /**
+     * Receives purchase history records from {@link #queryPurchaseHistory} and
+     * {@link #readPurchaseHistory}. All methods are called on a background thread.
+     */
+    public interface IPurchaseHistoryListener {
+
+        void onPurchaseHistoryPage(String purchaseType, List<PurchaseHistoryRecord> records);
+
+        void onPurchaseHistoryComplete(String purchaseType);
+
+        void onPurchaseHistoryError(String purchaseType, BillingResult result);
+    }
+
 
     private SkuDetails getSkuDetails(String productId) {
         if (mSkuDetailsCache != null && mSkuDetailsCache.containsKey(productId)) {
@@ -623,25 +2162,69 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         return details;
     }
 
-    public void getSkuDetailsAsync(final List<String> productIdList, String purchaseType) {
-        if (productIdList != null && productIdList.size() > 0) {
-            SkuDetailsParams params = SkuDetailsParams.newBuilder()
+    public BillingOperation getSkuDetailsAsync(List<String> productIdList, String purchaseType) {
+        return getSkuDetailsAsync(productIdList, purchaseType, mOperationTimeoutMillis);
+    }
+
+    /**
+     * @param timeoutMillis deadline for Google Play to respond, or {@code 0} for none
+     */
+    public BillingOperation getSkuDetailsAsync(List<String> productIdList, String purchaseType,
+                                               long timeoutMillis) {
+        if (productIdList == null || productIdList.isEmpty() || mReleased) {
+            return BillingOperation.skipped();
+        }
+        BillingOperation operation = startOperation("querySkuDetails", timeoutMillis);
+        querySkuDetails(productIdList, purchaseType, operation);
+        return operation;
+    }
+
+    /**
+     * Queries and caches SkuDetails. Results are reported to the handler only if
+     * {@code operation} is given and did not end before Google Play responded.
+     */
+    private void querySkuDetails(final List<String> productIdList, final String purchaseType,
+                                 @Nullable final BillingOperation operation) {
+        if (productIdList != null && productIdList.size() > 0 && !mReleased) {
+            final SkuDetailsParams params = SkuDetailsParams.newBuilder()
                     .setSkusList(productIdList)
                     .setType(purchaseType)
                     .build();
-            mBillingClient.querySkuDetailsAsync(params, new SkuDetailsResponseListener() {
+            mCallScheduler.execute(BillingCallScheduler.PRIORITY_CATALOG, new BillingCallScheduler.Call() {
                 @Override
-                public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetails) {
-                    if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                        if (mEventHandler != null) {
-                            for (SkuDetails details : skuDetails) {
-                                mSkuDetailsCache.put(details.getSku(), details);
+                public void start(final BillingCallScheduler.Slot slot) {
+                    mConnection.getClient().querySkuDetailsAsync(params, new SkuDetailsResponseListener() {
+                        @Override
+                        public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetails) {
+                            slot.release();
+                            boolean notifyHandler = operation != null && operation.complete();
+                            if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                                if (skuDetails == null) {
+                                    skuDetails = Collections.emptyList();
+                                }
+                                for (SkuDetails details : skuDetails) {
+                                    mSkuDetailsCache.put(details.getSku(), details);
+                                }
+                                if (BillingClient.SkuType.SUBS.equals(purchaseType)) {
+                                    updateSubscriptionSchedule(false);
+                                }
+                                if (notifyHandler && mEventHandler != null) {
+                                    mEventHandler.onQuerySkuDetails(skuDetails);
+                                }
+                            } else {
+                                if (notifyHandler) {
+                                    reportBillingError(billingResult);
+                                }
+                                Log.e(LOG_TAG, String.format("Failed to retrieve info for %d products, %d", productIdList.size(), billingResult.getResponseCode()));
                             }
-                            mEventHandler.onQuerySkuDetails(skuDetails);
                         }
-                    } else {
-                        reportBillingError(billingResult);
-                        Log.e(LOG_TAG, String.format("Failed to retrieve info for %d products, %d", productIdList.size(), billingResult.getResponseCode()));
+                    });
+                }
+
+                @Override
+                public void onAbandoned() {
+                    if (operation != null && operation.complete()) {
+                        reportBillingError(BillingCallScheduler.abandonedResult());
                     }
                 }
             });
@@ -677,37 +2260,38 @@ public class BillingProcessor extends BillingBase implements PurchasesUpdatedLis
         return BillingClient.SkuType.INAPP;
     }
 
-
-    private boolean verifyPurchaseSignature(String productId, String purchaseData, String dataSignature) {
-        try {
-            /*
-             * Skip the signature check if the provided License Key is NULL and return true in order to
-             * continue the purchase flow
-             */
-            return TextUtils.isEmpty(signatureBase64) ||
-                    Security.verifyPurchase(productId, signatureBase64, purchaseData, dataSignature);
-        } catch (Exception e) {
-            return false;
-        }
-    }
-
+    /**
+     * Checks the purchase signature with the license key, like the default
+     * {@link SignatureVerifier}. An installed {@link PurchaseVerifier} is not consulted, as it
+     * may answer asynchronously.
+     */
     public boolean isValidTransactionDetails(Purchase purchase) {
-        return verifyPurchaseSignature(purchase.getSku(),
-                purchase.getOriginalJson(),
-                purchase.getSignature());
-
+        return mSignatureVerifier.isValid(purchase);
     }
 
     private void savePurchasePayload(String value) {
-        saveString(getPreferencesBaseKey() + PURCHASE_PAYLOAD_CACHE_KEY, value);
+        saveString(getPreferencesBaseKey() + BillingConnection.PURCHASE_PAYLOAD_CACHE_KEY, value);
     }
 
     public String getPurchasePayload() {
-        return loadString(getPreferencesBaseKey() + PURCHASE_PAYLOAD_CACHE_KEY, null);
+        return loadString(getPreferencesBaseKey() + BillingConnection.PURCHASE_PAYLOAD_CACHE_KEY, null);
     }
 
     private void reportBillingError(BillingResult result) {
+        recordBillingError(result);
+        notifyBillingError(result);
+    }
+
+    private void recordBillingError(BillingResult result) {
+        BillingJournal journal = mJournal;
+        if (journal != null) {
+            journal.recordError(result.getResponseCode(), result.getDebugMessage());
+        }
+    }
+
+    private void notifyBillingError(BillingResult result) {
         if (mEventHandler != null) {
+            mStartupTrace.mark(StartupTrace.FIRST_HANDLER_CALLBACK);
             mEventHandler.onBillingError(result);
         }
     }
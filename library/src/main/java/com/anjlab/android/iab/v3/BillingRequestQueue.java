@@ -0,0 +1,300 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Durable queue of consume and acknowledge requests, keyed by purchase token.
+ * <p>
+ * A request is written before it is sent to Google Play and removed once Google Play gives a
+ * definitive answer. Requests made while the service is not connected, and requests whose
+ * answer never arrived because the process died or the service failed, stay in the queue and are
+ * replayed in one batch after the next successful connection, by the processor that queued them
+ * if it is still attached. Each token has at most one request; a consume supersedes an
+ * acknowledge, as consuming also acknowledges the purchase. A request that Google Play keeps
+ * failing is dropped after {@value #MAX_ATTEMPTS} attempts.
+ * <p>
+ * The file is small and rewritten on every change, synced to disk, so call {@link #add} and
+ * {@link #remove} off the main thread.
+ */
+final class BillingRequestQueue {
+    private static final String LOG_TAG = "iabv3";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final char CONSUME = 'C';
+    static final char ACKNOWLEDGE = 'A';
+    private static final char SEPARATOR = '\t';
+    static final int MAX_ATTEMPTS = 5;
+
+    static final class Request {
+        final char kind;
+        final String purchaseType;
+        final Purchase purchase;
+        // failed calls that reached Google Play
+        final int attempts;
+
+        Request(char kind, String purchaseType, Purchase purchase, int attempts) {
+            this.kind = kind;
+            this.purchaseType = purchaseType;
+            this.purchase = purchase;
+            this.attempts = attempts;
+        }
+    }
+
+    private final File file;
+    // guarded by this, insertion ordered so replays keep the original order
+    private final Map<String, Request> requests = new LinkedHashMap<>();
+    // tokens with a call in flight in this process
+    private final Set<String> claimed = new HashSet<>();
+    // handles of requests queued while offline, completed by the replay
+    private final Map<String, BillingOperation> operations = new HashMap<>();
+    // processors that queued requests in this process, whose handlers get the outcome
+    private final Map<String, BillingProcessor> origins = new HashMap<>();
+
+    BillingRequestQueue(File file) {
+        this.file = file;
+        synchronized (this) {
+            load();
+        }
+    }
+
+    /**
+     * @return whether Google Play may answer differently if the request is sent again later
+     */
+    static boolean isRetryable(int responseCode) {
+        return responseCode == BillingClient.BillingResponseCode.SERVICE_DISCONNECTED ||
+                responseCode == BillingClient.BillingResponseCode.SERVICE_TIMEOUT ||
+                responseCode == BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE ||
+                responseCode == BillingClient.BillingResponseCode.BILLING_UNAVAILABLE ||
+                responseCode == BillingClient.BillingResponseCode.ERROR;
+    }
+
+    /**
+     * @return whether the call got as far as Google Play, so it counts against
+     * {@link #MAX_ATTEMPTS}
+     */
+    private static boolean reachedService(int responseCode) {
+        return responseCode != BillingClient.BillingResponseCode.SERVICE_DISCONNECTED;
+    }
+
+    /**
+     * Records a request that is about to be sent, unless the token already has an equal or
+     * stronger one. The token is claimed until {@link #remove} or {@link #release}.
+     *
+     * @return {@code false} if the token already has a call in flight, in which case the
+     * request must not be sent now; if it is stronger it is replayed later
+     */
+    synchronized boolean add(char kind, String purchaseType, Purchase purchase) {
+        boolean claimedNow = claimed.add(purchase.getPurchaseToken());
+        store(kind, purchaseType, purchase);
+        return claimedNow;
+    }
+
+    /**
+     * Records a request to send after the next connection. {@code operation} is completed by
+     * the replay if it happens in this process, which {@code origin} makes if still attached.
+     */
+    synchronized void enqueue(char kind, String purchaseType, Purchase purchase,
+                              BillingOperation operation, BillingProcessor origin) {
+        store(kind, purchaseType, purchase);
+        operations.put(purchase.getPurchaseToken(), operation);
+        origins.put(purchase.getPurchaseToken(), origin);
+    }
+
+    // must hold this
+    private void store(char kind, String purchaseType, Purchase purchase) {
+        String token = purchase.getPurchaseToken();
+        Request existing = requests.get(token);
+        if (existing != null && (existing.kind == kind || existing.kind == CONSUME)) {
+            return;
+        }
+        requests.put(token, new Request(kind, purchaseType, purchase, 0));
+        save();
+    }
+
+    /**
+     * Drops the request for {@code token} after a definitive answer to a {@code kind} call.
+     */
+    synchronized void remove(String token, char kind) {
+        claimed.remove(token);
+        Request request = requests.get(token);
+        if (request != null && request.kind == kind) {
+            requests.remove(token);
+            origins.remove(token);
+            save();
+        }
+    }
+
+    /**
+     * Keeps the request for {@code token} for the next replay after a {@code kind} call failed
+     * with a retryable {@code responseCode}, unless it has failed {@link #MAX_ATTEMPTS} times.
+     *
+     * @return {@code false} if the request was dropped
+     */
+    synchronized boolean retry(String token, char kind, int responseCode) {
+        claimed.remove(token);
+        Request request = requests.get(token);
+        if (request == null || request.kind != kind || !reachedService(responseCode)) {
+            return true;
+        }
+        int attempts = request.attempts + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            Log.w(LOG_TAG, "Dropping billing request for " + request.purchase.getSku() + " after " +
+                    attempts + " attempts");
+            requests.remove(token);
+            origins.remove(token);
+            save();
+            return false;
+        }
+        requests.put(token, new Request(kind, request.purchaseType, request.purchase, attempts));
+        save();
+        return true;
+    }
+
+    /**
+     * Keeps the request for {@code token} for the next replay.
+     */
+    synchronized void release(String token) {
+        claimed.remove(token);
+    }
+
+    /**
+     * @return the requests without a call in flight, oldest first. Sending one claims it with
+     * {@link #add}.
+     */
+    synchronized List<Request> getUnclaimed() {
+        List<Request> result = new ArrayList<>();
+        for (Map.Entry<String, Request> entry : requests.entrySet()) {
+            if (!claimed.contains(entry.getKey())) {
+                result.add(entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the processor that queued the request for {@code token} in this process, or
+     * {@code null} if it was left by a previous one
+     */
+    synchronized BillingProcessor getOrigin(String token) {
+        return origins.get(token);
+    }
+
+    /**
+     * @return the handle returned when the request was queued, or a new one
+     */
+    synchronized BillingOperation takeOperation(String token) {
+        BillingOperation operation = operations.remove(token);
+        return operation != null ? operation : BillingOperation.start();
+    }
+
+    synchronized boolean isEmpty() {
+        return requests.isEmpty();
+    }
+
+    // must hold this
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(String.valueOf(SEPARATOR), -1);
+                    // attempts are missing in files written before they were counted
+                    if (parts.length < 4 || parts.length > 5 || parts[0].length() != 1) {
+                        continue;
+                    }
+                    try {
+                        Purchase purchase = new Purchase(decode(parts[2]), decode(parts[3]));
+                        int attempts = parts.length == 5 ? Integer.parseInt(parts[4]) : 0;
+                        requests.put(purchase.getPurchaseToken(),
+                                new Request(parts[0].charAt(0), parts[1], purchase, attempts));
+                    } catch (JSONException | IllegalArgumentException e) {
+                        Log.w(LOG_TAG, "Skipping damaged billing request", e);
+                    }
+                }
+            } finally {
+                IoUtils.closeQuietly(reader);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read billing requests", e);
+        }
+        if (!requests.isEmpty()) {
+            Log.d(LOG_TAG, requests.size() + " billing requests left from a previous run");
+        }
+    }
+
+    // must hold this
+    private void save() {
+        StringBuilder lines = new StringBuilder();
+        for (Request request : requests.values()) {
+            lines.append(request.kind).append(SEPARATOR)
+                    .append(request.purchaseType).append(SEPARATOR)
+                    .append(encode(request.purchase.getOriginalJson())).append(SEPARATOR)
+                    .append(encode(request.purchase.getSignature())).append(SEPARATOR)
+                    .append(request.attempts).append('\n');
+        }
+        File target = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                out.write(lines.toString().getBytes(UTF_8));
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+            if (!target.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write billing requests", e);
+        }
+    }
+
+    private static String encode(String value) {
+        return value != null ? Base64.encodeToString(value.getBytes(UTF_8), Base64.NO_WRAP) : "";
+    }
+
+    private static String decode(String value) {
+        return new String(Base64.decode(value, Base64.NO_WRAP), UTF_8);
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads purchase cache blobs of every known format and migrates caches left behind by older
+ * versions of the library.
+ * <p>
+ * Up to format 2 the format was encoded in the preference key itself (e.g.
+ * {@code .products.cache.v2_6}), so every bump orphaned the previous cache. Since format 3 the
+ * keys are stable and the blob starts with a {@code @<version>} header instead. Older layouts are
+ * read by a {@link Migrator} that streams entries to an {@link EntrySink} without splitting the
+ * whole blob up front.
+ */
+final class CacheMigrator {
+    private static final String LOG_TAG = "iabv3";
+
+    static final int FORMAT_VERSION = 3;
+    static final String ENTRY_DELIMITER = "#####";
+    static final String LINE_DELIMITER = ">>>>>";
+    static final String HEADER_PREFIX = "@";
+
+    /**
+     * Suffixes older library versions appended to their preference keys, newest first.
+     */
+    static final List<String> LEGACY_KEY_SUFFIXES = Collections.unmodifiableList(Arrays.asList(".v2_6"));
+
+    interface EntrySink {
+        void onEntry(String productId, String json, String signature);
+    }
+
+    interface Migrator {
+        /**
+         * Streams the entries of {@code blob}, starting at {@code offset}, to {@code sink}.
+         */
+        void read(String blob, int offset, EntrySink sink);
+    }
+
+    /**
+     * Reader for the entry layout shared by formats 2 and 3:
+     * {@code productId>>>>>json>>>>>signature} entries joined by {@code #####}.
+     */
+    static final Migrator DELIMITED_ENTRIES = new Migrator() {
+        @Override
+        public void read(String blob, int offset, EntrySink sink) {
+            int start = offset;
+            while (start < blob.length()) {
+                int end = blob.indexOf(ENTRY_DELIMITER, start);
+                if (end < 0) {
+                    end = blob.length();
+                }
+                readEntry(blob, start, end, sink);
+                start = end + ENTRY_DELIMITER.length();
+            }
+        }
+
+        private void readEntry(String blob, int start, int end, EntrySink sink) {
+            int idEnd = blob.indexOf(LINE_DELIMITER, start);
+            if (idEnd < 0 || idEnd >= end) {
+                return;
+            }
+            int jsonStart = idEnd + LINE_DELIMITER.length();
+            int jsonEnd = blob.indexOf(LINE_DELIMITER, jsonStart);
+            String signature = null;
+            if (jsonEnd < 0 || jsonEnd >= end) {
+                jsonEnd = end;
+            } else {
+                signature = blob.substring(jsonEnd + LINE_DELIMITER.length(), end);
+            }
+            sink.onEntry(blob.substring(start, idEnd), blob.substring(jsonStart, jsonEnd), signature);
+        }
+    };
+
+    private CacheMigrator() {
+    }
+
+    /**
+     * @return the format version of {@code blob}; blobs without a header are format 2
+     */
+    static int getFormatVersion(String blob) {
+        if (!blob.startsWith(HEADER_PREFIX)) {
+            return 2;
+        }
+        int end = blob.indexOf(ENTRY_DELIMITER);
+        try {
+            return Integer.parseInt(blob.substring(HEADER_PREFIX.length(), end < 0 ? blob.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static String getHeader() {
+        return HEADER_PREFIX + FORMAT_VERSION;
+    }
+
+    /**
+     * Streams the entries of a blob of any supported format to {@code sink}.
+     *
+     * @return {@code false} if the format is not supported, e.g. written by a newer library
+     */
+    static boolean read(String blob, EntrySink sink) {
+        int version = getFormatVersion(blob);
+        Migrator migrator = getMigrator(version);
+        if (migrator == null) {
+            Log.w(LOG_TAG, "Unsupported purchase cache format " + version);
+            return false;
+        }
+        int offset = 0;
+        if (blob.startsWith(HEADER_PREFIX)) {
+            int end = blob.indexOf(ENTRY_DELIMITER);
+            offset = end < 0 ? blob.length() : end + ENTRY_DELIMITER.length();
+        }
+        migrator.read(blob, offset, sink);
+        return true;
+    }
+
+    private static Migrator getMigrator(int version) {
+        switch (version) {
+            case 2:
+            case 3:
+                return DELIMITED_ENTRIES;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the keys older library versions used for {@code key}, newest first
+     */
+    static List<String> getLegacyKeys(String key) {
+        List<String> keys = new ArrayList<>();
+        for (String suffix : LEGACY_KEY_SUFFIXES) {
+            keys.add(key + suffix);
+        }
+        return keys;
+    }
+
+    /**
+     * Finds keys that start with one of {@code prefixes} but are not in {@code liveKeys}, i.e.
+     * were left behind by other formats.
+     */
+    static List<String> findOrphanedKeys(Set<String> keys, List<String> prefixes, Set<String> liveKeys) {
+        List<String> orphaned = new ArrayList<>();
+        for (String key : keys) {
+            if (liveKeys.contains(key)) {
+                continue;
+            }
+            for (String prefix : prefixes) {
+                if (key.startsWith(prefix)) {
+                    orphaned.add(key);
+                    break;
+                }
+            }
+        }
+        return orphaned;
+    }
+}
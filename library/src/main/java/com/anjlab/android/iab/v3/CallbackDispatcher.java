@@ -0,0 +1,235 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.Handler;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.SkuDetails;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers {@link BillingProcessor.IBillingHandler} callbacks on a configurable
+ * {@link Executor}.
+ * <p>
+ * If the handler implements {@link BillingProcessor.IBillingBatchHandler} and a batch window is
+ * set, purchase, consume and acknowledge events are collected for the length of the window and
+ * delivered as lists. Any other event first flushes the collected ones, so the handler sees
+ * events in the order they happened. The window is timed on the connection's timer thread,
+ * which never runs blocking work, so a slow billing call cannot hold a batch back.
+ */
+final class CallbackDispatcher implements BillingProcessor.IBillingHandler {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final BillingProcessor.IBillingHandler handler;
+    private final ScheduledExecutorService timer;
+    private volatile Executor executor = DIRECT;
+    private volatile long batchWindowMillis;
+
+    // guarded by this
+    private List<Purchase> purchased = new ArrayList<>();
+    private List<Purchase> consumed = new ArrayList<>();
+    private List<Purchase> acknowledged = new ArrayList<>();
+    private boolean flushScheduled;
+
+    CallbackDispatcher(BillingProcessor.IBillingHandler handler, ScheduledExecutorService timer) {
+        this.handler = handler;
+        this.timer = timer;
+    }
+
+    static Executor executorFor(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    void setExecutor(@Nullable Executor executor) {
+        this.executor = executor != null ? executor : DIRECT;
+    }
+
+    void setBatchWindow(long millis) {
+        batchWindowMillis = millis;
+        if (millis <= 0) {
+            flush();
+        }
+    }
+
+    private boolean isBatching() {
+        return batchWindowMillis > 0 && handler instanceof BillingProcessor.IBillingBatchHandler;
+    }
+
+    @Override
+    public void onProductPurchased(@Nullable final Purchase details) {
+        if (isBatching() && details != null) {
+            collect(purchased, details);
+            return;
+        }
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                handler.onProductPurchased(details);
+            }
+        });
+    }
+
+    @Override
+    public void onPurchaseHistoryRestored(final List<String> products) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                handler.onPurchaseHistoryRestored(products);
+            }
+        });
+    }
+
+    @Override
+    public void onBillingError(final BillingResult result) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                handler.onBillingError(result);
+            }
+        });
+    }
+
+    @Override
+    public void onBillingInitialized() {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                handler.onBillingInitialized();
+            }
+        });
+    }
+
+    @Override
+    public void onConsumeSuccess(final Purchase transaction) {
+        if (isBatching()) {
+            collect(consumed, transaction);
+            return;
+        }
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                handler.onConsumeSuccess(transaction);
+            }
+        });
+    }
+
+    @Override
+    public void onAcknowledgeSuccess(final Purchase transaction) {
+        if (isBatching()) {
+            collect(acknowledged, transaction);
+            return;
+        }
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                handler.onAcknowledgeSuccess(transaction);
+            }
+        });
+    }
+
+    @Override
+    public void onQuerySkuDetails(final List<SkuDetails> skuDetails) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                handler.onQuerySkuDetails(skuDetails);
+            }
+        });
+    }
+
+    private void collect(List<Purchase> list, Purchase purchase) {
+        synchronized (this) {
+            list.add(purchase);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, batchWindowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // released, deliver what was collected instead of holding it forever
+            flush();
+        }
+    }
+
+    /**
+     * Delivers an unbatched event after everything collected so far.
+     */
+    private void dispatch(Runnable event) {
+        flush();
+        executor.execute(event);
+    }
+
+    private void flush() {
+        final List<Purchase> purchasedBatch;
+        final List<Purchase> consumedBatch;
+        final List<Purchase> acknowledgedBatch;
+        synchronized (this) {
+            flushScheduled = false;
+            if (purchased.isEmpty() && consumed.isEmpty() && acknowledged.isEmpty()) {
+                return;
+            }
+            purchasedBatch = purchased;
+            consumedBatch = consumed;
+            acknowledgedBatch = acknowledged;
+            purchased = new ArrayList<>();
+            consumed = new ArrayList<>();
+            acknowledged = new ArrayList<>();
+        }
+        final BillingProcessor.IBillingBatchHandler batchHandler =
+                (BillingProcessor.IBillingBatchHandler) handler;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!purchasedBatch.isEmpty()) {
+                    batchHandler.onProductsPurchased(purchasedBatch);
+                }
+                if (!consumedBatch.isEmpty()) {
+                    batchHandler.onConsumeSuccess(consumedBatch);
+                }
+                if (!acknowledgedBatch.isEmpty()) {
+                    batchHandler.onAcknowledgeSuccess(acknowledgedBatch);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.os.SystemClock;
+
+/**
+ * Source of the time the library reads, so that tests can run it on virtual time. Obtained from
+ * {@link BillingConnection#getClock()}.
+ */
+interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return milliseconds since boot, for intervals and timeouts
+     */
+    long elapsedRealtime();
+
+    /**
+     * @return wall clock time, for comparing with purchase and sync times
+     */
+    long currentTimeMillis();
+}
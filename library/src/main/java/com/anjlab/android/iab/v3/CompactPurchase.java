@@ -0,0 +1,221 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONException;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * In-memory form of a cached {@link Purchase}.
+ * <p>
+ * A {@link Purchase} keeps the original JSON, a parsed {@code JSONObject} and the signature as
+ * Strings. A record here keeps the original JSON as UTF-8 bytes, the decoded signature bytes
+ * and, as primitives, the fields the library indexes or reads often. The purchase token and
+ * order id are not copied: the record keeps where they are in the JSON bytes and compares or
+ * decodes them in place. Product ids are interned, so cache keys and SKU lists share a single
+ * String per product id while any cache holds it. {@link #toPurchase()} rebuilds an equivalent
+ * {@link Purchase} on demand.
+ */
+final class CompactPurchase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LOG_TAG = "iabv3";
+    // weak, so ids no cache refers to any more can be collected; guarded by itself
+    private static final WeakHashMap<String, WeakReference<String>> SKU_TABLE = new WeakHashMap<>();
+
+    private final byte[] originalJson;
+    private final byte[] signature;
+    private final boolean signatureDecoded;
+    // offset and length of the value in originalJson, or -1 if absent
+    private final int tokenOffset;
+    private final int tokenLength;
+    private final int orderIdOffset;
+    private final int orderIdLength;
+    private final long purchaseTime;
+    private final int purchaseState;
+    private final boolean acknowledged;
+    private final boolean autoRenewing;
+
+    private CompactPurchase(Purchase purchase) {
+        originalJson = purchase.getOriginalJson().getBytes(UTF_8);
+        String encodedSignature = purchase.getSignature();
+        byte[] decoded = decodeSignature(encodedSignature);
+        signatureDecoded = decoded != null;
+        signature = decoded != null ? decoded :
+                (encodedSignature != null ? encodedSignature.getBytes(UTF_8) : null);
+        String token = purchase.getPurchaseToken();
+        tokenOffset = find(originalJson, token);
+        tokenLength = tokenOffset >= 0 ? token.getBytes(UTF_8).length : 0;
+        String orderId = purchase.getOrderId();
+        orderIdOffset = find(originalJson, orderId);
+        orderIdLength = orderIdOffset >= 0 ? orderId.getBytes(UTF_8).length : 0;
+        purchaseTime = purchase.getPurchaseTime();
+        purchaseState = purchase.getPurchaseState();
+        acknowledged = purchase.isAcknowledged();
+        autoRenewing = purchase.isAutoRenewing();
+    }
+
+    /**
+     * @return a compact record for {@code purchase}, or {@code null} if it has no original JSON
+     */
+    static CompactPurchase of(Purchase purchase) {
+        if (purchase == null || purchase.getOriginalJson() == null) {
+            return null;
+        }
+        return new CompactPurchase(purchase);
+    }
+
+    /**
+     * @return the canonical instance of {@code productId}
+     */
+    static String internSku(String productId) {
+        synchronized (SKU_TABLE) {
+            WeakReference<String> existing = SKU_TABLE.get(productId);
+            String canonical = existing != null ? existing.get() : null;
+            if (canonical == null) {
+                canonical = productId;
+                SKU_TABLE.put(canonical, new WeakReference<>(canonical));
+            }
+            return canonical;
+        }
+    }
+
+    /**
+     * Finds the quoted JSON string {@code value} in {@code json}. Tokens and order ids have no
+     * characters JSON escapes, so they appear in the JSON as they are.
+     *
+     * @return the offset of the first byte of {@code value}, or {@code -1} if it is not there
+     */
+    private static int find(byte[] json, String value) {
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        byte[] needle = ('"' + value + '"').getBytes(UTF_8);
+        outer:
+        for (int i = 0; i <= json.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (json[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i + 1;
+        }
+        return -1;
+    }
+
+    private boolean regionEquals(int offset, int length, String value) {
+        if (offset < 0 || value == null) {
+            return false;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (originalJson[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Only keeps the decoded form if it encodes back to the exact same String, so
+     * {@link #getSignature()} always returns what Google Play sent.
+     */
+    private static byte[] decodeSignature(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return null;
+        }
+        try {
+            byte[] decoded = Base64.decode(encoded, Base64.DEFAULT);
+            if (decoded != null && encoded.equals(Base64.encodeToString(decoded, Base64.NO_WRAP))) {
+                return decoded;
+            }
+        } catch (IllegalArgumentException e) {
+            // not base64, keep the raw bytes
+        }
+        return null;
+    }
+
+    String getOriginalJson() {
+        return new String(originalJson, UTF_8);
+    }
+
+    String getSignature() {
+        if (signature == null) {
+            return null;
+        }
+        return signatureDecoded ? Base64.encodeToString(signature, Base64.NO_WRAP) :
+                new String(signature, UTF_8);
+    }
+
+    String getPurchaseToken() {
+        return tokenOffset >= 0 ? new String(originalJson, tokenOffset, tokenLength, UTF_8) : null;
+    }
+
+    String getOrderId() {
+        return orderIdOffset >= 0 ? new String(originalJson, orderIdOffset, orderIdLength, UTF_8) : null;
+    }
+
+    long getPurchaseTime() {
+        return purchaseTime;
+    }
+
+    int getPurchaseState() {
+        return purchaseState;
+    }
+
+    boolean isAcknowledged() {
+        return acknowledged;
+    }
+
+    boolean isAutoRenewing() {
+        return autoRenewing;
+    }
+
+    boolean hasPurchaseToken(String token) {
+        return regionEquals(tokenOffset, tokenLength, token);
+    }
+
+    boolean sameReceipt(CompactPurchase other) {
+        return other != null && signatureDecoded == other.signatureDecoded &&
+                Arrays.equals(originalJson, other.originalJson) &&
+                Arrays.equals(signature, other.signature);
+    }
+
+    /**
+     * @return a new {@link Purchase} equivalent to the one this record was made from, or
+     * {@code null} if its JSON can no longer be parsed. {@link BillingCache} keeps the recently
+     * rebuilt ones, so repeated lookups of the same product parse it once.
+     */
+    Purchase toPurchase() {
+        try {
+            return new Purchase(getOriginalJson(), getSignature());
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to rebuild cached purchase", e);
+            return null;
+        }
+    }
+}
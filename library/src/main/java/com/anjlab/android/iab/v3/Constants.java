@@ -17,7 +17,11 @@ package com.anjlab.android.iab.v3;
 
 public class Constants
 {
-
-
-
+    /**
+     * Response code reported through
+     * {@link BillingProcessor.IBillingHandler#onBillingError} when a {@link BillingOperation}
+     * passes its deadline. Chosen outside the range of
+     * {@code BillingClient.BillingResponseCode}.
+     */
+    public static final int BILLING_ERROR_OPERATION_TIMEOUT = 100;
 }
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-product balances for consumable purchases, kept in memory and backed by a write-ahead log.
+ * <p>
+ * Once a ledger is installed with {@link BillingProcessor#setConsumableLedger(ConsumableLedger)},
+ * {@link BillingProcessor#consumePurchase(String)} writes a grant entry for the purchase token
+ * before the purchase is consumed. The grant is applied to the balance when Google Play confirms
+ * the consumption. If the process dies in between, the grant is replayed when the ledger is
+ * opened again and settled after the next inventory refresh. The purchase is consumed again if
+ * it is still owned. Otherwise the grant is applied once the purchase history confirms the
+ * purchase went through, and dropped if the purchase is gone from it, e.g. refunded. Each of
+ * the last {@value #MAX_CREDITED_TOKENS} credited purchase tokens is credited at most once;
+ * older ones have long been consumed and cannot be delivered again.
+ * <p>
+ * Billing Library 3 does not report purchase quantities, so the number of units a purchase
+ * grants is configured per product with {@link #setUnits(String, long)}.
+ * <p>
+ * Balance reads are served from memory. The log is read once by the constructor, so create the
+ * ledger off the main thread if it may be large.
+ */
+public final class ConsumableLedger {
+    private static final String LOG_TAG = "iabv3";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LEDGER_FILE = "iabv3.ledger";
+    private static final int COMPACT_THRESHOLD = 1000;
+    static final int MAX_CREDITED_TOKENS = 1000;
+
+    private static final char GRANT = 'G';
+    private static final char COMMIT = 'C';
+    private static final char ABORT = 'A';
+    private static final char ADJUST = 'S';
+    private static final char BALANCE = 'B';
+    private static final char CREDITED = 'T';
+    private static final char SEPARATOR = '\t';
+
+    private final File file;
+    private final ConcurrentHashMap<String, AtomicLong> balances = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> units = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private final Map<String, Grant> pendingGrants = new HashMap<>();
+    // oldest first
+    private final Set<String> creditedTokens = new LinkedHashSet<>();
+    private int entries;
+
+    public ConsumableLedger(Context context) {
+        this(new File(context.getFilesDir(), LEDGER_FILE));
+    }
+
+    public ConsumableLedger(File file) {
+        this.file = file;
+        synchronized (this) {
+            replay();
+        }
+    }
+
+    /**
+     * Sets the number of units one purchase of {@code productId} grants. Products without units
+     * are consumed without being recorded in the ledger.
+     */
+    public void setUnits(String productId, long unitsPerPurchase) {
+        units.put(productId, unitsPerPurchase);
+    }
+
+    public long getUnits(String productId) {
+        Long value = units.get(productId);
+        return value != null ? value : 0;
+    }
+
+    public long getBalance(String productId) {
+        AtomicLong balance = balances.get(productId);
+        return balance != null ? balance.get() : 0;
+    }
+
+    public Map<String, Long> getBalances() {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : balances.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Adds {@code amount} units to the balance of {@code productId}, e.g. for rewards that are
+     * not purchased.
+     *
+     * @return {@code false} if the change could not be written to the log
+     */
+    public synchronized boolean credit(String productId, long amount) {
+        if (!append(ADJUST, productId, Long.toString(amount))) {
+            return false;
+        }
+        balance(productId).addAndGet(amount);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Removes {@code amount} units from the balance of {@code productId} if it is large enough.
+     *
+     * @return {@code true} if the units were spent
+     */
+    public synchronized boolean spend(String productId, long amount) {
+        AtomicLong balance = balance(productId);
+        if (balance.get() < amount || !append(ADJUST, productId, Long.toString(-amount))) {
+            return false;
+        }
+        balance.addAndGet(-amount);
+        compactIfNeeded();
+        return true;
+    }
+
+    synchronized boolean isCredited(String purchaseToken) {
+        return creditedTokens.contains(purchaseToken);
+    }
+
+    /**
+     * Writes a grant for {@code purchaseToken} before it is consumed.
+     *
+     * @return {@code false} if the product grants no units, the token was already credited or
+     * the grant could not be written
+     */
+    synchronized boolean beginGrant(String purchaseToken, String productId) {
+        if (pendingGrants.containsKey(purchaseToken)) {
+            return true;
+        }
+        long amount = getUnits(productId);
+        if (amount <= 0 || creditedTokens.contains(purchaseToken)) {
+            return false;
+        }
+        if (!append(GRANT, purchaseToken, productId + SEPARATOR + amount)) {
+            return false;
+        }
+        pendingGrants.put(purchaseToken, new Grant(productId, amount));
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Applies a pending grant once its purchase has been consumed.
+     */
+    synchronized void commitGrant(String purchaseToken) {
+        Grant grant = pendingGrants.get(purchaseToken);
+        if (grant == null || !append(COMMIT, purchaseToken, null)) {
+            return;
+        }
+        pendingGrants.remove(purchaseToken);
+        addCreditedToken(purchaseToken);
+        balance(grant.productId).addAndGet(grant.amount);
+        compactIfNeeded();
+    }
+
+    /**
+     * Drops a pending grant whose purchase will not be consumed.
+     */
+    synchronized void abortGrant(String purchaseToken) {
+        if (pendingGrants.containsKey(purchaseToken) && append(ABORT, purchaseToken, null)) {
+            pendingGrants.remove(purchaseToken);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * @return purchase tokens of grants that were written but not settled yet, mapped to their
+     * product ids
+     */
+    synchronized Map<String, String> getPendingGrants() {
+        Map<String, String> result = new HashMap<>();
+        for (Map.Entry<String, Grant> entry : pendingGrants.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().productId);
+        }
+        return result;
+    }
+
+    private void addCreditedToken(String purchaseToken) {
+        creditedTokens.remove(purchaseToken);
+        creditedTokens.add(purchaseToken);
+        if (creditedTokens.size() > MAX_CREDITED_TOKENS) {
+            Iterator<String> oldest = creditedTokens.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private AtomicLong balance(String productId) {
+        AtomicLong balance = balances.get(productId);
+        if (balance == null) {
+            AtomicLong created = new AtomicLong();
+            balance = balances.putIfAbsent(productId, created);
+            if (balance == null) {
+                balance = created;
+            }
+        }
+        return balance;
+    }
+
+    private boolean append(char type, String key, String value) {
+        return write(line(type, key, value), true);
+    }
+
+    private static String line(char type, String key, String value) {
+        StringBuilder line = new StringBuilder().append(type).append(SEPARATOR).append(key);
+        if (value != null) {
+            line.append(SEPARATOR).append(value);
+        }
+        return line.append('\n').toString();
+    }
+
+    private boolean write(String lines, boolean append) {
+        File target = append ? file : new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(target, append);
+            try {
+                out.write(lines.getBytes(UTF_8));
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+            if (!append && !target.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+            entries = append ? entries + 1 : 0;
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write consumable ledger", e);
+            return false;
+        }
+    }
+
+    /**
+     * Rewrites the log as one entry per balance, credited token and pending grant once enough
+     * entries have accumulated.
+     */
+    private void compactIfNeeded() {
+        if (entries < COMPACT_THRESHOLD) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> entry : balances.entrySet()) {
+            lines.append(line(BALANCE, entry.getKey(), Long.toString(entry.getValue().get())));
+        }
+        for (String token : creditedTokens) {
+            lines.append(line(CREDITED, token, null));
+        }
+        for (Map.Entry<String, Grant> entry : pendingGrants.entrySet()) {
+            lines.append(line(GRANT, entry.getKey(),
+                    entry.getValue().productId + SEPARATOR + entry.getValue().amount));
+        }
+        write(lines.toString(), false);
+    }
+
+    private void replay() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            IoUtils.truncatePartialLine(file);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    apply(line.split(String.valueOf(SEPARATOR)));
+                    entries++;
+                }
+            } finally {
+                IoUtils.closeQuietly(reader);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to replay consumable ledger", e);
+        }
+        if (!pendingGrants.isEmpty()) {
+            Log.d(LOG_TAG, "Consumable ledger has " + pendingGrants.size() + " unsettled grants");
+        }
+    }
+
+    private void apply(String[] fields) {
+        if (fields.length < 2 || fields[0].length() != 1) {
+            return;
+        }
+        try {
+            switch (fields[0].charAt(0)) {
+                case GRANT:
+                    if (fields.length == 4 && !creditedTokens.contains(fields[1])) {
+                        pendingGrants.put(fields[1], new Grant(fields[2], Long.parseLong(fields[3])));
+                    }
+                    break;
+                case COMMIT:
+                    Grant grant = pendingGrants.remove(fields[1]);
+                    if (grant != null) {
+                        addCreditedToken(fields[1]);
+                        balance(grant.productId).addAndGet(grant.amount);
+                    }
+                    break;
+                case ABORT:
+                    pendingGrants.remove(fields[1]);
+                    break;
+                case ADJUST:
+                    if (fields.length == 3) {
+                        balance(fields[1]).addAndGet(Long.parseLong(fields[2]));
+                    }
+                    break;
+                case BALANCE:
+                    if (fields.length == 3) {
+                        balance(fields[1]).set(Long.parseLong(fields[2]));
+                    }
+                    break;
+                case CREDITED:
+                    addCreditedToken(fields[1]);
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Skipping malformed consumable ledger entry");
+        }
+    }
+
+    private static final class Grant {
+        final String productId;
+        final long amount;
+
+        Grant(String productId, long amount) {
+            this.productId = productId;
+            this.amount = amount;
+        }
+    }
+}
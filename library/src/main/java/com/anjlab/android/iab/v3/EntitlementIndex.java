@@ -0,0 +1,181 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Dense, bitset-backed view of what the user currently owns, intended for gating features in hot
+ * paths such as rendering.
+ * <p>
+ * Every known product id is assigned a small int id. Resolve the ids once, e.g. when a screen is
+ * created, and then check them with {@link #owns(int)}, {@link #ownsAny(int[])} or
+ * {@link #ownsAll(int[])}: each check is a reference comparison against the backing caches plus
+ * a few word operations, with no string hashing and no preference reads.
+ * <p>
+ * Both managed products and subscriptions count as owned. Instances are obtained through
+ * {@link BillingProcessor#getEntitlementIndex()} and are safe to use from any thread.
+ */
+public final class EntitlementIndex {
+    /**
+     * Id returned for a {@code null} or empty product id. It is never owned.
+     */
+    public static final int NO_ID = -1;
+
+    private final BillingCache products;
+    private final BillingCache subscriptions;
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final List<String> productIds = new ArrayList<>();
+
+    private volatile State state = new State(null, null, new long[0]);
+
+    EntitlementIndex(BillingCache products, BillingCache subscriptions) {
+        this.products = products;
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Returns the dense id of {@code productId}, assigning a new one if the product has not been
+     * seen before. Ids stay stable for the lifetime of the index.
+     */
+    public synchronized int resolve(String productId) {
+        if (productId == null || productId.length() == 0) {
+            return NO_ID;
+        }
+        Integer id = ids.get(productId);
+        if (id == null) {
+            id = productIds.size();
+            ids.put(productId, id);
+            productIds.add(productId);
+        }
+        return id;
+    }
+
+    /**
+     * Resolves several product ids at once, keeping the order of the arguments.
+     */
+    public synchronized int[] resolve(String... productIds) {
+        int[] result = new int[productIds.length];
+        for (int i = 0; i < productIds.length; i++) {
+            result[i] = resolve(productIds[i]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the product id assigned to {@code id}, or {@code null} if the id is unknown
+     */
+    public synchronized String getProductId(int id) {
+        return id >= 0 && id < productIds.size() ? productIds.get(id) : null;
+    }
+
+    public boolean owns(int id) {
+        return isSet(current().bits, id);
+    }
+
+    /**
+     * @return {@code true} if at least one of {@code ids} is owned
+     */
+    public boolean ownsAny(int[] ids) {
+        long[] bits = current().bits;
+        for (int id : ids) {
+            if (isSet(bits, id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if every id in {@code ids} is owned; {@code true} for an empty array
+     */
+    public boolean ownsAll(int[] ids) {
+        long[] bits = current().bits;
+        for (int id : ids) {
+            if (!isSet(bits, id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of owned products and subscriptions
+     */
+    public int ownedCount() {
+        int count = 0;
+        for (long word : current().bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    private static boolean isSet(long[] bits, int id) {
+        int word = id >>> 6;
+        return id >= 0 && word < bits.length && (bits[word] & (1L << id)) != 0;
+    }
+
+    private State current() {
+        State current = state;
+        BillingCache.Snapshot productsSnapshot = products.snapshot();
+        BillingCache.Snapshot subscriptionsSnapshot = subscriptions.snapshot();
+        if (current.products == productsSnapshot && current.subscriptions == subscriptionsSnapshot) {
+            return current;
+        }
+        return rebuild(productsSnapshot, subscriptionsSnapshot);
+    }
+
+    private synchronized State rebuild(BillingCache.Snapshot productsSnapshot,
+                                       BillingCache.Snapshot subscriptionsSnapshot) {
+        State current = state;
+        if (current.products == productsSnapshot && current.subscriptions == subscriptionsSnapshot) {
+            return current;
+        }
+        for (String productId : productsSnapshot.productIds) {
+            resolve(productId);
+        }
+        for (String productId : subscriptionsSnapshot.productIds) {
+            resolve(productId);
+        }
+        long[] bits = new long[(productIds.size() + 63) >>> 6];
+        for (String productId : productsSnapshot.productIds) {
+            int id = ids.get(productId);
+            bits[id >>> 6] |= 1L << id;
+        }
+        for (String productId : subscriptionsSnapshot.productIds) {
+            int id = ids.get(productId);
+            bits[id >>> 6] |= 1L << id;
+        }
+        State updated = new State(productsSnapshot, subscriptionsSnapshot, bits);
+        state = updated;
+        return updated;
+    }
+
+    private static final class State {
+        final BillingCache.Snapshot products;
+        final BillingCache.Snapshot subscriptions;
+        final long[] bits;
+
+        State(BillingCache.Snapshot products, BillingCache.Snapshot subscriptions, long[] bits) {
+            this.products = products;
+            this.subscriptions = subscriptions;
+            this.bits = bits;
+        }
+    }
+}
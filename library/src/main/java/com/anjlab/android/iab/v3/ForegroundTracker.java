@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Process;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tells whether the app has a started activity, and reports the transitions.
+ * <p>
+ * Activities started before the tracker was registered are not seen starting, so the tracker
+ * is seeded with whether the process was visible at registration. That state is kept until
+ * such an activity stops, or until the last activity seen starting stops.
+ */
+final class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+
+    interface Listener {
+        void onForeground();
+
+        void onBackground();
+    }
+
+    private final Application application;
+    private final Listener listener;
+    // only used on the main thread
+    private final Set<Activity> startedActivities = new HashSet<>();
+    // only written on the main thread
+    private volatile int started;
+    private volatile boolean visibleAtRegistration;
+
+    ForegroundTracker(Application application, Listener listener, boolean visible) {
+        this.application = application;
+        this.listener = listener;
+        visibleAtRegistration = visible;
+    }
+
+    /**
+     * @param visible whether the app is visible now, see {@link #isProcessVisible}
+     * @return the registered tracker, or {@code null} if {@code context} does not lead to the
+     * {@link Application}
+     */
+    static ForegroundTracker register(Context context, Listener listener, boolean visible) {
+        Context applicationContext = context.getApplicationContext();
+        if (!(applicationContext instanceof Application)) {
+            return null;
+        }
+        ForegroundTracker tracker = new ForegroundTracker((Application) applicationContext, listener, visible);
+        tracker.application.registerActivityLifecycleCallbacks(tracker);
+        return tracker;
+    }
+
+    /**
+     * @return whether the system ranks this process as foreground, i.e. it shows an activity
+     */
+    static boolean isProcessVisible(Context context) {
+        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        List<ActivityManager.RunningAppProcessInfo> processes =
+                manager != null ? manager.getRunningAppProcesses() : null;
+        if (processes == null) {
+            return false;
+        }
+        int pid = Process.myPid();
+        for (ActivityManager.RunningAppProcessInfo process : processes) {
+            if (process.pid == pid) {
+                return process.importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+            }
+        }
+        return false;
+    }
+
+    void unregister() {
+        application.unregisterActivityLifecycleCallbacks(this);
+    }
+
+    boolean isInForeground() {
+        return started > 0 || visibleAtRegistration;
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        boolean wasInForeground = isInForeground();
+        if (startedActivities.add(activity)) {
+            started = startedActivities.size();
+        }
+        if (!wasInForeground) {
+            listener.onForeground();
+        }
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        boolean wasInForeground = isInForeground();
+        // an activity not seen starting was started before registration
+        if (startedActivities.remove(activity)) {
+            started = startedActivities.size();
+            if (started == 0) {
+                visibleAtRegistration = false;
+            }
+        } else {
+            visibleAtRegistration = false;
+        }
+        if (wasInForeground && !isInForeground()) {
+            listener.onBackground();
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link ReceiptOutbox.Transport} that posts each batch to an endpoint with
+ * {@code Content-Encoding: gzip}. Any 2xx response acknowledges the batch. A 4xx response other
+ * than 408 and 429 rejects it for good, see {@link ReceiptOutbox.RejectedBatchException};
+ * anything else, or a network failure, makes the outbox retry it later. Any {@code http} or {@code https} URL may be
+ * used, including a server on localhost for testing. Apps using it need the
+ * {@code android.permission.INTERNET} permission.
+ */
+public class HttpReceiptTransport implements ReceiptOutbox.Transport {
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final URL endpoint;
+    private final int timeoutMillis;
+
+    public HttpReceiptTransport(URL endpoint) {
+        this(endpoint, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public HttpReceiptTransport(URL endpoint, int timeoutMillis) {
+        this.endpoint = endpoint;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void send(byte[] gzippedJson) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(gzippedJson.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(gzippedJson);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 == 4 && status != HttpURLConnection.HTTP_CLIENT_TIMEOUT && status != HTTP_TOO_MANY_REQUESTS) {
+                throw new ReceiptOutbox.RejectedBatchException("Receipt endpoint rejected the batch with HTTP " + status);
+            }
+            if (status / 100 != 2) {
+                throw new IOException("Receipt endpoint returned HTTP " + status);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
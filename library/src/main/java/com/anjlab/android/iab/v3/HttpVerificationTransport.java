@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link BatchingPurchaseVerifier.Transport} that posts a batch of receipts as JSON to a
+ * verification endpoint:
+ * <pre>
+ * {"purchases": [{"productId": "...", "purchaseToken": "...", "originalJson": "...",
+ *                 "signature": "..."}, ...]}
+ * </pre>
+ * and expects a JSON object mapping each purchase token to a boolean verdict:
+ * <pre>
+ * {"token1": true, "token2": false}
+ * </pre>
+ * Any {@code http} or {@code https} URL may be used, including a server on localhost for
+ * testing. Apps using it need the {@code android.permission.INTERNET} permission.
+ */
+public class HttpVerificationTransport implements BatchingPurchaseVerifier.Transport {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    private final URL endpoint;
+    private final int timeoutMillis;
+
+    public HttpVerificationTransport(URL endpoint) {
+        this(endpoint, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public HttpVerificationTransport(URL endpoint, int timeoutMillis) {
+        this.endpoint = endpoint;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public Map<String, Boolean> verify(List<Purchase> purchases) throws IOException {
+        byte[] body = encode(purchases).getBytes(UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("Verification endpoint returned HTTP " + status);
+            }
+            return decode(readFully(connection.getInputStream()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    static String encode(List<Purchase> purchases) throws IOException {
+        try {
+            JSONArray items = new JSONArray();
+            for (Purchase purchase : purchases) {
+                items.put(ReceiptOutbox.toJson(purchase));
+            }
+            JSONObject request = new JSONObject();
+            request.put("purchases", items);
+            return request.toString();
+        } catch (JSONException e) {
+            throw new IOException("Failed to encode verification request: " + e.getMessage());
+        }
+    }
+
+    static Map<String, Boolean> decode(String response) throws IOException {
+        try {
+            JSONObject verdicts = new JSONObject(response);
+            Map<String, Boolean> result = new HashMap<>();
+            Iterator<String> tokens = verdicts.keys();
+            while (tokens.hasNext()) {
+                String token = tokens.next();
+                result.put(token, verdicts.optBoolean(token));
+            }
+            return result;
+        } catch (JSONException e) {
+            throw new IOException("Malformed verification response: " + e.getMessage());
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * File helpers shared by the append-only logs: the purchase history, the receipt outbox, the
+ * consumable ledger and the billing request queue.
+ */
+final class IoUtils {
+
+    private IoUtils() {
+    }
+
+    /**
+     * Drops a line left half-written by a crash, so the next append starts on a fresh line.
+     */
+    static void truncatePartialLine(File target) throws IOException {
+        if (!target.exists() || target.length() == 0) {
+            return;
+        }
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            long end = file.length();
+            while (end > 0) {
+                file.seek(end - 1);
+                if (file.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < file.length()) {
+                file.setLength(end);
+            }
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.text.TextUtils;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps purchases in the {@link Purchase.PurchaseState#PENDING} state, e.g. cash or carrier
+ * payments, and polls for their outcome while there are any.
+ * <p>
+ * Pending purchases are stored per type in their own {@link BillingCache}, so they survive
+ * restarts. Polling queries only the purchase types that have pending items, first after
+ * {@link #INITIAL_POLL_INTERVAL_MILLIS}, then with the interval doubling up to
+ * {@link #MAX_POLL_INTERVAL_MILLIS}; it stops as soon as nothing is pending. A newly pending
+ * purchase resets the interval. Outcomes found by polling are reported to the {@link Poller}.
+ */
+final class PendingPurchaseTracker {
+    static final long INITIAL_POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    static final long MAX_POLL_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    interface Poller {
+        /**
+         * Queries the purchases of {@code purchaseType} without blocking and passes them to
+         * {@code callback} on the background executor.
+         */
+        void queryPurchases(String purchaseType, QueryCallback callback);
+
+        void onResolved(String purchaseType, Resolution resolution);
+    }
+
+    interface QueryCallback {
+        /**
+         * @param purchases the purchases, or {@code null} if they could not be queried
+         */
+        void onPurchases(@Nullable List<Purchase> purchases);
+    }
+
+    private static final String[] PURCHASE_TYPES = {BillingClient.SkuType.INAPP, BillingClient.SkuType.SUBS};
+
+    /**
+     * Pending purchases that completed or were cancelled.
+     */
+    static final class Resolution {
+        final List<Purchase> completed = new ArrayList<>();
+        final List<String> cancelled = new ArrayList<>();
+
+        boolean isEmpty() {
+            return completed.isEmpty() && cancelled.isEmpty();
+        }
+    }
+
+    private final BillingCache pendingProducts;
+    private final BillingCache pendingSubscriptions;
+    private final ScheduledExecutorService executor;
+    private final Poller poller;
+
+    // guarded by this
+    private ScheduledFuture<?> poll;
+    private boolean polling;
+    private long interval = INITIAL_POLL_INTERVAL_MILLIS;
+
+    PendingPurchaseTracker(BillingCache pendingProducts, BillingCache pendingSubscriptions,
+                           ScheduledExecutorService executor, Poller poller) {
+        this.pendingProducts = pendingProducts;
+        this.pendingSubscriptions = pendingSubscriptions;
+        this.executor = executor;
+        this.poller = poller;
+    }
+
+    private BillingCache getStore(String purchaseType) {
+        return TextUtils.equals(purchaseType, BillingClient.SkuType.SUBS) ? pendingSubscriptions : pendingProducts;
+    }
+
+    boolean isPending(String productId) {
+        return pendingProducts.includesProduct(productId) || pendingSubscriptions.includesProduct(productId);
+    }
+
+    List<String> getPendingProducts(String purchaseType) {
+        return getStore(purchaseType).getContents();
+    }
+
+    private boolean isEmpty() {
+        return pendingProducts.getContents().isEmpty() && pendingSubscriptions.getContents().isEmpty();
+    }
+
+    /**
+     * Stores a pending purchase and polls for its outcome.
+     *
+     * @return {@code true} if the purchase was not tracked yet
+     */
+    boolean track(String purchaseType, Purchase purchase) {
+        if (!store(purchaseType, purchase)) {
+            return false;
+        }
+        synchronized (this) {
+            interval = INITIAL_POLL_INTERVAL_MILLIS;
+            schedule(interval);
+        }
+        return true;
+    }
+
+    private boolean store(String purchaseType, Purchase purchase) {
+        BillingCache store = getStore(purchaseType);
+        CompactPurchase existing = store.getRecord(purchase.getSku());
+        if (existing != null && existing.hasPurchaseToken(purchase.getPurchaseToken())) {
+            return false;
+        }
+        store.remove(purchase.getSku());
+        store.put(purchase.getSku(), purchase);
+        return true;
+    }
+
+    /**
+     * Removes a tracked purchase that was reported as purchased.
+     *
+     * @return {@code true} if it was pending
+     */
+    boolean complete(String purchaseType, Purchase purchase) {
+        BillingCache store = getStore(purchaseType);
+        CompactPurchase existing = store.getRecord(purchase.getSku());
+        if (existing == null || !existing.hasPurchaseToken(purchase.getPurchaseToken())) {
+            return false;
+        }
+        store.remove(purchase.getSku());
+        stopIfEmpty();
+        return true;
+    }
+
+    /**
+     * Updates the pending purchases of {@code purchaseType} from a full list of its purchases.
+     */
+    Resolution reconcile(String purchaseType, List<Purchase> purchases) {
+        BillingCache store = getStore(purchaseType);
+        Map<String, Purchase> byProductId = new HashMap<>();
+        boolean added = false;
+        for (Purchase purchase : purchases) {
+            byProductId.put(purchase.getSku(), purchase);
+            if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+                added |= store(purchaseType, purchase);
+            }
+        }
+        Resolution resolution = new Resolution();
+        for (String productId : store.getContents()) {
+            CompactPurchase pending = store.getRecord(productId);
+            Purchase current = byProductId.get(productId);
+            if (pending == null) {
+                continue;
+            }
+            if (current == null || !pending.hasPurchaseToken(current.getPurchaseToken())) {
+                store.remove(productId);
+                resolution.cancelled.add(productId);
+            } else if (current.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+                store.remove(productId);
+                resolution.completed.add(current);
+            }
+        }
+        if (added) {
+            synchronized (this) {
+                interval = INITIAL_POLL_INTERVAL_MILLIS;
+                schedule(interval);
+            }
+        } else {
+            stopIfEmpty();
+        }
+        return resolution;
+    }
+
+    /**
+     * Starts polling if purchases were left pending, e.g. by a previous process.
+     */
+    synchronized void start() {
+        if (poll == null && !isEmpty()) {
+            schedule(interval);
+        }
+    }
+
+    synchronized void cancel() {
+        if (poll != null) {
+            poll.cancel(false);
+            poll = null;
+        }
+    }
+
+    private synchronized void stopIfEmpty() {
+        if (isEmpty()) {
+            cancel();
+            interval = INITIAL_POLL_INTERVAL_MILLIS;
+        }
+    }
+
+    // must hold this
+    private void schedule(long delayMillis) {
+        if (poll != null) {
+            poll.cancel(false);
+        }
+        poll = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        synchronized (this) {
+            poll = null;
+            if (polling) {
+                // the poll in flight schedules the next one when it finishes
+                return;
+            }
+            polling = true;
+        }
+        poll(0);
+    }
+
+    /**
+     * Queries the purchase types from {@code index} on, one after the other.
+     */
+    private void poll(final int index) {
+        if (index == PURCHASE_TYPES.length) {
+            finishPoll();
+            return;
+        }
+        final String purchaseType = PURCHASE_TYPES[index];
+        if (getStore(purchaseType).getContents().isEmpty()) {
+            poll(index + 1);
+            return;
+        }
+        poller.queryPurchases(purchaseType, new QueryCallback() {
+            @Override
+            public void onPurchases(@Nullable List<Purchase> purchases) {
+                if (purchases != null) {
+                    Resolution resolution = reconcile(purchaseType, purchases);
+                    if (!resolution.isEmpty()) {
+                        poller.onResolved(purchaseType, resolution);
+                    }
+                }
+                poll(index + 1);
+            }
+        });
+    }
+
+    private synchronized void finishPoll() {
+        polling = false;
+        // a purchase that became pending meanwhile has already rescheduled the poll
+        if (poll == null && !isEmpty()) {
+            interval = Math.min(MAX_POLL_INTERVAL_MILLIS, interval * 2);
+            schedule(interval);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import com.android.billingclient.api.PurchaseHistoryRecord;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only log of purchase history records, one record per line in ascending purchaseTime
+ * order. An in-memory index of (purchaseTime, file offset) pairs is built on first use so reads
+ * starting at a given time seek straight to the first matching record.
+ */
+class PurchaseHistoryLog {
+    private static final String LOG_TAG = "iabv3";
+    private static final String LINE_DELIMITER = ">>>>>";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    interface PageCallback {
+        void onPage(List<PurchaseHistoryRecord> page);
+    }
+
+    private final File file;
+    private long[] times = new long[0];
+    private long[] offsets = new long[0];
+    private int size;
+    private long length;
+    private boolean loaded;
+    private int generation;
+
+    PurchaseHistoryLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the purchaseTime of the newest record in the log, or {@code 0} if it is empty
+     */
+    synchronized long getLastPurchaseTime() {
+        ensureLoaded();
+        return size > 0 ? times[size - 1] : 0;
+    }
+
+    synchronized int size() {
+        ensureLoaded();
+        return size;
+    }
+
+    /**
+     * Appends records that are not in the log yet, which must be sorted by ascending
+     * purchaseTime. Records older than {@link #getLastPurchaseTime()} are skipped, and so are
+     * records from that same millisecond whose purchase token is already logged.
+     *
+     * @return the number of records written
+     */
+    synchronized int append(List<PurchaseHistoryRecord> records) throws IOException {
+        ensureLoaded();
+        long last = size > 0 ? times[size - 1] : 0;
+        Set<String> tokensAtLast = getTokensAt(last);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        int written = 0;
+        try {
+            out.seek(length);
+            for (PurchaseHistoryRecord record : records) {
+                long time = record.getPurchaseTime();
+                if (time < last || (time == last && !tokensAtLast.add(record.getPurchaseToken()))) {
+                    continue;
+                }
+                if (time > last) {
+                    tokensAtLast.clear();
+                    tokensAtLast.add(record.getPurchaseToken());
+                }
+                byte[] line = (record.getPurchaseTime() + LINE_DELIMITER + record.getOriginalJson() +
+                        LINE_DELIMITER + record.getSignature() + "\n").getBytes(UTF_8);
+                out.write(line);
+                addToIndex(record.getPurchaseTime(), length);
+                length += line.length;
+                last = record.getPurchaseTime();
+                written++;
+            }
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        return written;
+    }
+
+    /**
+     * @return the purchase tokens of the logged records with a purchaseTime of {@code time}
+     */
+    private Set<String> getTokensAt(long time) throws IOException {
+        Set<String> tokens = new HashSet<>();
+        int first = firstIndexAfter(time - 1);
+        if (size == 0 || first >= size) {
+            return tokens;
+        }
+        List<PurchaseHistoryRecord> records = new ArrayList<>();
+        readPage(first, size - first, records);
+        for (PurchaseHistoryRecord record : records) {
+            tokens.add(record.getPurchaseToken());
+        }
+        return tokens;
+    }
+
+    /**
+     * Streams records with a purchaseTime strictly greater than {@code after} to
+     * {@code callback}, at most {@code pageSize} records at a time. The log is locked while a
+     * page is read but not while {@code callback} runs. Reading stops if the log is cleared.
+     */
+    void read(long after, int pageSize, PageCallback callback) throws IOException {
+        int next;
+        int generation;
+        synchronized (this) {
+            ensureLoaded();
+            next = firstIndexAfter(after);
+            generation = this.generation;
+        }
+        while (true) {
+            List<PurchaseHistoryRecord> page = new ArrayList<>(pageSize);
+            synchronized (this) {
+                if (generation != this.generation || next >= size) {
+                    return;
+                }
+                next = readPage(next, pageSize, page);
+            }
+            if (!page.isEmpty()) {
+                callback.onPage(page);
+            }
+        }
+    }
+
+    /**
+     * Reads up to {@code count} lines starting at record {@code first}.
+     *
+     * @return the index of the record after the last line read
+     */
+    private int readPage(int first, int count, List<PurchaseHistoryRecord> page) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long toSkip = offsets[first];
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                toSkip -= skipped;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+            int index = first;
+            int end = Math.min(size, first + count);
+            String line;
+            while (index < end && (line = reader.readLine()) != null) {
+                if (parseTime(line) < 0) {
+                    // not in the index either
+                    continue;
+                }
+                PurchaseHistoryRecord record = parse(line);
+                if (record != null) {
+                    page.add(record);
+                }
+                index++;
+            }
+            return index < end ? size : index;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    synchronized void clear() {
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Failed to delete " + file);
+        }
+        times = new long[0];
+        offsets = new long[0];
+        size = 0;
+        length = 0;
+        loaded = true;
+        generation++;
+    }
+
+    private int firstIndexAfter(long after) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] <= after) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void addToIndex(long time, long offset) {
+        if (size == times.length) {
+            int capacity = Math.max(16, size * 2);
+            times = Arrays.copyOf(times, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+        times[size] = time;
+        offsets[size] = offset;
+        size++;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            IoUtils.truncatePartialLine(file);
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long offset = 0;
+                long lineStart = 0;
+                int b;
+                while ((b = in.read()) != -1) {
+                    offset++;
+                    if (b == '\n') {
+                        indexLine(new String(line.toByteArray(), UTF_8), lineStart);
+                        line.reset();
+                        lineStart = offset;
+                    } else {
+                        line.write(b);
+                    }
+                }
+                length = lineStart;
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to load purchase history from " + file, e);
+        }
+    }
+
+    private void indexLine(String line, long offset) {
+        long time = parseTime(line);
+        if (time >= 0) {
+            addToIndex(time, offset);
+        } else {
+            Log.w(LOG_TAG, "Skipping malformed purchase history entry");
+        }
+    }
+
+    /**
+     * @return the purchaseTime a line starts with, or {@code -1} if it is malformed and left
+     * out of the index
+     */
+    private static long parseTime(String line) {
+        int end = line.indexOf(LINE_DELIMITER);
+        if (end <= 0) {
+            return -1;
+        }
+        try {
+            long time = Long.parseLong(line.substring(0, end));
+            return time >= 0 ? time : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static PurchaseHistoryRecord parse(String line) {
+        String[] parts = line.split(Pattern.quote(LINE_DELIMITER));
+        if (parts.length < 2) {
+            return null;
+        }
+        try {
+            return new PurchaseHistoryRecord(parts[1], parts.length > 2 ? parts[2] : null);
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Skipping malformed purchase history entry");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Processes purchase updates in stages: verify, persist, dispatch.
+ * <p>
+ * Updates whose purchase token is already in the pipeline or was recently dispatched are dropped
+ * on entry. Each stage takes batches of up to {@link #BATCH_SIZE} purchases of one type from its
+ * queue, and only while the next stage's queue has room for them. A slow handler therefore
+ * holds back persistence and verification instead of piling up work behind it, and the backlog
+ * collects in the verify queue. Google Play cannot be asked to wait, so the verify queue takes
+ * up to {@link #INTAKE_FACTOR} times the capacity and spills updates beyond that to an overflow
+ * queue, which refills it in order as it drains. No purchase is ever dropped for lack of room.
+ * Crossing a stage's capacity in either direction, and spilling, are reported to the
+ * {@link BillingProcessor.IPurchasePipelineListener}.
+ * <p>
+ * Purchases found completed by the pending purchase poll enter through {@link #submit} as well,
+ * so a purchase reported both by the poll and by Google Play is delivered once.
+ * <p>
+ * Verification and persistence are started on the background executor; dispatch runs on the
+ * main thread, one batch at a time.
+ */
+final class PurchasePipeline {
+    private static final String LOG_TAG = "iabv3";
+
+    static final String STAGE_VERIFY = "verify";
+    static final String STAGE_PERSIST = "persist";
+    static final String STAGE_DISPATCH = "dispatch";
+
+    static final int DEFAULT_QUEUE_CAPACITY = 64;
+    static final int BATCH_SIZE = 16;
+    static final int MAX_VERIFICATIONS_IN_FLIGHT = 2;
+    static final int INTAKE_FACTOR = 4;
+    private static final int RECENT_TOKENS = 256;
+
+    interface Stages {
+        void verify(List<Purchase> purchases, PurchaseVerifier.Callback callback);
+
+        /**
+         * Stores verified purchases, called on the background executor.
+         */
+        void persist(String purchaseType, List<Purchase> valid);
+
+        /**
+         * Reports verified purchases, called on the main thread.
+         */
+        void dispatch(String purchaseType, List<Purchase> valid, List<Purchase> invalid,
+                      List<Purchase> unverified);
+    }
+
+    private static final int VALID = 0;
+    private static final int INVALID = 1;
+    private static final int UNVERIFIED = 2;
+
+    private static final class Item {
+        final String purchaseType;
+        final Purchase purchase;
+        int outcome;
+        long enteredAt;
+
+        Item(String purchaseType, Purchase purchase) {
+            this.purchaseType = purchaseType;
+            this.purchase = purchase;
+        }
+    }
+
+    private static final class Stage {
+        final String name;
+        final ArrayDeque<Item> queue = new ArrayDeque<>();
+        int inFlight;
+        int maxDepth;
+        long processed;
+        long totalLatency;
+        long maxLatency;
+        boolean saturated;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        int depth() {
+            return queue.size() + inFlight;
+        }
+
+        void add(Item item, long now) {
+            item.enteredAt = now;
+            queue.add(item);
+            maxDepth = Math.max(maxDepth, depth());
+        }
+
+        /**
+         * Takes the first items of the type at the head of the queue.
+         */
+        List<Item> take(int max) {
+            List<Item> batch = new ArrayList<>();
+            String purchaseType = queue.peek().purchaseType;
+            Iterator<Item> iterator = queue.iterator();
+            while (iterator.hasNext() && batch.size() < max) {
+                Item item = iterator.next();
+                if (item.purchaseType.equals(purchaseType)) {
+                    iterator.remove();
+                    batch.add(item);
+                }
+            }
+            inFlight += batch.size();
+            return batch;
+        }
+
+        void done(List<Item> batch, long now) {
+            inFlight -= batch.size();
+            for (Item item : batch) {
+                long latency = now - item.enteredAt;
+                processed++;
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+            }
+        }
+    }
+
+    private final Stages stages;
+    private final Executor background;
+    private final Executor mainThread;
+    private final Clock clock;
+    private volatile BillingProcessor.IPurchasePipelineListener listener;
+
+    // guarded by this
+    private final Stage verify = new Stage(STAGE_VERIFY);
+    private final Stage persist = new Stage(STAGE_PERSIST);
+    private final Stage dispatch = new Stage(STAGE_DISPATCH);
+    // updates that found the verify queue full, oldest first
+    private final ArrayDeque<Item> overflow = new ArrayDeque<>();
+    private final Set<String> tokensInPipeline = new HashSet<>();
+    private final Map<String, Boolean> recentTokens = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_TOKENS;
+        }
+    };
+    private int capacity = DEFAULT_QUEUE_CAPACITY;
+    private int verificationsInFlight;
+    private boolean pumpScheduled;
+    private long duplicatesDropped;
+    private long overflowed;
+
+    PurchasePipeline(Stages stages, Executor background, Executor mainThread, Clock clock) {
+        this.stages = stages;
+        this.background = background;
+        this.mainThread = mainThread;
+        this.clock = clock;
+    }
+
+    void setListener(BillingProcessor.IPurchasePipelineListener listener) {
+        this.listener = listener;
+    }
+
+    synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(capacity, BATCH_SIZE);
+    }
+
+    /**
+     * Queues completed purchases reported by Google Play or found by the pending purchase poll.
+     */
+    void submit(String purchaseType, List<Purchase> purchases) {
+        int overflowDepth = 0;
+        synchronized (this) {
+            long now = clock.elapsedRealtime();
+            for (Purchase purchase : purchases) {
+                String token = purchase.getPurchaseToken();
+                if (token != null && (tokensInPipeline.contains(token) || recentTokens.containsKey(token))) {
+                    duplicatesDropped++;
+                    continue;
+                }
+                if (token != null) {
+                    tokensInPipeline.add(token);
+                }
+                Item item = new Item(purchaseType, purchase);
+                if (!overflow.isEmpty() || verify.queue.size() >= capacity * INTAKE_FACTOR) {
+                    item.enteredAt = now;
+                    overflow.add(item);
+                    overflowed++;
+                    overflowDepth = overflow.size();
+                } else {
+                    verify.add(item, now);
+                }
+            }
+        }
+        if (overflowDepth > 0) {
+            Log.w(LOG_TAG, "Purchase pipeline is full, " + overflowDepth + " purchase updates wait in overflow");
+            BillingProcessor.IPurchasePipelineListener listener = this.listener;
+            if (listener != null) {
+                listener.onStageOverflow(STAGE_VERIFY, overflowDepth);
+            }
+        }
+        schedulePump();
+    }
+
+    synchronized PurchasePipelineStats getStats() {
+        List<PurchasePipelineStats.Stage> result = new ArrayList<>();
+        for (Stage stage : new Stage[]{verify, persist, dispatch}) {
+            result.add(new PurchasePipelineStats.Stage(stage.name, stage.depth(), stage.maxDepth,
+                    capacity, stage.processed, stage.totalLatency, stage.maxLatency));
+        }
+        return new PurchasePipelineStats(result, duplicatesDropped, overflow.size(), overflowed);
+    }
+
+    private void schedulePump() {
+        synchronized (this) {
+            if (pumpScheduled) {
+                return;
+            }
+            pumpScheduled = true;
+        }
+        try {
+            background.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (PurchasePipeline.this) {
+                        pumpScheduled = false;
+                    }
+                    pump();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Purchase pipeline stopped, executor is shut down");
+        }
+    }
+
+    /**
+     * Starts every batch the queues allow, last stage first so that room frees up upstream.
+     */
+    private void pump() {
+        boolean progress = true;
+        while (progress) {
+            progress = startDispatch() | startPersist() | startVerify();
+            reportSaturation();
+        }
+    }
+
+    private boolean startVerify() {
+        final List<Item> batch;
+        synchronized (this) {
+            while (!overflow.isEmpty() && verify.queue.size() < capacity * INTAKE_FACTOR) {
+                Item item = overflow.poll();
+                // keeps the time the update arrived, so the wait in overflow counts as latency
+                verify.add(item, item.enteredAt);
+            }
+            if (verify.queue.isEmpty() || verificationsInFlight >= MAX_VERIFICATIONS_IN_FLIGHT ||
+                    persist.depth() + verify.inFlight >= capacity) {
+                return false;
+            }
+            batch = verify.take(Math.min(BATCH_SIZE, capacity - persist.depth() - verify.inFlight));
+            verificationsInFlight++;
+        }
+        final Map<Purchase, Item> items = new IdentityHashMap<>();
+        List<Purchase> purchases = new ArrayList<>();
+        for (Item item : batch) {
+            items.put(item.purchase, item);
+            purchases.add(item.purchase);
+        }
+        PurchaseVerifier.Callback callback = new PurchaseVerifier.Callback() {
+            @Override
+            public void onVerified(List<Purchase> valid, List<Purchase> invalid,
+                                   List<Purchase> unverified) {
+                synchronized (PurchasePipeline.this) {
+                    markOutcome(items, valid, VALID);
+                    markOutcome(items, invalid, INVALID);
+                    markOutcome(items, unverified, UNVERIFIED);
+                    long now = clock.elapsedRealtime();
+                    verify.done(batch, now);
+                    verificationsInFlight--;
+                    for (Item item : batch) {
+                        persist.add(item, now);
+                    }
+                }
+                schedulePump();
+            }
+        };
+        try {
+            stages.verify(purchases, callback);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to verify purchases", e);
+            callback.onVerified(Collections.<Purchase>emptyList(), Collections.<Purchase>emptyList(),
+                    purchases);
+        }
+        return true;
+    }
+
+    private static void markOutcome(Map<Purchase, Item> items, List<Purchase> purchases, int outcome) {
+        for (Purchase purchase : purchases) {
+            Item item = items.get(purchase);
+            if (item != null) {
+                item.outcome = outcome;
+            }
+        }
+    }
+
+    private boolean startPersist() {
+        List<Item> batch;
+        synchronized (this) {
+            if (persist.queue.isEmpty() || persist.inFlight > 0 || dispatch.depth() >= capacity) {
+                return false;
+            }
+            batch = persist.take(Math.min(BATCH_SIZE, capacity - dispatch.depth()));
+        }
+        List<Purchase> valid = new ArrayList<>();
+        for (Item item : batch) {
+            if (item.outcome == VALID) {
+                valid.add(item.purchase);
+            }
+        }
+        try {
+            if (!valid.isEmpty()) {
+                stages.persist(batch.get(0).purchaseType, valid);
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to persist purchases", e);
+        }
+        synchronized (this) {
+            long now = clock.elapsedRealtime();
+            persist.done(batch, now);
+            for (Item item : batch) {
+                dispatch.add(item, now);
+            }
+        }
+        return true;
+    }
+
+    private boolean startDispatch() {
+        final List<Item> batch;
+        synchronized (this) {
+            if (dispatch.queue.isEmpty() || dispatch.inFlight > 0) {
+                return false;
+            }
+            batch = dispatch.take(BATCH_SIZE);
+        }
+        final String purchaseType = batch.get(0).purchaseType;
+        final List<Purchase> valid = new ArrayList<>();
+        final List<Purchase> invalid = new ArrayList<>();
+        final List<Purchase> unverified = new ArrayList<>();
+        for (Item item : batch) {
+            if (item.outcome == VALID) {
+                valid.add(item.purchase);
+            } else if (item.outcome == INVALID) {
+                invalid.add(item.purchase);
+            } else {
+                unverified.add(item.purchase);
+            }
+        }
+        mainThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stages.dispatch(purchaseType, valid, invalid, unverified);
+                } finally {
+                    synchronized (PurchasePipeline.this) {
+                        dispatch.done(batch, clock.elapsedRealtime());
+                        for (Item item : batch) {
+                            String token = item.purchase.getPurchaseToken();
+                            if (token == null) {
+                                continue;
+                            }
+                            tokensInPipeline.remove(token);
+                            // unverified purchases may be delivered again and get another chance
+                            if (item.outcome != UNVERIFIED) {
+                                recentTokens.put(token, Boolean.TRUE);
+                            }
+                        }
+                    }
+                    schedulePump();
+                }
+            }
+        });
+        return true;
+    }
+
+    private void reportSaturation() {
+        List<Transition> transitions = new ArrayList<>();
+        synchronized (this) {
+            for (Stage stage : new Stage[]{verify, persist, dispatch}) {
+                boolean saturated = stage.depth() >= capacity;
+                if (saturated != stage.saturated) {
+                    stage.saturated = saturated;
+                    transitions.add(new Transition(stage.name, stage.depth(), saturated));
+                }
+            }
+        }
+        BillingProcessor.IPurchasePipelineListener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+        for (Transition transition : transitions) {
+            if (transition.saturated) {
+                listener.onStageSaturated(transition.stage, transition.depth);
+            } else {
+                listener.onStageRelieved(transition.stage, transition.depth);
+            }
+        }
+    }
+
+    private static final class Transition {
+        final String stage;
+        final int depth;
+        final boolean saturated;
+
+        Transition(String stage, int depth, boolean saturated) {
+            this.stage = stage;
+            this.depth = depth;
+            this.saturated = saturated;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Point-in-time metrics of the purchase pipeline of a {@link BillingProcessor}, see
+ * {@link BillingProcessor#getPurchasePipelineStats()}.
+ * <p>
+ * Purchase updates pass through the {@code verify}, {@code persist} and {@code dispatch} stages
+ * in order, each with its own queue. Updates repeating a purchase token already in the pipeline
+ * or recently dispatched are dropped on entry. Updates that find the first queue full wait in an
+ * overflow queue until it has room.
+ */
+public final class PurchasePipelineStats {
+
+    public static final class Stage {
+        private final String name;
+        private final int depth;
+        private final int maxDepth;
+        private final int capacity;
+        private final long processed;
+        private final long totalLatencyMillis;
+        private final long maxLatencyMillis;
+
+        Stage(String name, int depth, int maxDepth, int capacity, long processed,
+              long totalLatencyMillis, long maxLatencyMillis) {
+            this.name = name;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.capacity = capacity;
+            this.processed = processed;
+            this.totalLatencyMillis = totalLatencyMillis;
+            this.maxLatencyMillis = maxLatencyMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return purchases queued for or being processed by the stage
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return the highest depth seen so far
+         */
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+
+        /**
+         * @return the depth at which the stage stops accepting purchases from the previous one.
+         * The first stage queues updates up to four times this depth, then spills them to the
+         * overflow queue.
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @return purchases that have left the stage
+         */
+        public long getProcessed() {
+            return processed;
+        }
+
+        /**
+         * @return mean time from entering the stage's queue to leaving the stage
+         */
+        public long getAverageLatencyMillis() {
+            return processed > 0 ? totalLatencyMillis / processed : 0;
+        }
+
+        public long getMaxLatencyMillis() {
+            return maxLatencyMillis;
+        }
+
+        public boolean isSaturated() {
+            return depth >= capacity;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": depth " + depth + "/" + capacity + " (max " + maxDepth + "), " +
+                    processed + " processed, avg " + getAverageLatencyMillis() + " ms, max " +
+                    maxLatencyMillis + " ms";
+        }
+    }
+
+    private final List<Stage> stages;
+    private final long duplicatesDropped;
+    private final int overflowDepth;
+    private final long overflowed;
+
+    PurchasePipelineStats(List<Stage> stages, long duplicatesDropped, int overflowDepth, long overflowed) {
+        this.stages = Collections.unmodifiableList(stages);
+        this.duplicatesDropped = duplicatesDropped;
+        this.overflowDepth = overflowDepth;
+        this.overflowed = overflowed;
+    }
+
+    /**
+     * @return the stages in processing order
+     */
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    public Stage getStage(String name) {
+        for (Stage stage : stages) {
+            if (stage.getName().equals(name)) {
+                return stage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return purchase updates dropped because their token was already in the pipeline or
+     * recently dispatched
+     */
+    public long getDuplicatesDropped() {
+        return duplicatesDropped;
+    }
+
+    /**
+     * @return purchase updates waiting in the overflow queue for room in the verify queue
+     */
+    public int getOverflowDepth() {
+        return overflowDepth;
+    }
+
+    /**
+     * @return purchase updates that have been spilled to the overflow queue so far
+     */
+    public long getOverflowed() {
+        return overflowed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : stages) {
+            builder.append(stage).append('\n');
+        }
+        return builder.append(duplicatesDropped).append(" duplicates dropped, ")
+                .append(overflowDepth).append(" in overflow (").append(overflowed).append(" total)").toString();
+    }
+}
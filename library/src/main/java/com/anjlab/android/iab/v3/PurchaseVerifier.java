@@ -0,0 +1,48 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.List;
+
+/**
+ * Decides whether purchases reported by Google Play are genuine before {@link BillingProcessor}
+ * caches them and reports them to the app.
+ * <p>
+ * The default implementation, {@link SignatureVerifier}, checks the purchase signature on the
+ * device. Apps that validate receipts on their own backend can install a
+ * {@link BatchingPurchaseVerifier} or their own implementation with
+ * {@link BillingProcessor#setPurchaseVerifier(PurchaseVerifier)}.
+ */
+public interface PurchaseVerifier {
+
+    /**
+     * Verifies {@code purchases} and reports the outcome through {@code callback} exactly once,
+     * on any thread.
+     */
+    void verify(List<Purchase> purchases, Callback callback);
+
+    interface Callback {
+        /**
+         * @param valid      purchases confirmed to be genuine
+         * @param invalid    purchases confirmed to be forged or otherwise rejected
+         * @param unverified purchases whose status could not be determined, e.g. because the
+         *                   verification server timed out
+         */
+        void onVerified(List<Purchase> valid, List<Purchase> invalid, List<Purchase> unverified);
+    }
+}
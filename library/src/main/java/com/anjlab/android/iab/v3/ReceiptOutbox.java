@@ -0,0 +1,555 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Durable outbox that forwards purchase receipts to the app's server.
+ * <p>
+ * Receipts handed to {@link #enqueue(List)} are appended to a file before anything is sent, so
+ * they survive the app being offline or killed. A background thread drains the file in batches
+ * of up to {@code maxBatchSize} receipts, each sent through a {@link Transport} as one
+ * gzip-compressed JSON array. Failed batches are retried with exponential backoff, except
+ * batches the server rejects with a {@link RejectedBatchException}, which are appended to the
+ * {@code iabv3.outbox.rejected} file in the same directory for inspection and skipped. Tokens
+ * already queued, or among the last {@link #MAX_SENT_TOKENS} sent, are ignored. Delivery is at
+ * least once: a receipt may be sent again after a crash, or once its token has left the sent
+ * window, so the server should deduplicate by purchase token.
+ * <p>
+ * Install it with {@link BillingProcessor#setReceiptOutbox(ReceiptOutbox)} to forward every
+ * verified purchase and every purchase found by inventory refreshes. Use a single instance per
+ * process.
+ */
+public class ReceiptOutbox {
+    private static final String LOG_TAG = "iabv3";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LINE_DELIMITER = ">>>>>";
+    private static final String QUEUE_FILE = "iabv3.outbox";
+    private static final String OFFSET_FILE = "iabv3.outbox.offset";
+    private static final String SENT_FILE = "iabv3.outbox.sent";
+    private static final String REJECTED_FILE = "iabv3.outbox.rejected";
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    /**
+     * Number of sent purchase tokens remembered to skip repeats. Inventory refreshes enqueue
+     * every owned purchase, so this should exceed the number of purchases a user owns.
+     */
+    static final int MAX_SENT_TOKENS = 1024;
+    static final long INITIAL_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    /**
+     * Delivers a batch to the server. Called on a background thread.
+     */
+    public interface Transport {
+        /**
+         * @param gzippedJson a gzip-compressed JSON array of receipts, each with
+         *                    {@code productId}, {@code purchaseToken}, {@code originalJson} and
+         *                    {@code signature}
+         * @throws RejectedBatchException if the server will never accept the batch
+         * @throws IOException            if the batch was not accepted and should be retried
+         */
+        void send(byte[] gzippedJson) throws IOException;
+    }
+
+    /**
+     * Thrown by a {@link Transport} when the server rejected a batch for good, e.g. with an
+     * HTTP 4xx status, so sending it again would fail the same way.
+     */
+    public static class RejectedBatchException extends IOException {
+        public RejectedBatchException(String message) {
+            super(message);
+        }
+    }
+
+    private final File queueFile;
+    private final File offsetFile;
+    private final File sentFile;
+    private final File rejectedFile;
+    private final Transport transport;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService executor;
+    private final Random random = new Random();
+
+    // accessed on the executor thread only
+    private final Set<String> queuedTokens = new HashSet<>();
+    private final Set<String> sentTokens = new LinkedHashSet<>();
+    private int sentFileLines;
+    private long sentOffset;
+    private long backoffMillis;
+    private boolean drainScheduled;
+    private boolean loaded;
+
+    public ReceiptOutbox(Context context, Transport transport) {
+        this(context.getFilesDir(), transport, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public ReceiptOutbox(File directory, Transport transport, int maxBatchSize) {
+        this(directory, transport, maxBatchSize,
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "iabv3-outbox");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+    }
+
+    ReceiptOutbox(File directory, Transport transport, int maxBatchSize,
+                  ScheduledExecutorService executor) {
+        this.queueFile = new File(directory, QUEUE_FILE);
+        this.offsetFile = new File(directory, OFFSET_FILE);
+        this.sentFile = new File(directory, SENT_FILE);
+        this.rejectedFile = new File(directory, REJECTED_FILE);
+        this.transport = transport;
+        this.maxBatchSize = maxBatchSize;
+        this.executor = executor;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Persists receipts that were not forwarded yet and schedules a drain. Returns immediately.
+     * Receipts handed to an outbox that was {@link #shutdown()} are dropped; inventory
+     * refreshes hand owned purchases to the next instance again.
+     */
+    public void enqueue(final List<Purchase> purchases) {
+        if (purchases.isEmpty()) {
+            return;
+        }
+        final List<Purchase> copy = new ArrayList<>(purchases);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                ensureLoaded();
+                try {
+                    if (append(copy) > 0) {
+                        scheduleDrain(0);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to persist receipts", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Attempts to send queued receipts right away, resetting the retry backoff, e.g. when the
+     * device comes back online.
+     */
+    public void flush() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                backoffMillis = 0;
+                drain();
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "Receipt outbox is shut down");
+        }
+    }
+
+    /**
+     * Stops the background thread. Queued receipts stay on disk and are sent by the next
+     * instance.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        sentOffset = readOffset();
+        try {
+            IoUtils.truncatePartialLine(queueFile);
+            readTokens(sentFile, false);
+            readTokens(queueFile, true);
+            if (sentFileLines > sentTokens.size() * 2) {
+                rewriteSentFile();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to load receipt outbox", e);
+        }
+    }
+
+    private int append(List<Purchase> purchases) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        for (Purchase purchase : purchases) {
+            String token = purchase.getPurchaseToken();
+            if (token == null || sentTokens.contains(token) || !queuedTokens.add(token)) {
+                continue;
+            }
+            lines.append(token).append(LINE_DELIMITER)
+                    .append(purchase.getOriginalJson()).append(LINE_DELIMITER)
+                    .append(purchase.getSignature()).append('\n');
+            count++;
+        }
+        if (count > 0) {
+            FileOutputStream out = new FileOutputStream(queueFile, true);
+            try {
+                out.write(lines.toString().getBytes(UTF_8));
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+        }
+        return count;
+    }
+
+    private void scheduleDrain(long delayMillis) {
+        if (drainScheduled) {
+            return;
+        }
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drainScheduled = false;
+                    drain();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            drainScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // shut down, the next instance drains the queue
+        }
+    }
+
+    private void drain() {
+        ensureLoaded();
+        while (true) {
+            List<String> batch = new ArrayList<>();
+            long end;
+            try {
+                end = readBatch(batch);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to read receipt outbox", e);
+                return;
+            }
+            if (batch.isEmpty()) {
+                compact();
+                return;
+            }
+            try {
+                transport.send(encode(batch));
+            } catch (RejectedBatchException e) {
+                Log.e(LOG_TAG, "Server rejected " + batch.size() + " receipts, moving them to " + rejectedFile, e);
+                if (!reject(batch)) {
+                    return;
+                }
+            } catch (IOException e) {
+                backoffMillis = backoffMillis == 0 ? INITIAL_BACKOFF_MILLIS :
+                        Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+                long delay = backoffMillis / 2 + (long) (random.nextDouble() * backoffMillis / 2);
+                Log.w(LOG_TAG, "Failed to send receipts, retrying in " + delay + " ms", e);
+                scheduleDrain(delay);
+                return;
+            }
+            backoffMillis = 0;
+            try {
+                markSent(batch, end);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to record sent receipts", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads up to {@code maxBatchSize} queued lines starting at the sent offset.
+     *
+     * @return the file offset right after the last line read
+     */
+    private long readBatch(List<String> batch) throws IOException {
+        if (!queueFile.exists() || queueFile.length() <= sentOffset) {
+            return sentOffset;
+        }
+        RandomAccessFile in = new RandomAccessFile(queueFile, "r");
+        try {
+            in.seek(sentOffset);
+            long end = sentOffset;
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while (batch.size() < maxBatchSize && (read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read && batch.size() < maxBatchSize; i++) {
+                    if (buffer[i] == '\n') {
+                        batch.add(new String(line.toByteArray(), UTF_8));
+                        line.reset();
+                        end = in.getFilePointer() - read + i + 1;
+                    } else {
+                        line.write(buffer[i]);
+                    }
+                }
+            }
+            return end;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Appends a batch the server rejected to the rejected file, so it can be inspected without
+     * holding up the receipts queued behind it.
+     */
+    private boolean reject(List<String> batch) {
+        StringBuilder lines = new StringBuilder();
+        for (String line : batch) {
+            lines.append(line).append('\n');
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(rejectedFile, true);
+            try {
+                out.write(lines.toString().getBytes(UTF_8));
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to record rejected receipts", e);
+            return false;
+        }
+    }
+
+    private void markSent(List<String> batch, long end) throws IOException {
+        StringBuilder tokens = new StringBuilder();
+        for (String line : batch) {
+            int index = line.indexOf(LINE_DELIMITER);
+            if (index > 0) {
+                String token = line.substring(0, index);
+                tokens.append(token).append('\n');
+                queuedTokens.remove(token);
+                rememberSent(token);
+                sentFileLines++;
+            }
+        }
+        OutputStream out = new FileOutputStream(sentFile, true);
+        try {
+            out.write(tokens.toString().getBytes(UTF_8));
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        sentOffset = end;
+        writeOffset(sentOffset);
+        if (sentFileLines > MAX_SENT_TOKENS * 2) {
+            rewriteSentFile();
+        }
+    }
+
+    private void rememberSent(String token) {
+        sentTokens.remove(token);
+        sentTokens.add(token);
+        if (sentTokens.size() > MAX_SENT_TOKENS) {
+            Iterator<String> eldest = sentTokens.iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Replaces the sent file with the tokens still remembered, so it stays bounded.
+     */
+    private void rewriteSentFile() {
+        StringBuilder tokens = new StringBuilder();
+        for (String token : sentTokens) {
+            tokens.append(token).append('\n');
+        }
+        File target = new File(sentFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                out.write(tokens.toString().getBytes(UTF_8));
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+            if (!target.renameTo(sentFile)) {
+                throw new IOException("Failed to replace " + sentFile);
+            }
+            sentFileLines = sentTokens.size();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to compact sent receipts", e);
+        }
+    }
+
+    /**
+     * Truncates the queue once everything in it has been sent. The offset is reset first: a
+     * crash in between leaves the old queue to be sent again, never new receipts skipped.
+     */
+    private void compact() {
+        if (sentOffset > 0 && queueFile.length() <= sentOffset) {
+            if (!writeOffset(0)) {
+                return;
+            }
+            sentOffset = 0;
+            if (!queueFile.delete() && queueFile.exists()) {
+                Log.e(LOG_TAG, "Failed to truncate receipt outbox");
+                return;
+            }
+            queuedTokens.clear();
+        }
+    }
+
+    static byte[] encode(List<String> lines) throws IOException {
+        JSONArray receipts = new JSONArray();
+        try {
+            for (String line : lines) {
+                String[] parts = line.split(Pattern.quote(LINE_DELIMITER), -1);
+                if (parts.length < 3) {
+                    continue;
+                }
+                receipts.put(toJson(new Purchase(parts[1], parts[2])));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Failed to encode receipts: " + e.getMessage());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        try {
+            gzip.write(receipts.toString().getBytes(UTF_8));
+        } finally {
+            gzip.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the fields a server gets for {@code purchase}, both from the outbox and from
+     * {@link HttpVerificationTransport}
+     */
+    static JSONObject toJson(Purchase purchase) throws JSONException {
+        JSONObject receipt = new JSONObject();
+        receipt.put("productId", purchase.getSku());
+        receipt.put("purchaseToken", purchase.getPurchaseToken());
+        receipt.put("originalJson", purchase.getOriginalJson());
+        receipt.put("signature", purchase.getSignature());
+        return receipt;
+    }
+
+    private void readTokens(File file, boolean delimited) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int end = delimited ? line.indexOf(LINE_DELIMITER) : line.length();
+                if (end <= 0) {
+                    continue;
+                }
+                String token = line.substring(0, end);
+                if (delimited) {
+                    queuedTokens.add(token);
+                } else {
+                    rememberSent(token);
+                    sentFileLines++;
+                }
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private long readOffset() {
+        if (!offsetFile.exists()) {
+            return 0;
+        }
+        try {
+            RandomAccessFile in = new RandomAccessFile(offsetFile, "r");
+            try {
+                return in.readLong();
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read receipt outbox offset", e);
+            return 0;
+        }
+    }
+
+    private boolean writeOffset(long offset) {
+        try {
+            RandomAccessFile out = new RandomAccessFile(offsetFile, "rw");
+            try {
+                out.writeLong(offset);
+                out.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write receipt outbox offset", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+/**
+ * Controls how often {@link BillingProcessor} queries Google Play for owned purchases.
+ * <ul>
+ * <li>{@code minRefreshIntervalMillis} - calls to
+ * {@link BillingProcessor#loadOwnedPurchasesFromGoogle()} made within this interval after a
+ * successful sync are answered from the cache without a query.</li>
+ * <li>{@code maxStaleMillis} - once the cache is older than this, ownership reads such as
+ * {@link BillingProcessor#isPurchased(String)} still return the cached value right away but
+ * start a single background refresh.</li>
+ * </ul>
+ */
+public final class RefreshPolicy {
+    /**
+     * Always query Google Play and never refresh in the background. This is the default.
+     */
+    public static final RefreshPolicy ALWAYS = new RefreshPolicy(0, Long.MAX_VALUE);
+
+    private final long minRefreshIntervalMillis;
+    private final long maxStaleMillis;
+
+    public RefreshPolicy(long minRefreshIntervalMillis, long maxStaleMillis) {
+        if (minRefreshIntervalMillis < 0 || maxStaleMillis < 0) {
+            throw new IllegalArgumentException("Intervals must not be negative");
+        }
+        this.minRefreshIntervalMillis = minRefreshIntervalMillis;
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    public long getMinRefreshIntervalMillis() {
+        return minRefreshIntervalMillis;
+    }
+
+    public long getMaxStaleMillis() {
+        return maxStaleMillis;
+    }
+
+    boolean isFresh(long lastSyncTime, long now) {
+        return lastSyncTime > 0 && now >= lastSyncTime && now - lastSyncTime < minRefreshIntervalMillis;
+    }
+
+    boolean isStale(long lastSyncTime, long now) {
+        return lastSyncTime <= 0 || now < lastSyncTime || now - lastSyncTime > maxStaleMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "RefreshPolicy{minRefreshIntervalMillis=" + minRefreshIntervalMillis +
+                ", maxStaleMillis=" + maxStaleMillis + "}";
+    }
+}
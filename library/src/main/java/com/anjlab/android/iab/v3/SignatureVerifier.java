@@ -0,0 +1,64 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.text.TextUtils;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Verifies purchase signatures on the device with the app's license key. Reports synchronously.
+ * If the license key is {@code null} every purchase is considered valid.
+ */
+public class SignatureVerifier implements PurchaseVerifier {
+    private final String signatureBase64;
+
+    public SignatureVerifier(String licenseKey) {
+        signatureBase64 = licenseKey;
+    }
+
+    @Override
+    public void verify(List<Purchase> purchases, Callback callback) {
+        List<Purchase> valid = new ArrayList<>();
+        List<Purchase> invalid = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            if (isValid(purchase)) {
+                valid.add(purchase);
+            } else {
+                invalid.add(purchase);
+            }
+        }
+        callback.onVerified(valid, invalid, Collections.<Purchase>emptyList());
+    }
+
+    boolean isValid(Purchase purchase) {
+        try {
+            /*
+             * Skip the signature check if the provided License Key is NULL and return true in order to
+             * continue the purchase flow
+             */
+            return TextUtils.isEmpty(signatureBase64) ||
+                    Security.verifyPurchase(purchase.getSku(), signatureBase64,
+                            purchase.getOriginalJson(), purchase.getSignature());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
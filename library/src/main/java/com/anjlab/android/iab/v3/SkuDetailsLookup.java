@@ -0,0 +1,127 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-through access to the shared SkuDetails cache for single products.
+ * <p>
+ * A miss queries Google Play for that product at {@link BillingCallScheduler#PRIORITY_PURCHASE},
+ * as the caller is waiting to show a purchase flow. Concurrent lookups of the same product share
+ * one query and all receive its result, or a {@code SERVICE_TIMEOUT} if the query is abandoned.
+ */
+final class SkuDetailsLookup {
+
+    interface Callback {
+        /**
+         * @param details the product's details, or {@code null} if the query failed or Google
+         *                Play does not know the product
+         */
+        void onSkuDetails(SkuDetails details, BillingResult result);
+    }
+
+    private final BillingConnection connection;
+    private final BillingCallScheduler scheduler;
+    private final Map<String, SkuDetails> cache;
+    // guarded by itself
+    private final Map<String, List<Callback>> inFlight = new HashMap<>();
+
+    SkuDetailsLookup(BillingConnection connection, BillingCallScheduler scheduler,
+                     Map<String, SkuDetails> cache) {
+        this.connection = connection;
+        this.scheduler = scheduler;
+        this.cache = cache;
+    }
+
+    /**
+     * Calls {@code callback} with the details of {@code productId}: right away if cached,
+     * otherwise once the query completes.
+     */
+    void lookup(final String productId, final String purchaseType, Callback callback) {
+        SkuDetails cached = cache.get(productId);
+        if (cached != null) {
+            callback.onSkuDetails(cached, BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.OK)
+                    .build());
+            return;
+        }
+        final String key = purchaseType + ":" + productId;
+        synchronized (inFlight) {
+            List<Callback> waiting = inFlight.get(key);
+            if (waiting != null) {
+                waiting.add(callback);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(callback);
+            inFlight.put(key, waiting);
+        }
+        final SkuDetailsParams params = SkuDetailsParams.newBuilder()
+                .setSkusList(Collections.singletonList(productId))
+                .setType(purchaseType)
+                .build();
+        scheduler.execute(BillingCallScheduler.PRIORITY_PURCHASE, new BillingCallScheduler.Call() {
+            @Override
+            public void start(final BillingCallScheduler.Slot slot) {
+                connection.getClient().querySkuDetailsAsync(params, new SkuDetailsResponseListener() {
+                    @Override
+                    public void onSkuDetailsResponse(BillingResult result, List<SkuDetails> skuDetails) {
+                        slot.release();
+                        SkuDetails found = null;
+                        if (result.getResponseCode() == BillingClient.BillingResponseCode.OK && skuDetails != null) {
+                            for (SkuDetails details : skuDetails) {
+                                cache.put(details.getSku(), details);
+                                if (productId.equals(details.getSku())) {
+                                    found = details;
+                                }
+                            }
+                        }
+                        complete(key, found, result);
+                    }
+                });
+            }
+
+            @Override
+            public void onAbandoned() {
+                complete(key, null, BillingCallScheduler.abandonedResult());
+            }
+        });
+    }
+
+    private void complete(String key, SkuDetails details, BillingResult result) {
+        List<Callback> waiting;
+        synchronized (inFlight) {
+            waiting = inFlight.remove(key);
+        }
+        if (waiting == null) {
+            return;
+        }
+        for (Callback callback : waiting) {
+            callback.onSkuDetails(details, result);
+        }
+    }
+}
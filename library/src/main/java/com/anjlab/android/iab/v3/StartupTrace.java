@@ -0,0 +1,248 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.annotation.SuppressLint;
+import android.os.Build;
+import android.os.Trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timeline of the cold start of a {@link BillingProcessor}, from construction to the first
+ * {@link BillingProcessor.IBillingHandler} callback.
+ * <p>
+ * Timestamps come from {@link System#nanoTime()} and are reported relative to the start of the
+ * constructor. Only the first occurrence of every phase is recorded, so the trace stays small
+ * for the lifetime of the processor. When {@link #setSystemTraceEnabled(boolean)} is on, phases
+ * are also emitted as {@link Trace} sections and show up in system traces.
+ */
+public final class StartupTrace {
+    public static final String CONSTRUCTION = "construction";
+    public static final String LOAD_PRODUCTS_CACHE = "BillingCache.load(products)";
+    public static final String LOAD_SUBSCRIPTIONS_CACHE = "BillingCache.load(subscriptions)";
+    public static final String BUILD_CLIENT = "BillingClient.build";
+    public static final String START_CONNECTION = "BillingClient.startConnection";
+    public static final String CONNECTING = "connecting";
+    public static final String SETUP_FINISHED = "onBillingSetupFinished";
+    public static final String FIRST_QUERY_PURCHASES = "first queryPurchases";
+    public static final String FIRST_HANDLER_CALLBACK = "first handler callback";
+
+    private static final AtomicInteger sCookies = new AtomicInteger();
+    private static volatile boolean sSystemTraceEnabled;
+
+    /**
+     * Emits startup phases as {@link Trace} sections. Call before constructing a
+     * {@link BillingProcessor}. Requires API 18, asynchronous phases require API 29.
+     */
+    public static void setSystemTraceEnabled(boolean enabled) {
+        sSystemTraceEnabled = enabled;
+    }
+
+    /**
+     * A recorded phase. Instant events have a duration of {@code 0}.
+     */
+    public static final class Phase {
+        private final String name;
+        private final String threadName;
+        private final long startNanos;
+        private final long durationNanos;
+
+        Phase(String name, String threadName, long startNanos, long durationNanos) {
+            this.name = name;
+            this.threadName = threadName;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        /**
+         * @return nanoseconds from the start of the {@link BillingProcessor} constructor
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%8.2f ms +%7.2f ms  %s [%s]",
+                    startNanos / 1e6, durationNanos / 1e6, name, threadName);
+        }
+    }
+
+    /**
+     * An open phase, closed with {@link #end()}.
+     */
+    final class Span {
+        private final String name;
+        private final long start;
+        private final boolean synchronous;
+        private final boolean systemTrace;
+        private final int cookie;
+
+        Span(String name, boolean synchronous) {
+            this.name = name;
+            this.synchronous = synchronous;
+            this.systemTrace = sSystemTraceEnabled;
+            this.cookie = sCookies.incrementAndGet();
+            this.start = System.nanoTime();
+            if (systemTrace) {
+                beginSystemSection(name, synchronous, cookie);
+            }
+        }
+
+        void end() {
+            long end = System.nanoTime();
+            if (systemTrace) {
+                endSystemSection(name, synchronous, cookie);
+            }
+            record(new Phase(name, Thread.currentThread().getName(), start - origin, end - start));
+        }
+    }
+
+    private final long origin = System.nanoTime();
+    private final List<Phase> phases = new ArrayList<>();
+    private final Set<String> started = new HashSet<>();
+
+    StartupTrace() {
+    }
+
+    /**
+     * Starts a phase that begins and ends on the current thread.
+     *
+     * @return the span, or {@code null} if the phase was already recorded
+     */
+    Span begin(String name) {
+        return claim(name) ? new Span(name, true) : null;
+    }
+
+    /**
+     * Starts a phase that may end on another thread.
+     *
+     * @return the span, or {@code null} if the phase was already recorded
+     */
+    Span beginAsync(String name) {
+        return claim(name) ? new Span(name, false) : null;
+    }
+
+    static void end(Span span) {
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    /**
+     * Records an instant event, unless it was already recorded.
+     */
+    void mark(String name) {
+        if (claim(name)) {
+            record(new Phase(name, Thread.currentThread().getName(), System.nanoTime() - origin, 0));
+        }
+    }
+
+    /**
+     * @return the recorded phases ordered by start time
+     */
+    public List<Phase> getPhases() {
+        synchronized (phases) {
+            return Collections.unmodifiableList(new ArrayList<>(phases));
+        }
+    }
+
+    /**
+     * @return the recorded phase with the given name, or {@code null}
+     */
+    public Phase getPhase(String name) {
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                if (phase.getName().equals(name)) {
+                    return phase;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return milliseconds from construction to the first handler callback, or {@code -1} if no
+     * callback was made yet
+     */
+    public long getTimeToFirstCallbackMillis() {
+        Phase phase = getPhase(FIRST_HANDLER_CALLBACK);
+        return phase != null ? TimeUnit.NANOSECONDS.toMillis(phase.getStartNanos()) : -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("BillingProcessor startup:");
+        for (Phase phase : getPhases()) {
+            builder.append('\n').append(phase);
+        }
+        return builder.toString();
+    }
+
+    private boolean claim(String name) {
+        synchronized (started) {
+            return started.add(name);
+        }
+    }
+
+    private void record(Phase phase) {
+        synchronized (phases) {
+            int index = phases.size();
+            while (index > 0 && phases.get(index - 1).getStartNanos() > phase.getStartNanos()) {
+                index--;
+            }
+            phases.add(index, phase);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static void beginSystemSection(String name, boolean synchronous, int cookie) {
+        if (synchronous && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        } else if (!synchronous && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static void endSystemSection(String name, boolean synchronous, int cookie) {
+        if (synchronous && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        } else if (!synchronous && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.util.Log;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Schedules subscription refreshes around expected renewal boundaries instead of polling.
+ * <p>
+ * For every tracked subscription the renewal boundaries are derived from its purchaseTime and
+ * billing period: boundary n is the purchaseTime plus n periods, so a subscription bought on
+ * January 31st renews on the last day of each shorter month and on the 31st again after. A
+ * refresh is due shortly after the next boundary, when Google Play has had a
+ * chance to renew or expire it, and again when the grace period after the last boundary ends.
+ * All subscriptions share a single timer armed for the earliest deadline; when it fires the
+ * owner refreshes and calls {@link #track(Map)} again, which re-arms the timer. There is one
+ * scheduler per process, owned by {@link BillingConnection}.
+ */
+class SubscriptionRefreshScheduler {
+    private static final String LOG_TAG = "iabv3";
+    private static final Pattern PERIOD_PATTERN =
+            Pattern.compile("P(?:(\\d+)Y)?(?:(\\d+)M)?(?:(\\d+)W)?(?:(\\d+)D)?");
+
+    static final long RENEWAL_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    static final long DEFAULT_GRACE_PERIOD_MILLIS = TimeUnit.DAYS.toMillis(3);
+
+    static final class Entry {
+        final long purchaseTime;
+        final String period;
+
+        Entry(long purchaseTime, String period) {
+            this.purchaseTime = purchaseTime;
+            this.period = period;
+        }
+    }
+
+    private final ScheduledExecutorService timer;
+    private final Clock clock;
+    private final Runnable refresh;
+    private final Runnable fire = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SubscriptionRefreshScheduler.this) {
+                pending = null;
+                nextDeadline = Long.MAX_VALUE;
+            }
+            refresh.run();
+        }
+    };
+
+    private Map<String, Entry> entries = new HashMap<>();
+    private long gracePeriodMillis = DEFAULT_GRACE_PERIOD_MILLIS;
+    private ScheduledFuture<?> pending;
+    private volatile long nextDeadline = Long.MAX_VALUE;
+
+    /**
+     * @param refresh called on {@code timer} when a refresh is due, must not block
+     */
+    SubscriptionRefreshScheduler(ScheduledExecutorService timer, Clock clock, Runnable refresh) {
+        this.timer = timer;
+        this.clock = clock;
+        this.refresh = refresh;
+    }
+
+    synchronized void setGracePeriodMillis(long gracePeriodMillis) {
+        this.gracePeriodMillis = gracePeriodMillis;
+        reschedule(clock.currentTimeMillis());
+    }
+
+    /**
+     * Replaces the tracked subscriptions and re-arms the timer.
+     */
+    synchronized void track(Map<String, Entry> subscriptions) {
+        entries = new HashMap<>(subscriptions);
+        reschedule(clock.currentTimeMillis());
+    }
+
+    synchronized void cancel() {
+        entries = new HashMap<>();
+        disarm();
+    }
+
+    /**
+     * @return the wall clock time of the next scheduled refresh, or {@link Long#MAX_VALUE} if
+     * nothing is scheduled
+     */
+    long getNextDeadline() {
+        return nextDeadline;
+    }
+
+    /**
+     * The timer runs on uptime, which does not advance while the device sleeps. Callers that read
+     * subscription state call this to run a refresh that became due in the meantime.
+     */
+    void checkOverdue(long now) {
+        if (now < nextDeadline) {
+            return;
+        }
+        synchronized (this) {
+            if (now < nextDeadline) {
+                return;
+            }
+            disarm();
+        }
+        try {
+            timer.execute(fire);
+        } catch (RejectedExecutionException e) {
+            Log.d(LOG_TAG, "Subscription refresh skipped, connection closed");
+        }
+    }
+
+    private void reschedule(long now) {
+        long deadline = Long.MAX_VALUE;
+        for (Entry entry : entries.values()) {
+            deadline = Math.min(deadline, nextRefreshTime(entry, now));
+        }
+        if (deadline == nextDeadline && pending != null) {
+            return;
+        }
+        disarm();
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+        try {
+            pending = timer.schedule(fire, Math.max(0, deadline - now), TimeUnit.MILLISECONDS);
+            nextDeadline = deadline;
+        } catch (RejectedExecutionException e) {
+            Log.d(LOG_TAG, "Subscription refresh not scheduled, connection closed");
+        }
+    }
+
+    private void disarm() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        nextDeadline = Long.MAX_VALUE;
+    }
+
+    private long nextRefreshTime(Entry entry, long now) {
+        long previous = entry.purchaseTime;
+        long next = advance(entry.purchaseTime, entry.period, 1);
+        if (next <= previous) {
+            return Long.MAX_VALUE;
+        }
+        for (int n = 2; next <= now; n++) {
+            previous = next;
+            next = advance(entry.purchaseTime, entry.period, n);
+        }
+        long graceEnd = previous + gracePeriodMillis + RENEWAL_MARGIN_MILLIS;
+        if (previous > entry.purchaseTime && graceEnd > now) {
+            return Math.min(graceEnd, next + RENEWAL_MARGIN_MILLIS);
+        }
+        return next + RENEWAL_MARGIN_MILLIS;
+    }
+
+    /**
+     * Advances {@code time} by {@code count} ISO 8601 billing periods such as {@code P1W},
+     * {@code P1M} or {@code P1Y}, in one step so that days clamped at the end of a short month
+     * do not carry over to later periods.
+     *
+     * @return the advanced time, or {@code time} itself if the period can not be parsed
+     */
+    static long advance(long time, String period, int count) {
+        if (period == null) {
+            return time;
+        }
+        Matcher matcher = PERIOD_PATTERN.matcher(period);
+        if (!matcher.matches()) {
+            return time;
+        }
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time);
+        calendar.add(Calendar.YEAR, count * parseGroup(matcher, 1));
+        calendar.add(Calendar.MONTH, count * parseGroup(matcher, 2));
+        calendar.add(Calendar.DAY_OF_MONTH, count * (7 * parseGroup(matcher, 3) + parseGroup(matcher, 4)));
+        return calendar.getTimeInMillis();
+    }
+
+    private static int parseGroup(Matcher matcher, int group) {
+        String value = matcher.group(group);
+        return value != null ? Integer.parseInt(value) : 0;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.Purchase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchingPurchaseVerifierTest {
+    private static final long MAX_DELAY_MILLIS = 200;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private VirtualClock executor;
+    private VirtualClock timer;
+    private final List<List<Purchase>> requests = new ArrayList<>();
+    private BatchingPurchaseVerifier.Transport transport;
+    private BatchingPurchaseVerifier verifier;
+
+    @Before
+    public void setUp() {
+        executor = new VirtualClock();
+        timer = new VirtualClock();
+        transport = new BatchingPurchaseVerifier.Transport() {
+            @Override
+            public Map<String, Boolean> verify(List<Purchase> purchases) {
+                return approve(purchases);
+            }
+        };
+        verifier = new BatchingPurchaseVerifier(new BatchingPurchaseVerifier.Transport() {
+            @Override
+            public Map<String, Boolean> verify(List<Purchase> purchases) throws IOException {
+                requests.add(purchases);
+                return transport.verify(purchases);
+            }
+        }, 20, MAX_DELAY_MILLIS, TIMEOUT_MILLIS, 256, executor, timer);
+    }
+
+    @Test
+    public void batchesPurchasesFromSeveralCalls() {
+        Result first = new Result();
+        Result second = new Result();
+        verifier.verify(Collections.singletonList(purchase("a")), first);
+        verifier.verify(Collections.singletonList(purchase("b")), second);
+
+        timer.advanceBy(MAX_DELAY_MILLIS);
+        executor.runUntilIdle(10);
+
+        assertEquals(1, requests.size());
+        assertEquals(1, first.valid.size());
+        assertEquals(1, second.valid.size());
+    }
+
+    @Test
+    public void joinsRequestAlreadyInFlight() {
+        final Result joined = new Result();
+        transport = new BatchingPurchaseVerifier.Transport() {
+            @Override
+            public Map<String, Boolean> verify(List<Purchase> purchases) {
+                // the same purchase shows up again while its request is in flight
+                verifier.verify(Collections.singletonList(purchase("a")), joined);
+                timer.advanceBy(MAX_DELAY_MILLIS);
+                return approve(purchases);
+            }
+        };
+        Result first = new Result();
+        verifier.verify(Collections.singletonList(purchase("a")), first);
+
+        timer.advanceBy(MAX_DELAY_MILLIS);
+        executor.runUntilIdle(10);
+
+        assertEquals(1, requests.size());
+        assertEquals(1, first.valid.size());
+        assertEquals(1, joined.valid.size());
+    }
+
+    @Test
+    public void timesOutWhileRequestIsStuck() {
+        Result result = new Result();
+        verifier.verify(Collections.singletonList(purchase("a")), result);
+
+        // the request thread never gets to run, the timer still fires
+        timer.advanceBy(TIMEOUT_MILLIS);
+
+        assertEquals(1, result.calls);
+        assertEquals(1, result.unverified.size());
+    }
+
+    private static Map<String, Boolean> approve(List<Purchase> purchases) {
+        Map<String, Boolean> verdicts = new HashMap<>();
+        for (Purchase purchase : purchases) {
+            verdicts.put(purchase.getPurchaseToken(), true);
+        }
+        return verdicts;
+    }
+
+    private static Purchase purchase(String sku) {
+        return ScriptedBillingClient.newPurchase(sku, sku + "-token", 0, false);
+    }
+
+    private static final class Result implements PurchaseVerifier.Callback {
+        int calls;
+        List<Purchase> valid;
+        List<Purchase> unverified;
+
+        @Override
+        public void onVerified(List<Purchase> valid, List<Purchase> invalid, List<Purchase> unverified) {
+            calls++;
+            this.valid = valid;
+            this.unverified = unverified;
+        }
+    }
+}
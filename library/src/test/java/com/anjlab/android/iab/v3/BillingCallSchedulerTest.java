@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BillingCallSchedulerTest {
+    private VirtualClock executor;
+    private VirtualClock timer;
+    private BillingCallScheduler scheduler;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        executor = new VirtualClock();
+        timer = new VirtualClock();
+        scheduler = new BillingCallScheduler(executor, timer, timer, 1);
+    }
+
+    @Test
+    public void startsQueuedCallsByPriority() {
+        RecordingCall first = new RecordingCall("first");
+        scheduler.execute(BillingCallScheduler.PRIORITY_INVENTORY, first);
+        scheduler.execute(BillingCallScheduler.PRIORITY_CATALOG, new RecordingCall("catalog"));
+        scheduler.execute(BillingCallScheduler.PRIORITY_INVENTORY, new RecordingCall("inventory"));
+        scheduler.execute(BillingCallScheduler.PRIORITY_CONSUME, new RecordingCall("consume"));
+
+        assertEquals(listOf("start first"), events);
+        first.slot.release();
+
+        assertEquals(listOf("start first", "start consume"), events);
+    }
+
+    @Test
+    public void abandonsCallAfterTimeoutOnTimer() {
+        RecordingCall stuck = new RecordingCall("stuck");
+        scheduler.execute(BillingCallScheduler.PRIORITY_INVENTORY, stuck);
+        scheduler.execute(BillingCallScheduler.PRIORITY_INVENTORY, new RecordingCall("next"));
+
+        timer.advanceBy(BillingCallScheduler.CALL_TIMEOUT_MILLIS - 1);
+        assertEquals(listOf("start stuck"), events);
+
+        timer.advanceBy(1);
+        assertTrue(events.contains("abandon stuck"));
+        assertTrue(events.contains("start next"));
+
+        // a late response must not free a second slot
+        stuck.slot.release();
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    public void abandonsCallThatFailsToStart() {
+        scheduler.execute(BillingCallScheduler.PRIORITY_INVENTORY, new RecordingCall("broken") {
+            @Override
+            public void start(BillingCallScheduler.Slot slot) {
+                super.start(slot);
+                throw new IllegalStateException("client closed");
+            }
+        });
+        scheduler.execute(BillingCallScheduler.PRIORITY_INVENTORY, new RecordingCall("next"));
+
+        assertEquals(listOf("start broken", "abandon broken", "start next"), events);
+    }
+
+    @Test
+    public void submitRunsOnExecutorWithoutBlockingForSlot() {
+        RecordingCall busy = new RecordingCall("busy");
+        scheduler.execute(BillingCallScheduler.PRIORITY_PURCHASE, busy);
+        final List<String> results = new ArrayList<>();
+        scheduler.submit(BillingCallScheduler.PRIORITY_INVENTORY, new Callable<String>() {
+            @Override
+            public String call() {
+                return "inventory";
+            }
+        }, new BillingCallScheduler.Callback<String>() {
+            @Override
+            public void onComplete(@Nullable String result) {
+                results.add(result);
+            }
+        });
+
+        // queued behind the busy slot, nothing waits on the executor
+        assertEquals(0, executor.pendingTasks());
+        busy.slot.release();
+        assertEquals(1, executor.pendingTasks());
+        executor.runUntilIdle(10);
+
+        assertEquals(listOf("inventory"), results);
+        assertTrue(scheduler.isIdle());
+    }
+
+    @Test
+    public void submitReportsNullWhenAbandoned() {
+        final List<String> results = new ArrayList<>();
+        scheduler.submit(BillingCallScheduler.PRIORITY_INVENTORY, new Callable<String>() {
+            @Override
+            public String call() {
+                return "late";
+            }
+        }, new BillingCallScheduler.Callback<String>() {
+            @Override
+            public void onComplete(@Nullable String result) {
+                results.add(result);
+            }
+        });
+
+        // the executor is stuck, so the call never runs before its timeout
+        timer.advanceBy(BillingCallScheduler.CALL_TIMEOUT_MILLIS);
+        assertEquals(1, results.size());
+        assertNull(results.get(0));
+
+        executor.runUntilIdle(10);
+        assertEquals(1, results.size());
+        assertTrue(scheduler.isIdle());
+    }
+
+    private static List<String> listOf(String... items) {
+        List<String> list = new ArrayList<>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    private class RecordingCall implements BillingCallScheduler.Call {
+        final String name;
+        BillingCallScheduler.Slot slot;
+
+        RecordingCall(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void start(BillingCallScheduler.Slot slot) {
+            this.slot = slot;
+            events.add("start " + name);
+        }
+
+        @Override
+        public void onAbandoned() {
+            events.add("abandon " + name);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Runs {@link BillingProcessor} against a {@link ScriptedBillingClient} on a
+ * {@link VirtualClock}, for deterministic JVM tests of timing-sensitive behavior.
+ * <p>
+ * The clock serves as the background executor, the timer, the main thread, the client's
+ * response scheduler and the source of time, so everything runs on the test thread and only
+ * when the clock is advanced. The same seed always gives the same latencies and faults. Android framework
+ * classes, such as shared preferences and {@code org.json}, need a real implementation, e.g.
+ * Robolectric:
+ * <pre>
+ * BillingHarness harness = new BillingHarness(context, 42);
+ * harness.getClient().setLatency(FaultSchedule.Operation.QUERY_PURCHASES, LatencyModel.fixed(3000));
+ * harness.getClient().setFaults(new FaultSchedule()
+ *         .disconnectDuringCall(FaultSchedule.Operation.CONSUME, 1));
+ * BillingHarness.RecordingHandler handler = new BillingHarness.RecordingHandler(harness.getClock());
+ * BillingProcessor processor = harness.newProcessor(handler);
+ * long elapsed = harness.runUntil(handler.hasEvent("onBillingInitialized"), 10000);
+ * harness.getLatencies().record("initialize", elapsed);
+ * ...
+ * harness.close();
+ * </pre>
+ * Only one harness may be open at a time, as the billing connection is shared per process.
+ */
+final class BillingHarness {
+
+    interface Condition {
+        boolean isMet();
+    }
+
+    private final Context context;
+    private final VirtualClock clock = new VirtualClock();
+    private final ScriptedBillingClient client;
+    private final LatencyRecorder latencies = new LatencyRecorder();
+    private final List<BillingProcessor> processors = new ArrayList<>();
+    private PurchasesUpdatedListener purchasesUpdatedListener;
+
+    BillingHarness(Context context, long seed) {
+        this.context = context;
+        client = new ScriptedBillingClient(clock, new Random(seed), new PurchasesUpdatedListener() {
+            @Override
+            public void onPurchasesUpdated(BillingResult result, @Nullable List<Purchase> purchases) {
+                if (purchasesUpdatedListener != null) {
+                    purchasesUpdatedListener.onPurchasesUpdated(result, purchases);
+                }
+            }
+        });
+        BillingConnection.setEnvironment(new BillingConnection.Environment() {
+            @Override
+            public BillingClient createClient(Context context, PurchasesUpdatedListener listener) {
+                purchasesUpdatedListener = listener;
+                return client;
+            }
+
+            @Override
+            public ScheduledExecutorService createExecutor() {
+                return clock;
+            }
+
+            @Override
+            public ScheduledExecutorService createTimer() {
+                return clock;
+            }
+
+            @Override
+            public Executor createMainThreadExecutor() {
+                return clock;
+            }
+
+            @Override
+            public Clock createClock() {
+                return clock;
+            }
+
+            @Override
+            public boolean isAppVisible(Context context) {
+                return false;
+            }
+        });
+    }
+
+    VirtualClock getClock() {
+        return clock;
+    }
+
+    ScriptedBillingClient getClient() {
+        return client;
+    }
+
+    LatencyRecorder getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Creates a processor that starts connecting right away. No license key is used, so every
+     * purchase passes signature verification.
+     */
+    BillingProcessor newProcessor(BillingProcessor.IBillingHandler handler) {
+        BillingProcessor processor = new BillingProcessor(context, null, handler);
+        processors.add(processor);
+        return processor;
+    }
+
+    /**
+     * Runs tasks until {@code condition} holds or {@code timeoutMillis} of virtual time pass.
+     *
+     * @return the virtual time it took, or {@code -1} on timeout
+     */
+    long runUntil(Condition condition, long timeoutMillis) {
+        long start = clock.now();
+        long deadline = start + timeoutMillis;
+        while (!condition.isMet()) {
+            if (clock.nextTaskTime() > deadline || !clock.runNext()) {
+                clock.advanceTo(deadline);
+                return condition.isMet() ? clock.now() - start : -1;
+            }
+        }
+        return clock.now() - start;
+    }
+
+    /**
+     * Releases every processor created by this harness and restores the real environment.
+     */
+    void close() {
+        for (BillingProcessor processor : processors) {
+            processor.release();
+        }
+        processors.clear();
+        BillingConnection.setEnvironment(null);
+    }
+
+    /**
+     * {@link BillingProcessor.IBillingHandler} that records each callback with its virtual time.
+     */
+    static class RecordingHandler implements BillingProcessor.IBillingHandler {
+
+        static final class Event {
+            final String name;
+            final long time;
+            final Object payload;
+
+            Event(String name, long time, Object payload) {
+                this.name = name;
+                this.time = time;
+                this.payload = payload;
+            }
+        }
+
+        private final VirtualClock clock;
+        private final List<Event> events = new ArrayList<>();
+
+        RecordingHandler(VirtualClock clock) {
+            this.clock = clock;
+        }
+
+        List<Event> getEvents() {
+            return events;
+        }
+
+        int count(String name) {
+            int count = 0;
+            for (Event event : events) {
+                if (event.name.equals(name)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        Condition hasEvent(final String name) {
+            return hasEvents(name, 1);
+        }
+
+        Condition hasEvents(final String name, final int count) {
+            return new Condition() {
+                @Override
+                public boolean isMet() {
+                    return count(name) >= count;
+                }
+            };
+        }
+
+        private void record(String name, Object payload) {
+            events.add(new Event(name, clock.now(), payload));
+        }
+
+        @Override
+        public void onProductPurchased(@Nullable Purchase details) {
+            record("onProductPurchased", details);
+        }
+
+        @Override
+        public void onPurchaseHistoryRestored(List<String> products) {
+            record("onPurchaseHistoryRestored", products);
+        }
+
+        @Override
+        public void onBillingError(BillingResult result) {
+            record("onBillingError", result);
+        }
+
+        @Override
+        public void onBillingInitialized() {
+            record("onBillingInitialized", null);
+        }
+
+        @Override
+        public void onConsumeSuccess(Purchase transaction) {
+            record("onConsumeSuccess", transaction);
+        }
+
+        @Override
+        public void onAcknowledgeSuccess(Purchase transaction) {
+            record("onAcknowledgeSuccess", transaction);
+        }
+
+        @Override
+        public void onQuerySkuDetails(List<SkuDetails> skuDetails) {
+            record("onQuerySkuDetails", skuDetails);
+        }
+    }
+}
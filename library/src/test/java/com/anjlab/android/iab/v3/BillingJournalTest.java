@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class BillingJournalTest {
+    private static final int CAPACITY = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.newFolder(), "journal");
+    }
+
+    @Test
+    public void recordsPurchaseFlow() throws IOException {
+        BillingJournal journal = open(CAPACITY);
+        Purchase purchase = purchase("coins", 1);
+        journal.recordPurchaseUpdate(BillingClient.BillingResponseCode.OK, purchase);
+        journal.recordVerification(purchase, BillingJournal.VERIFICATION_VALID);
+        journal.recordConsume(BillingClient.BillingResponseCode.OK, purchase);
+
+        List<BillingJournal.Entry> entries = journal.read();
+        assertEquals(3, entries.size());
+        assertEquals("PURCHASE_UPDATE", entries.get(0).getType());
+        assertEquals(Arrays.asList("coins", "GPA.coins-1", "1"), entries.get(0).getFields());
+        assertEquals("VERIFICATION", entries.get(1).getType());
+        assertEquals(Arrays.asList("coins", "GPA.coins-1", "valid"), entries.get(1).getFields());
+        assertEquals("CONSUME", entries.get(2).getType());
+        assertEquals(VirtualClock.EPOCH_MILLIS, entries.get(2).getTime());
+    }
+
+    @Test
+    public void keepsNewestRecordsAfterWrapping() throws IOException {
+        BillingJournal journal = open(CAPACITY);
+        for (int i = 0; i < 1000; i++) {
+            journal.recordConsume(BillingClient.BillingResponseCode.OK, purchase("coins", i));
+        }
+
+        List<BillingJournal.Entry> entries = journal.read();
+        assertTrue(entries.size() > 10);
+        assertTrue(entries.size() < 1000);
+        assertEquals("GPA.coins-999", entries.get(entries.size() - 1).getFields().get(1));
+        assertInOrder(entries);
+    }
+
+    @Test
+    public void recordsNeverSpanTheEndOfTheRing() throws IOException {
+        BillingJournal journal = open(CAPACITY);
+        // product ids of every length, so records reach the end of the ring at every offset
+        StringBuilder sku = new StringBuilder("coins");
+        for (int i = 0; i < 500; i++) {
+            sku.append('s');
+            if (sku.length() > 100) {
+                sku.setLength(5);
+            }
+            journal.recordConsume(BillingClient.BillingResponseCode.OK, purchase(sku.toString(), i));
+            List<BillingJournal.Entry> entries = journal.read();
+            assertEquals("GPA." + sku + "-" + i, entries.get(entries.size() - 1).getFields().get(1));
+            assertInOrder(entries);
+        }
+    }
+
+    @Test
+    public void reopensWrappedJournal() throws IOException {
+        BillingJournal journal = open(CAPACITY);
+        for (int i = 0; i < 300; i++) {
+            journal.recordConsume(BillingClient.BillingResponseCode.OK, purchase("coins", i));
+        }
+        List<BillingJournal.Entry> before = journal.read();
+
+        // the process dies, the mapping was written back
+        List<BillingJournal.Entry> after = open(CAPACITY).read();
+        assertEquals(before.size(), after.size());
+        assertEquals("GPA.coins-299", after.get(after.size() - 1).getFields().get(1));
+        assertInOrder(after);
+    }
+
+    @Test
+    public void startsOverWithAnotherCapacity() throws IOException {
+        open(CAPACITY).recordConsume(BillingClient.BillingResponseCode.OK, purchase("coins", 1));
+
+        assertTrue(open(CAPACITY * 2).read().isEmpty());
+    }
+
+    @Test
+    public void exportsOneLinePerRecord() throws IOException {
+        BillingJournal journal = open(CAPACITY);
+        journal.recordError(BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE, "Service\tis\nunavailable");
+
+        StringWriter out = new StringWriter();
+        journal.export(out);
+        assertEquals("2021-01-01T00:00:00.000Z\tERROR\t2\tService is unavailable\n", out.toString());
+    }
+
+    private BillingJournal open(int capacity) throws IOException {
+        BillingJournal journal = new BillingJournal(file, capacity);
+        journal.setClock(new VirtualClock());
+        return journal;
+    }
+
+    private static Purchase purchase(String sku, int order) {
+        return ScriptedBillingClient.newPurchase(sku, sku + "-" + order, VirtualClock.EPOCH_MILLIS, false);
+    }
+
+    private static void assertInOrder(List<BillingJournal.Entry> entries) {
+        int last = -1;
+        for (BillingJournal.Entry entry : entries) {
+            String orderId = entry.getFields().get(1);
+            int order = Integer.parseInt(orderId.substring(orderId.lastIndexOf('-') + 1));
+            assertEquals(last < 0 ? order : last + 1, order);
+            last = order;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class BillingProcessorSmokeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BillingHarness harness;
+    private BillingHarness.RecordingHandler handler;
+
+    @Before
+    public void setUp() {
+        harness = new BillingHarness(ApplicationProvider.getApplicationContext(), 42);
+        ScriptedBillingClient client = harness.getClient();
+        client.setLatency(FaultSchedule.Operation.START_CONNECTION, LatencyModel.uniform(100, 300));
+        client.setLatency(FaultSchedule.Operation.QUERY_PURCHASES, LatencyModel.logNormal(200, 0.5).cappedAt(2000));
+        client.setLatency(FaultSchedule.Operation.CONSUME, LatencyModel.fixed(400));
+        handler = new BillingHarness.RecordingHandler(harness.getClock());
+    }
+
+    @After
+    public void tearDown() {
+        harness.close();
+    }
+
+    @Test
+    public void connectsPurchasesAndConsumes() {
+        final BillingProcessor processor = harness.newProcessor(handler);
+        long connect = harness.runUntil(handler.hasEvent("onBillingInitialized"), 10000);
+        assertTrue(connect >= 100);
+
+        harness.getClient().completePurchase(BillingClient.SkuType.INAPP, purchase("coins"), 1000);
+        long purchase = harness.runUntil(handler.hasEvent("onProductPurchased"), 10000);
+        assertTrue(purchase >= 1000);
+        assertTrue(processor.isPurchased("coins"));
+
+        processor.consumePurchase("coins");
+        long consume = harness.runUntil(handler.hasEvent("onConsumeSuccess"), 10000);
+        assertEquals(400, consume);
+        assertFalse(processor.isPurchased("coins"));
+        assertEquals(0, handler.count("onBillingError"));
+    }
+
+    @Test
+    public void journalsPurchaseAndConsume() throws Exception {
+        BillingJournal journal = new BillingJournal(folder.newFile(), 4096);
+        final BillingProcessor processor = harness.newProcessor(handler);
+        processor.setJournal(journal);
+        assertTrue(harness.runUntil(handler.hasEvent("onBillingInitialized"), 10000) >= 0);
+
+        harness.getClient().completePurchase(BillingClient.SkuType.INAPP, purchase("coins"), 1000);
+        assertTrue(harness.runUntil(handler.hasEvent("onProductPurchased"), 10000) >= 0);
+        processor.consumePurchase("coins");
+        assertTrue(harness.runUntil(handler.hasEvent("onConsumeSuccess"), 10000) >= 0);
+
+        List<String> types = new ArrayList<>();
+        for (BillingJournal.Entry entry : journal.read()) {
+            types.add(entry.getType());
+        }
+        assertEquals(Arrays.asList("PURCHASE_UPDATE", "VERIFICATION", "CONSUME"), types);
+        assertEquals(harness.getClock().currentTimeMillis(), journal.read().get(2).getTime());
+    }
+
+    @Test
+    public void listsOwnedProductsInCopies() {
+        BillingProcessor processor = harness.newProcessor(handler);
+        assertTrue(harness.runUntil(handler.hasEvent("onBillingInitialized"), 10000) >= 0);
+        harness.getClient().completePurchase(BillingClient.SkuType.INAPP, purchase("coins"), 1000);
+        assertTrue(harness.runUntil(handler.hasEvent("onProductPurchased"), 10000) >= 0);
+
+        List<String> owned = processor.listOwnedProducts();
+        owned.add("gems");
+        assertEquals(Collections.singletonList("coins"), processor.listOwnedProducts());
+    }
+
+    @Test
+    public void recoversFromFaults() {
+        harness.getClient().setFaults(new FaultSchedule()
+                .failCall(FaultSchedule.Operation.QUERY_PURCHASES, 1,
+                        BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE)
+                .disconnectDuringCall(FaultSchedule.Operation.CONSUME, 1));
+        final BillingProcessor processor = harness.newProcessor(handler);
+        assertTrue(harness.runUntil(handler.hasEvent("onBillingInitialized"), 10000) >= 0);
+
+        harness.getClient().completePurchase(BillingClient.SkuType.INAPP, purchase("coins"), 1000);
+        assertTrue(harness.runUntil(handler.hasEvent("onProductPurchased"), 10000) >= 0);
+
+        // Google Play consumes the purchase, but the answer is lost with the connection
+        processor.consumePurchase("coins");
+        assertTrue(harness.runUntil(handler.hasEvent("onBillingError"), 10000) >= 0);
+
+        // reconnecting replays the request, which settles the cache
+        processor.initialize();
+        long recovery = harness.runUntil(new BillingHarness.Condition() {
+            @Override
+            public boolean isMet() {
+                return harness.getClient().getFaults().getCallCount(FaultSchedule.Operation.CONSUME) == 2 &&
+                        !processor.isPurchased("coins");
+            }
+        }, 60000);
+        assertTrue(recovery >= 0);
+        assertEquals(2, harness.getClient().getFaults().getCallCount(FaultSchedule.Operation.CONSUME));
+        assertTrue(harness.getClient().queryPurchases(BillingClient.SkuType.INAPP).getPurchasesList().isEmpty());
+    }
+
+    @Test
+    public void reportsSubscriptionOnlyRefresh() {
+        harness.getClient().addPurchase(BillingClient.SkuType.SUBS, purchase("premium"));
+        BillingProcessor processor = harness.newProcessor(handler);
+        assertTrue(harness.runUntil(handler.hasEvent("onBillingInitialized"), 10000) >= 0);
+
+        final List<Boolean> results = new ArrayList<>();
+        processor.loadOwnedPurchasesFromGoogleAsync(new BillingProcessor.IOwnedPurchasesListener() {
+            @Override
+            public void onOwnedPurchasesLoaded(boolean loaded) {
+                results.add(loaded);
+            }
+        });
+        harness.runUntil(new BillingHarness.Condition() {
+            @Override
+            public boolean isMet() {
+                return !results.isEmpty();
+            }
+        }, 10000);
+
+        assertEquals(Collections.singletonList(true), results);
+        assertTrue(processor.isSubscribed("premium"));
+    }
+
+    @Test
+    public void verifiesUpdatesOnceForAllProcessors() {
+        final List<Purchase> verified = new ArrayList<>();
+        PurchaseVerifier verifier = new PurchaseVerifier() {
+            @Override
+            public void verify(List<Purchase> purchases, Callback callback) {
+                verified.addAll(purchases);
+                callback.onVerified(purchases, Collections.<Purchase>emptyList(),
+                        Collections.<Purchase>emptyList());
+            }
+        };
+        BillingHarness.RecordingHandler second = new BillingHarness.RecordingHandler(harness.getClock());
+        harness.newProcessor(handler).setPurchaseVerifier(verifier);
+        harness.newProcessor(second).setPurchaseVerifier(verifier);
+        assertTrue(harness.runUntil(second.hasEvent("onBillingInitialized"), 10000) >= 0);
+        // lets the initial inventory load finish before the purchase is made
+        harness.runUntil(new BillingHarness.Condition() {
+            @Override
+            public boolean isMet() {
+                return false;
+            }
+        }, 5000);
+
+        harness.getClient().completePurchase(BillingClient.SkuType.INAPP, purchase("coins"), 1000);
+        assertTrue(harness.runUntil(second.hasEvent("onProductPurchased"), 10000) >= 0);
+
+        assertEquals(1, verified.size());
+        assertEquals(1, handler.count("onProductPurchased"));
+        assertEquals(1, second.count("onProductPurchased"));
+    }
+
+    @Test
+    public void answersFeatureChecksAfterIdleUnbind() {
+        final BillingProcessor processor = harness.newProcessor(handler);
+        assertTrue(harness.runUntil(handler.hasEvent("onBillingInitialized"), 10000) >= 0);
+        processor.setIdleDisconnectTimeout(60000);
+        harness.runUntil(new BillingHarness.Condition() {
+            @Override
+            public boolean isMet() {
+                return !harness.getClient().isReady();
+            }
+        }, 120000);
+        assertFalse(harness.getClient().isReady());
+
+        assertTrue(processor.isSubscriptionUpdateSupported());
+        assertTrue(processor.isOneTimePurchaseSupported());
+        assertTrue(harness.runUntil(new BillingHarness.Condition() {
+            @Override
+            public boolean isMet() {
+                return harness.getClient().isReady();
+            }
+        }, 10000) >= 0);
+    }
+
+    @Test
+    public void settlesUnownedGrantsFromHistory() {
+        final ConsumableLedger ledger = new ConsumableLedger(
+                new File(ApplicationProvider.getApplicationContext().getFilesDir(), "settles.ledger"));
+        ledger.setUnits("coins", 100);
+        ledger.setUnits("gems", 10);
+        // consumes left unanswered by the previous process; the gems were refunded since
+        ledger.beginGrant("coins-token", "coins");
+        ledger.beginGrant("gems-token", "gems");
+        harness.getClient().addHistoryRecord(BillingClient.SkuType.INAPP,
+                ScriptedBillingClient.newHistoryRecord("coins", "coins-token", VirtualClock.EPOCH_MILLIS));
+
+        harness.newProcessor(handler).setConsumableLedger(ledger);
+        assertTrue(harness.runUntil(new BillingHarness.Condition() {
+            @Override
+            public boolean isMet() {
+                return ledger.getPendingGrants().isEmpty();
+            }
+        }, 10000) >= 0);
+
+        assertEquals(100, ledger.getBalance("coins"));
+        assertEquals(0, ledger.getBalance("gems"));
+        assertFalse(ledger.isCredited("gems-token"));
+    }
+
+    private static Purchase purchase(String sku) {
+        return ScriptedBillingClient.newPurchase(sku, sku + "-token", VirtualClock.EPOCH_MILLIS, false);
+    }
+}
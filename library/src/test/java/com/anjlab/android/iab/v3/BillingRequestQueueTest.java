@@ -0,0 +1,165 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class BillingRequestQueueTest {
+    private Context context;
+    private File file;
+    private BillingHarness harness;
+
+    @Before
+    public void setUp() {
+        context = ApplicationProvider.getApplicationContext();
+        file = new File(context.getFilesDir(), "iabv3.requests");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (harness != null) {
+            harness.close();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void unansweredRequestIsReplayedAfterRestart() {
+        BillingRequestQueue queue = new BillingRequestQueue(file);
+        assertTrue(queue.add(BillingRequestQueue.CONSUME, BillingClient.SkuType.INAPP, purchase("coins")));
+        assertTrue(queue.getUnclaimed().isEmpty());
+
+        // the process dies before Google Play answers
+        List<BillingRequestQueue.Request> replay = new BillingRequestQueue(file).getUnclaimed();
+
+        assertEquals(1, replay.size());
+        assertEquals(BillingRequestQueue.CONSUME, replay.get(0).kind);
+        assertEquals("coins-token", replay.get(0).purchase.getPurchaseToken());
+    }
+
+    @Test
+    public void answeredRequestIsNotReplayed() {
+        BillingRequestQueue queue = new BillingRequestQueue(file);
+        queue.add(BillingRequestQueue.ACKNOWLEDGE, BillingClient.SkuType.SUBS, purchase("premium"));
+        queue.remove("premium-token", BillingRequestQueue.ACKNOWLEDGE);
+
+        assertTrue(new BillingRequestQueue(file).isEmpty());
+    }
+
+    @Test
+    public void consumeReplacesAcknowledge() {
+        BillingRequestQueue queue = new BillingRequestQueue(file);
+        queue.add(BillingRequestQueue.ACKNOWLEDGE, BillingClient.SkuType.INAPP, purchase("coins"));
+        assertFalse(queue.add(BillingRequestQueue.CONSUME, BillingClient.SkuType.INAPP, purchase("coins")));
+        // the acknowledge answer does not settle the stronger request
+        queue.remove("coins-token", BillingRequestQueue.ACKNOWLEDGE);
+
+        List<BillingRequestQueue.Request> replay = new BillingRequestQueue(file).getUnclaimed();
+        assertEquals(1, replay.size());
+        assertEquals(BillingRequestQueue.CONSUME, replay.get(0).kind);
+    }
+
+    @Test
+    public void connectionReplaysConsumeLeftByPreviousProcess() {
+        Purchase coins = purchase("coins");
+        new BillingRequestQueue(file).add(BillingRequestQueue.CONSUME, BillingClient.SkuType.INAPP, coins);
+
+        harness = new BillingHarness(context, 7);
+        harness.getClient().addPurchase(BillingClient.SkuType.INAPP, coins);
+        BillingHarness.RecordingHandler handler = new BillingHarness.RecordingHandler(harness.getClock());
+        harness.newProcessor(handler);
+        assertTrue(harness.runUntil(handler.hasEvent("onBillingInitialized"), 10000) >= 0);
+        harness.runUntil(new BillingHarness.Condition() {
+            @Override
+            public boolean isMet() {
+                return harness.getClient().queryPurchases(BillingClient.SkuType.INAPP)
+                        .getPurchasesList().isEmpty();
+            }
+        }, 60000);
+        harness.getClock().runUntilIdle(100);
+
+        assertTrue(harness.getClient().queryPurchases(BillingClient.SkuType.INAPP).getPurchasesList().isEmpty());
+        assertTrue(new BillingRequestQueue(file).isEmpty());
+    }
+
+    @Test
+    public void dropsRequestThatKeepsFailing() {
+        BillingRequestQueue queue = new BillingRequestQueue(file);
+        queue.add(BillingRequestQueue.CONSUME, BillingClient.SkuType.INAPP, purchase("coins"));
+        assertTrue(queue.retry("coins-token", BillingRequestQueue.CONSUME,
+                BillingClient.BillingResponseCode.ERROR));
+        // not answered by Google Play, does not count
+        assertTrue(queue.retry("coins-token", BillingRequestQueue.CONSUME,
+                BillingClient.BillingResponseCode.SERVICE_DISCONNECTED));
+
+        // attempts survive a restart
+        queue = new BillingRequestQueue(file);
+        for (int i = 2; i < BillingRequestQueue.MAX_ATTEMPTS; i++) {
+            assertTrue(queue.retry("coins-token", BillingRequestQueue.CONSUME,
+                    BillingClient.BillingResponseCode.ERROR));
+        }
+        assertFalse(queue.retry("coins-token", BillingRequestQueue.CONSUME,
+                BillingClient.BillingResponseCode.ERROR));
+        assertTrue(new BillingRequestQueue(file).isEmpty());
+    }
+
+    @Test
+    public void replayReportsToProcessorThatQueued() {
+        harness = new BillingHarness(context, 7);
+        harness.getClient().addPurchase(BillingClient.SkuType.INAPP, purchase("coins"));
+        BillingHarness.RecordingHandler first = new BillingHarness.RecordingHandler(harness.getClock());
+        BillingHarness.RecordingHandler second = new BillingHarness.RecordingHandler(harness.getClock());
+        harness.newProcessor(first);
+        final BillingProcessor processor = harness.newProcessor(second);
+        assertTrue(harness.runUntil(new BillingHarness.Condition() {
+            @Override
+            public boolean isMet() {
+                return processor.isPurchased("coins");
+            }
+        }, 10000) >= 0);
+
+        harness.getClient().disconnect();
+        processor.consumePurchase("coins");
+        processor.initialize();
+        assertTrue(harness.runUntil(second.hasEvent("onConsumeSuccess"), 10000) >= 0);
+
+        assertEquals(0, first.count("onConsumeSuccess"));
+    }
+
+    private static Purchase purchase(String sku) {
+        return ScriptedBillingClient.newPurchase(sku, sku + "-token", 0, false);
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.SkuDetails;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class CallbackDispatcherTest {
+    private VirtualClock timer;
+    private BatchRecorder handler;
+    private CallbackDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        timer = new VirtualClock();
+        handler = new BatchRecorder();
+        dispatcher = new CallbackDispatcher(handler, timer);
+        dispatcher.setBatchWindow(500);
+    }
+
+    @Test
+    public void collectsPurchasesForTheWindow() {
+        dispatcher.onProductPurchased(purchase("a"));
+        dispatcher.onProductPurchased(purchase("b"));
+        assertEquals(0, handler.batches.size());
+
+        timer.advanceBy(500);
+        assertEquals(1, handler.batches.size());
+        assertEquals(2, handler.batches.get(0).size());
+    }
+
+    @Test
+    public void deliversRightAwayOnceTimerIsShutDown() {
+        timer.shutdownNow();
+
+        dispatcher.onProductPurchased(purchase("a"));
+        assertEquals(1, handler.batches.size());
+    }
+
+    private static Purchase purchase(String sku) {
+        return ScriptedBillingClient.newPurchase(sku, sku + "-token", 0, false);
+    }
+
+    private static final class BatchRecorder implements BillingProcessor.IBillingBatchHandler {
+        final List<List<Purchase>> batches = new ArrayList<>();
+
+        @Override
+        public void onProductsPurchased(List<Purchase> purchases) {
+            batches.add(purchases);
+        }
+
+        @Override
+        public void onConsumeSuccess(List<Purchase> transactions) {
+        }
+
+        @Override
+        public void onAcknowledgeSuccess(List<Purchase> transactions) {
+        }
+
+        @Override
+        public void onProductPurchased(@Nullable Purchase details) {
+        }
+
+        @Override
+        public void onPurchaseHistoryRestored(List<String> products) {
+        }
+
+        @Override
+        public void onBillingError(BillingResult result) {
+        }
+
+        @Override
+        public void onBillingInitialized() {
+        }
+
+        @Override
+        public void onConsumeSuccess(Purchase transaction) {
+        }
+
+        @Override
+        public void onAcknowledgeSuccess(Purchase transaction) {
+        }
+
+        @Override
+        public void onQuerySkuDetails(List<SkuDetails> skuDetails) {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.Purchase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CompactPurchaseTest {
+
+    @Test
+    public void readsTokenAndOrderIdFromJson() {
+        CompactPurchase record = CompactPurchase.of(
+                ScriptedBillingClient.newPurchase("coins", "coins-token", 1000, false));
+
+        assertEquals("coins-token", record.getPurchaseToken());
+        assertEquals("GPA.coins-token", record.getOrderId());
+        assertTrue(record.hasPurchaseToken("coins-token"));
+        assertFalse(record.hasPurchaseToken("coins"));
+        assertFalse(record.hasPurchaseToken("GPA.coins-token"));
+    }
+
+    @Test
+    public void rebuildsEquivalentPurchase() {
+        Purchase purchase = ScriptedBillingClient.newPurchase("coins", "coins-token", 1000, false);
+        Purchase rebuilt = CompactPurchase.of(purchase).toPurchase();
+
+        assertEquals(purchase.getOriginalJson(), rebuilt.getOriginalJson());
+        assertEquals(purchase.getSignature(), rebuilt.getSignature());
+        assertEquals(1000, rebuilt.getPurchaseTime());
+    }
+
+    @Test
+    public void internsProductIds() {
+        String first = CompactPurchase.internSku(new String("coins"));
+        assertSame(first, CompactPurchase.internSku(new String("coins")));
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ConsumableLedgerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.newFolder(), "ledger");
+    }
+
+    @Test
+    public void grantSurvivesRestartUntilCommitted() {
+        ConsumableLedger ledger = open();
+        assertTrue(ledger.beginGrant("token", "coins"));
+
+        // the process dies while the purchase is being consumed
+        ledger = open();
+        assertEquals(Collections.singletonMap("token", "coins"), ledger.getPendingGrants());
+        assertEquals(0, ledger.getBalance("coins"));
+
+        ledger.commitGrant("token");
+        ledger = open();
+        assertEquals(100, ledger.getBalance("coins"));
+        assertTrue(ledger.isCredited("token"));
+        assertTrue(ledger.getPendingGrants().isEmpty());
+    }
+
+    @Test
+    public void creditsEachTokenOnce() {
+        ConsumableLedger ledger = open();
+        ledger.beginGrant("token", "coins");
+        ledger.commitGrant("token");
+        ledger.commitGrant("token");
+
+        assertFalse(ledger.beginGrant("token", "coins"));
+        assertEquals(100, open().getBalance("coins"));
+    }
+
+    @Test
+    public void abortedGrantIsNotReplayed() {
+        ConsumableLedger ledger = open();
+        ledger.beginGrant("token", "coins");
+        ledger.abortGrant("token");
+
+        ledger = open();
+        assertTrue(ledger.getPendingGrants().isEmpty());
+        assertEquals(0, ledger.getBalance("coins"));
+    }
+
+    @Test
+    public void compactionKeepsBalancesAndCreditedTokens() {
+        ConsumableLedger ledger = open();
+        for (int i = 0; i < 600; i++) {
+            ledger.beginGrant("token" + i, "coins");
+            ledger.commitGrant("token" + i);
+        }
+        ledger.beginGrant("pending", "coins");
+        ledger.spend("coins", 50);
+
+        ledger = open();
+        assertEquals(600 * 100 - 50, ledger.getBalance("coins"));
+        assertTrue(ledger.isCredited("token0"));
+        assertEquals(Collections.singletonMap("pending", "coins"), ledger.getPendingGrants());
+    }
+
+    @Test
+    public void keepsRecentCreditedTokensOnly() {
+        ConsumableLedger ledger = open();
+        for (int i = 0; i <= ConsumableLedger.MAX_CREDITED_TOKENS; i++) {
+            ledger.beginGrant("token" + i, "coins");
+            ledger.commitGrant("token" + i);
+        }
+
+        ledger = open();
+        assertFalse(ledger.isCredited("token0"));
+        assertTrue(ledger.isCredited("token1"));
+        assertTrue(ledger.isCredited("token" + ConsumableLedger.MAX_CREDITED_TOKENS));
+    }
+
+    @Test
+    public void compactsWithoutCommits() {
+        ConsumableLedger ledger = open();
+        for (int i = 0; i < 1500; i++) {
+            ledger.credit("coins", 1);
+        }
+
+        assertTrue(file.length() < 1000 * "S\tcoins\t1\n".length());
+        assertEquals(1500, open().getBalance("coins"));
+    }
+
+    @Test
+    public void ignoresEntryCutShortByCrash() throws IOException {
+        ConsumableLedger ledger = open();
+        ledger.credit("coins", 10);
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write("S\tcoins\t99".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        ledger = open();
+        assertEquals(10, ledger.getBalance("coins"));
+        ledger.credit("coins", 5);
+        assertEquals(15, open().getBalance("coins"));
+    }
+
+    private ConsumableLedger open() {
+        ConsumableLedger ledger = new ConsumableLedger(file);
+        ledger.setUnits("coins", 100);
+        return ledger;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.BillingClient;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Scripted failures for {@link ScriptedBillingClient} calls. Rules are checked in the order they
+ * were added; the first one matching a call decides its outcome.
+ */
+final class FaultSchedule {
+
+    enum Operation {
+        START_CONNECTION,
+        QUERY_PURCHASES,
+        QUERY_SKU_DETAILS,
+        QUERY_PURCHASE_HISTORY,
+        CONSUME,
+        ACKNOWLEDGE,
+        LAUNCH_BILLING_FLOW
+    }
+
+    /**
+     * Outcome of a failed call: the response code to return and whether the service connection
+     * drops while the call is in flight.
+     */
+    static final class Fault {
+        final int responseCode;
+        final boolean disconnect;
+
+        Fault(int responseCode, boolean disconnect) {
+            this.responseCode = responseCode;
+            this.disconnect = disconnect;
+        }
+    }
+
+    private interface Rule {
+        Fault match(int call, Random random);
+    }
+
+    private final Map<Operation, List<Rule>> rules = new EnumMap<>(Operation.class);
+    private final Map<Operation, Integer> calls = new EnumMap<>(Operation.class);
+
+    /**
+     * Fails the {@code n}th call of {@code operation}, counting from 1.
+     */
+    FaultSchedule failCall(Operation operation, final int n, final int responseCode) {
+        return add(operation, new Rule() {
+            @Override
+            public Fault match(int call, Random random) {
+                return call == n ? new Fault(responseCode, false) : null;
+            }
+        });
+    }
+
+    /**
+     * Fails calls {@code from} to {@code to} of {@code operation}, inclusive, e.g. an outage.
+     */
+    FaultSchedule failCalls(Operation operation, final int from, final int to, final int responseCode) {
+        return add(operation, new Rule() {
+            @Override
+            public Fault match(int call, Random random) {
+                return call >= from && call <= to ? new Fault(responseCode, false) : null;
+            }
+        });
+    }
+
+    FaultSchedule failWithProbability(Operation operation, final double probability, final int responseCode) {
+        return add(operation, new Rule() {
+            @Override
+            public Fault match(int call, Random random) {
+                return random.nextDouble() < probability ? new Fault(responseCode, false) : null;
+            }
+        });
+    }
+
+    /**
+     * Drops the service connection while the {@code n}th call of {@code operation} is in
+     * flight: the call fails with {@code SERVICE_DISCONNECTED} and the client reports
+     * {@code onBillingServiceDisconnected}.
+     */
+    FaultSchedule disconnectDuringCall(Operation operation, final int n) {
+        return add(operation, new Rule() {
+            @Override
+            public Fault match(int call, Random random) {
+                return call == n ? new Fault(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, true) : null;
+            }
+        });
+    }
+
+    private FaultSchedule add(Operation operation, Rule rule) {
+        List<Rule> list = rules.get(operation);
+        if (list == null) {
+            list = new ArrayList<>();
+            rules.put(operation, list);
+        }
+        list.add(rule);
+        return this;
+    }
+
+    /**
+     * Counts a call of {@code operation}.
+     *
+     * @return its fault, or {@code null} if it succeeds
+     */
+    Fault next(Operation operation, Random random) {
+        Integer previous = calls.get(operation);
+        int call = previous != null ? previous + 1 : 1;
+        calls.put(operation, call);
+        List<Rule> list = rules.get(operation);
+        if (list == null) {
+            return null;
+        }
+        for (Rule rule : list) {
+            Fault fault = rule.match(call, random);
+            if (fault != null) {
+                return fault;
+            }
+        }
+        return null;
+    }
+
+    int getCallCount(Operation operation) {
+        Integer count = calls.get(operation);
+        return count != null ? count : 0;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.app.Activity;
+import android.app.Application;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ForegroundTrackerTest {
+    private final List<String> transitions = new ArrayList<>();
+    private final ForegroundTracker.Listener listener = new ForegroundTracker.Listener() {
+        @Override
+        public void onForeground() {
+            transitions.add("foreground");
+        }
+
+        @Override
+        public void onBackground() {
+            transitions.add("background");
+        }
+    };
+
+    @Test
+    public void keepsActivityStartedBeforeRegistration() {
+        ForegroundTracker tracker = newTracker(true);
+        assertTrue(tracker.isInForeground());
+
+        // the activity shown at registration opens another one and stops
+        Activity next = new Activity();
+        tracker.onActivityStarted(next);
+        tracker.onActivityStopped(new Activity());
+        assertTrue(tracker.isInForeground());
+        assertTrue(transitions.isEmpty());
+
+        tracker.onActivityStopped(next);
+        assertFalse(tracker.isInForeground());
+        assertEquals(Collections.singletonList("background"), transitions);
+    }
+
+    @Test
+    public void reportsBackgroundWhenEarlierActivityStops() {
+        ForegroundTracker tracker = newTracker(true);
+        tracker.onActivityStopped(new Activity());
+        assertFalse(tracker.isInForeground());
+        assertEquals(Collections.singletonList("background"), transitions);
+    }
+
+    @Test
+    public void countsActivitiesStartedAfterRegistration() {
+        ForegroundTracker tracker = newTracker(false);
+        assertFalse(tracker.isInForeground());
+
+        Activity first = new Activity();
+        Activity second = new Activity();
+        tracker.onActivityStarted(first);
+        tracker.onActivityStarted(second);
+        tracker.onActivityStopped(first);
+        assertTrue(tracker.isInForeground());
+        tracker.onActivityStopped(second);
+        assertFalse(tracker.isInForeground());
+        assertEquals(Arrays.asList("foreground", "background"), transitions);
+    }
+
+    private ForegroundTracker newTracker(boolean visible) {
+        Application application = ApplicationProvider.getApplicationContext();
+        return new ForegroundTracker(application, listener, visible);
+    }
+}
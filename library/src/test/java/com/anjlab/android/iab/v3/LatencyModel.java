@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.Random;
+
+/**
+ * Distribution of response times for one kind of {@link ScriptedBillingClient} call. Samples
+ * come from the harness' seeded {@link Random}, so a run is reproducible.
+ */
+abstract class LatencyModel {
+    static final LatencyModel NONE = fixed(0);
+
+    abstract long sampleMillis(Random random);
+
+    static LatencyModel fixed(final long millis) {
+        return new LatencyModel() {
+            @Override
+            long sampleMillis(Random random) {
+                return millis;
+            }
+        };
+    }
+
+    static LatencyModel uniform(final long minMillis, final long maxMillis) {
+        return new LatencyModel() {
+            @Override
+            long sampleMillis(Random random) {
+                return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+            }
+        };
+    }
+
+    /**
+     * Log-normal latency, the usual shape of service response times: most calls close to
+     * {@code medianMillis}, with a long tail that grows with {@code sigma}.
+     */
+    static LatencyModel logNormal(final long medianMillis, final double sigma) {
+        return new LatencyModel() {
+            @Override
+            long sampleMillis(Random random) {
+                return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    /**
+     * {@code slowMillis} with probability {@code slowProbability}, {@code fastMillis} otherwise,
+     * e.g. a service that occasionally stalls.
+     */
+    static LatencyModel bimodal(final long fastMillis, final long slowMillis, final double slowProbability) {
+        return new LatencyModel() {
+            @Override
+            long sampleMillis(Random random) {
+                return random.nextDouble() < slowProbability ? slowMillis : fastMillis;
+            }
+        };
+    }
+
+    /**
+     * @return this model with samples limited to {@code maxMillis}
+     */
+    LatencyModel cappedAt(final long maxMillis) {
+        final LatencyModel model = this;
+        return new LatencyModel() {
+            @Override
+            long sampleMillis(Random random) {
+                return Math.min(maxMillis, model.sampleMillis(random));
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects virtual-time latencies by name and summarizes their distribution.
+ */
+final class LatencyRecorder {
+    private final Map<String, List<Long>> samples = new TreeMap<>();
+
+    void record(String name, long millis) {
+        List<Long> list = samples.get(name);
+        if (list == null) {
+            list = new ArrayList<>();
+            samples.put(name, list);
+        }
+        list.add(millis);
+    }
+
+    int count(String name) {
+        List<Long> list = samples.get(name);
+        return list != null ? list.size() : 0;
+    }
+
+    /**
+     * @param percentile between 0 and 100, using the nearest-rank method
+     * @return the latency at {@code percentile}, or {@code -1} if nothing was recorded
+     */
+    long percentile(String name, double percentile) {
+        long[] sorted = sorted(name);
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+    }
+
+    long max(String name) {
+        return percentile(name, 100);
+    }
+
+    private long[] sorted(String name) {
+        List<Long> list = samples.get(name);
+        if (list == null) {
+            return new long[0];
+        }
+        long[] values = new long[list.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = list.get(i);
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        for (String name : samples.keySet()) {
+            summary.append(name)
+                    .append(": n=").append(count(name))
+                    .append(" p50=").append(percentile(name, 50))
+                    .append(" p95=").append(percentile(name, 95))
+                    .append(" p99=").append(percentile(name, 99))
+                    .append(" max=").append(max(name))
+                    .append(" ms\n");
+        }
+        return summary.toString();
+    }
+}
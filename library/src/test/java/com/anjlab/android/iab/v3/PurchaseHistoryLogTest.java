@@ -0,0 +1,149 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.PurchaseHistoryRecord;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class PurchaseHistoryLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private PurchaseHistoryLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.newFolder(), "history");
+        log = new PurchaseHistoryLog(file);
+        List<PurchaseHistoryRecord> records = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            records.add(record("sku" + i, i * 1000L));
+        }
+        log.append(records);
+    }
+
+    @Test
+    public void readsPagesAfterTime() throws IOException {
+        final List<Integer> pages = new ArrayList<>();
+        log.read(1000, 2, new PurchaseHistoryLog.PageCallback() {
+            @Override
+            public void onPage(List<PurchaseHistoryRecord> page) {
+                pages.add(page.size());
+            }
+        });
+
+        assertEquals(2, pages.size());
+        assertEquals(2, (int) pages.get(0));
+        assertEquals(2, (int) pages.get(1));
+    }
+
+    @Test
+    public void callbackRunsWithoutTheLock() throws Exception {
+        final AtomicInteger seen = new AtomicInteger();
+        log.read(0, 5, new PurchaseHistoryLog.PageCallback() {
+            @Override
+            public void onPage(List<PurchaseHistoryRecord> page) {
+                // another thread using the log must not wait for the callback
+                Thread other = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        seen.set(log.size());
+                    }
+                });
+                other.start();
+                try {
+                    other.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        assertEquals(5, seen.get());
+    }
+
+    @Test
+    public void keepsRecordsFromTheSameMillisecond() throws IOException {
+        List<PurchaseHistoryRecord> records = new ArrayList<>();
+        records.add(record("sku5", 5000));
+        records.add(record("sku6", 5000));
+        records.add(record("sku7", 5000));
+
+        assertEquals(2, log.append(records));
+        assertEquals(7, log.size());
+        // a later sync returning the same records adds nothing
+        assertEquals(0, log.append(records));
+        assertEquals(7, log.size());
+    }
+
+    @Test
+    public void malformedLineDoesNotShiftPages() throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write("garbage\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        log = new PurchaseHistoryLog(file);
+        List<PurchaseHistoryRecord> records = new ArrayList<>();
+        records.add(record("sku6", 6000));
+        log.append(records);
+
+        final List<String> skus = new ArrayList<>();
+        log.read(4000, 2, new PurchaseHistoryLog.PageCallback() {
+            @Override
+            public void onPage(List<PurchaseHistoryRecord> page) {
+                for (PurchaseHistoryRecord record : page) {
+                    skus.add(record.getSku());
+                }
+            }
+        });
+
+        assertEquals(Arrays.asList("sku5", "sku6"), skus);
+    }
+
+    private static PurchaseHistoryRecord record(String sku, long purchaseTime) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("productId", sku);
+            json.put("purchaseTime", purchaseTime);
+            json.put("purchaseToken", sku + "-token");
+            return new PurchaseHistoryRecord(json.toString(), "");
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class PurchasePipelineTest {
+    private VirtualClock background;
+    private VirtualClock mainThread;
+    private final List<PurchaseVerifier.Callback> pendingVerifications = new ArrayList<>();
+    private final List<List<Purchase>> pendingBatches = new ArrayList<>();
+    private final List<String> dispatched = new ArrayList<>();
+    private boolean holdVerification;
+    private PurchasePipeline pipeline;
+
+    @Before
+    public void setUp() {
+        background = new VirtualClock();
+        mainThread = new VirtualClock();
+        pipeline = new PurchasePipeline(new PurchasePipeline.Stages() {
+            @Override
+            public void verify(List<Purchase> purchases, PurchaseVerifier.Callback callback) {
+                if (holdVerification) {
+                    pendingBatches.add(purchases);
+                    pendingVerifications.add(callback);
+                } else {
+                    callback.onVerified(purchases, Collections.<Purchase>emptyList(),
+                            Collections.<Purchase>emptyList());
+                }
+            }
+
+            @Override
+            public void persist(String purchaseType, List<Purchase> valid) {
+            }
+
+            @Override
+            public void dispatch(String purchaseType, List<Purchase> valid, List<Purchase> invalid,
+                                 List<Purchase> unverified) {
+                for (Purchase purchase : valid) {
+                    dispatched.add(purchase.getPurchaseToken());
+                }
+            }
+        }, background, mainThread, background);
+        pipeline.setCapacity(PurchasePipeline.BATCH_SIZE);
+    }
+
+    @Test
+    public void spillsUpdatesOnceVerifyQueueIsFull() {
+        final List<Integer> overflows = new ArrayList<>();
+        pipeline.setListener(new BillingProcessor.IPurchasePipelineListener() {
+            @Override
+            public void onStageSaturated(String stage, int depth) {
+            }
+
+            @Override
+            public void onStageRelieved(String stage, int depth) {
+            }
+
+            @Override
+            public void onStageOverflow(String stage, int overflowDepth) {
+                overflows.add(overflowDepth);
+            }
+        });
+        holdVerification = true;
+        int limit = PurchasePipeline.BATCH_SIZE * PurchasePipeline.INTAKE_FACTOR;
+        List<Purchase> purchases = new ArrayList<>();
+        for (int i = 0; i < limit + 10; i++) {
+            purchases.add(purchase("sku" + i));
+        }
+        pipeline.submit(BillingClient.SkuType.INAPP, purchases);
+
+        assertEquals(Collections.singletonList(10), overflows);
+        assertEquals(10, pipeline.getStats().getOverflowDepth());
+
+        // a spilled update is still a duplicate of itself
+        pipeline.submit(BillingClient.SkuType.INAPP, Collections.singletonList(purchase("sku" + limit)));
+        assertEquals(1, pipeline.getStats().getDuplicatesDropped());
+
+        while (!pendingVerifications.isEmpty() || background.pendingTasks() > 0) {
+            release();
+        }
+        assertEquals(limit + 10, dispatched.size());
+        assertEquals("sku" + (limit + 9) + "-token", dispatched.get(limit + 9));
+        assertEquals(0, pipeline.getStats().getOverflowDepth());
+        assertEquals(10, pipeline.getStats().getOverflowed());
+    }
+
+    @Test
+    public void deliversPolledPurchaseOnce() {
+        holdVerification = true;
+        // the pending purchase poll finds the purchase completed
+        pipeline.submit(BillingClient.SkuType.INAPP, Collections.singletonList(purchase("a")));
+        run();
+        // and Google Play reports it while it is still being verified
+        pipeline.submit(BillingClient.SkuType.INAPP, Collections.singletonList(purchase("a")));
+        release();
+        // or after it was delivered
+        pipeline.submit(BillingClient.SkuType.INAPP, Collections.singletonList(purchase("a")));
+        run();
+
+        assertEquals(Collections.singletonList("a-token"), dispatched);
+        assertEquals(2, pipeline.getStats().getDuplicatesDropped());
+    }
+
+    private void release() {
+        run();
+        List<PurchaseVerifier.Callback> callbacks = new ArrayList<>(pendingVerifications);
+        List<List<Purchase>> batches = new ArrayList<>(pendingBatches);
+        pendingVerifications.clear();
+        pendingBatches.clear();
+        for (int i = 0; i < callbacks.size(); i++) {
+            callbacks.get(i).onVerified(batches.get(i), Collections.<Purchase>emptyList(),
+                    Collections.<Purchase>emptyList());
+        }
+        run();
+    }
+
+    private void run() {
+        for (int i = 0; i < 100 && (background.pendingTasks() > 0 || mainThread.pendingTasks() > 0); i++) {
+            background.runUntilIdle(10);
+            mainThread.runUntilIdle(10);
+        }
+    }
+
+    private static Purchase purchase(String sku) {
+        return ScriptedBillingClient.newPurchase(sku, sku + "-token", 0, false);
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import com.android.billingclient.api.Purchase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ReceiptOutboxTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private VirtualClock clock;
+    private final List<String> sent = new ArrayList<>();
+    private boolean online = true;
+    private String rejectedToken;
+
+    private final ReceiptOutbox.Transport transport = new ReceiptOutbox.Transport() {
+        @Override
+        public void send(byte[] gzippedJson) throws IOException {
+            if (!online) {
+                throw new IOException("offline");
+            }
+            List<String> tokens = decode(gzippedJson);
+            if (tokens.contains(rejectedToken)) {
+                throw new ReceiptOutbox.RejectedBatchException("HTTP 400");
+            }
+            sent.addAll(tokens);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+        clock = new VirtualClock();
+    }
+
+    @Test
+    public void keepsReceiptsAcrossRestart() {
+        online = false;
+        ReceiptOutbox outbox = newOutbox();
+        outbox.enqueue(Collections.singletonList(purchase("a")));
+        clock.runUntilIdle(10);
+        assertTrue(sent.isEmpty());
+
+        // the process dies with the receipt still queued
+        clock = new VirtualClock();
+        online = true;
+        newOutbox();
+        clock.runUntilIdle(10);
+
+        assertEquals(Collections.singletonList("a-token"), sent);
+    }
+
+    @Test
+    public void compactionNeverSkipsNewReceipts() {
+        ReceiptOutbox outbox = newOutbox();
+        outbox.enqueue(Arrays.asList(purchase("a"), purchase("b")));
+        clock.runUntilIdle(10);
+        assertEquals(2, sent.size());
+        assertFalse(new File(directory, "iabv3.outbox").exists());
+
+        online = false;
+        outbox.enqueue(Collections.singletonList(purchase("c")));
+        clock.runUntilIdle(10);
+
+        clock = new VirtualClock();
+        online = true;
+        newOutbox();
+        clock.runUntilIdle(10);
+
+        assertEquals(3, sent.size());
+        assertEquals("c-token", sent.get(2));
+    }
+
+    @Test
+    public void skipsTokensAlreadySent() {
+        ReceiptOutbox outbox = newOutbox();
+        outbox.enqueue(Collections.singletonList(purchase("a")));
+        clock.runUntilIdle(10);
+        outbox.enqueue(Collections.singletonList(purchase("a")));
+        clock.runUntilIdle(10);
+
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void boundsSentTokens() throws IOException {
+        ReceiptOutbox outbox = newOutbox();
+        int count = ReceiptOutbox.MAX_SENT_TOKENS * 3;
+        for (int i = 0; i < count; i++) {
+            outbox.enqueue(Collections.singletonList(purchase("sku" + i)));
+        }
+        clock.runUntilIdle(count * 4);
+
+        assertEquals(count, sent.size());
+        assertTrue(countLines(new File(directory, "iabv3.outbox.sent")) <= ReceiptOutbox.MAX_SENT_TOKENS * 2);
+
+        // recent tokens are still skipped, the oldest ones have been forgotten
+        outbox.enqueue(Arrays.asList(purchase("sku" + (count - 1)), purchase("sku0")));
+        clock.runUntilIdle(10);
+        assertEquals(count + 1, sent.size());
+        assertEquals("sku0-token", sent.get(count));
+    }
+
+    @Test
+    public void setsRejectedBatchAside() throws IOException {
+        rejectedToken = "bad-token";
+        ReceiptOutbox outbox = newOutbox();
+        outbox.enqueue(Collections.singletonList(purchase("bad")));
+        clock.runUntilIdle(10);
+        outbox.enqueue(Collections.singletonList(purchase("good")));
+        clock.runUntilIdle(10);
+
+        assertEquals(Collections.singletonList("good-token"), sent);
+        assertEquals(1, countLines(new File(directory, "iabv3.outbox.rejected")));
+    }
+
+    @Test
+    public void ignoresReceiptsAfterShutdown() {
+        ReceiptOutbox outbox = newOutbox();
+        outbox.shutdown();
+        outbox.enqueue(Collections.singletonList(purchase("a")));
+        outbox.flush();
+
+        assertTrue(sent.isEmpty());
+    }
+
+    private ReceiptOutbox newOutbox() {
+        return new ReceiptOutbox(directory, transport, ReceiptOutbox.DEFAULT_MAX_BATCH_SIZE, clock);
+    }
+
+    private static Purchase purchase(String sku) {
+        return ScriptedBillingClient.newPurchase(sku, sku + "-token", 0, false);
+    }
+
+    private static List<String> decode(byte[] gzippedJson) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzippedJson));
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            json.write(buffer, 0, read);
+        }
+        List<String> tokens = new ArrayList<>();
+        try {
+            JSONArray receipts = new JSONArray(json.toString("UTF-8"));
+            for (int i = 0; i < receipts.length(); i++) {
+                tokens.add(receipts.getJSONObject(i).getString("purchaseToken"));
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+        return tokens;
+    }
+
+    private static int countLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+}
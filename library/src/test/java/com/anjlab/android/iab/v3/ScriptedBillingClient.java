@@ -0,0 +1,399 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.PriceChangeConfirmationListener;
+import com.android.billingclient.api.PriceChangeFlowParams;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link BillingClient} backed by an in-memory store, with latency and failures scripted per
+ * {@link FaultSchedule.Operation}.
+ * <p>
+ * Asynchronous responses are scheduled on the {@link VirtualClock} after a latency sampled
+ * from the operation's {@link LatencyModel}. {@link #queryPurchases(String)} is synchronous in
+ * the real client, so it sleeps the clock for its latency instead. A disconnect fault models
+ * the response being lost: the call still takes effect in the store, fails with
+ * {@code SERVICE_DISCONNECTED} and the client reports {@code onBillingServiceDisconnected}.
+ */
+class ScriptedBillingClient extends BillingClient {
+    private final VirtualClock clock;
+    private final Random random;
+    private final PurchasesUpdatedListener purchasesUpdatedListener;
+    private final Map<FaultSchedule.Operation, LatencyModel> latencies =
+            new EnumMap<>(FaultSchedule.Operation.class);
+    private FaultSchedule faults = new FaultSchedule();
+
+    private final Map<String, Map<String, Purchase>> purchases = new HashMap<>();
+    private final Map<String, List<PurchaseHistoryRecord>> history = new HashMap<>();
+    private final Map<String, SkuDetails> skuDetails = new HashMap<>();
+    private BillingClientStateListener stateListener;
+    private boolean connected;
+
+    ScriptedBillingClient(VirtualClock clock, Random random, PurchasesUpdatedListener listener) {
+        this.clock = clock;
+        this.random = random;
+        this.purchasesUpdatedListener = listener;
+    }
+
+    void setLatency(FaultSchedule.Operation operation, LatencyModel model) {
+        latencies.put(operation, model);
+    }
+
+    void setFaults(FaultSchedule faults) {
+        this.faults = faults;
+    }
+
+    FaultSchedule getFaults() {
+        return faults;
+    }
+
+    void addPurchase(String purchaseType, Purchase purchase) {
+        getPurchases(purchaseType).put(purchase.getSku(), purchase);
+    }
+
+    void addHistoryRecord(String purchaseType, PurchaseHistoryRecord record) {
+        List<PurchaseHistoryRecord> records = history.get(purchaseType);
+        if (records == null) {
+            records = new ArrayList<>();
+            history.put(purchaseType, records);
+        }
+        records.add(record);
+    }
+
+    void addSkuDetails(SkuDetails details) {
+        skuDetails.put(details.getSku(), details);
+    }
+
+    /**
+     * Completes a purchase flow: stores {@code purchase} and reports it through
+     * {@code onPurchasesUpdated} after {@code delayMillis}.
+     */
+    void completePurchase(String purchaseType, final Purchase purchase, long delayMillis) {
+        addPurchase(purchaseType, purchase);
+        clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                purchasesUpdatedListener.onPurchasesUpdated(result(BillingResponseCode.OK),
+                        Collections.singletonList(purchase));
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops the service connection now.
+     */
+    void disconnect() {
+        connected = false;
+        if (stateListener != null) {
+            stateListener.onBillingServiceDisconnected();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return connected;
+    }
+
+    @Override
+    public BillingResult isFeatureSupported(String feature) {
+        return result(connected ? BillingResponseCode.OK : BillingResponseCode.SERVICE_DISCONNECTED);
+    }
+
+    @Override
+    public void startConnection(final BillingClientStateListener listener) {
+        stateListener = listener;
+        final FaultSchedule.Fault fault = faults.next(FaultSchedule.Operation.START_CONNECTION, random);
+        respond(FaultSchedule.Operation.START_CONNECTION, new Runnable() {
+            @Override
+            public void run() {
+                if (fault != null) {
+                    listener.onBillingSetupFinished(result(fault.responseCode));
+                    return;
+                }
+                connected = true;
+                listener.onBillingSetupFinished(result(BillingResponseCode.OK));
+            }
+        });
+    }
+
+    @Override
+    public void endConnection() {
+        connected = false;
+        stateListener = null;
+    }
+
+    @Override
+    public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+        FaultSchedule.Fault fault = faults.next(FaultSchedule.Operation.LAUNCH_BILLING_FLOW, random);
+        return result(fault != null ? fault.responseCode : connectedCode());
+    }
+
+    @Override
+    public void launchPriceChangeConfirmationFlow(Activity activity, PriceChangeFlowParams params,
+                                                  final PriceChangeConfirmationListener listener) {
+        clock.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPriceChangeConfirmationResult(result(connectedCode()));
+            }
+        });
+    }
+
+    @Override
+    public Purchase.PurchasesResult queryPurchases(String purchaseType) {
+        FaultSchedule.Fault fault = faults.next(FaultSchedule.Operation.QUERY_PURCHASES, random);
+        clock.sleep(latency(FaultSchedule.Operation.QUERY_PURCHASES));
+        if (!connected) {
+            return new Purchase.PurchasesResult(result(BillingResponseCode.SERVICE_DISCONNECTED), null);
+        }
+        if (fault != null) {
+            if (fault.disconnect) {
+                disconnect();
+            }
+            return new Purchase.PurchasesResult(result(fault.responseCode), null);
+        }
+        return new Purchase.PurchasesResult(result(BillingResponseCode.OK),
+                new ArrayList<>(getPurchases(purchaseType).values()));
+    }
+
+    @Override
+    public void querySkuDetailsAsync(final SkuDetailsParams params, final SkuDetailsResponseListener listener) {
+        final FaultSchedule.Fault fault = faults.next(FaultSchedule.Operation.QUERY_SKU_DETAILS, random);
+        final boolean wasConnected = connected;
+        respond(FaultSchedule.Operation.QUERY_SKU_DETAILS, new Runnable() {
+            @Override
+            public void run() {
+                if (failed(wasConnected, fault)) {
+                    listener.onSkuDetailsResponse(result(code(wasConnected, fault)), null);
+                    return;
+                }
+                List<SkuDetails> found = new ArrayList<>();
+                for (String sku : params.getSkusList()) {
+                    SkuDetails details = skuDetails.get(sku);
+                    if (details != null && details.getType().equals(params.getSkuType())) {
+                        found.add(details);
+                    }
+                }
+                listener.onSkuDetailsResponse(result(BillingResponseCode.OK), found);
+            }
+        });
+    }
+
+    @Override
+    public void consumeAsync(final ConsumeParams params, final ConsumeResponseListener listener) {
+        final FaultSchedule.Fault fault = faults.next(FaultSchedule.Operation.CONSUME, random);
+        final boolean wasConnected = connected;
+        respond(FaultSchedule.Operation.CONSUME, new Runnable() {
+            @Override
+            public void run() {
+                String token = params.getPurchaseToken();
+                boolean reachedService = wasConnected && (fault == null || fault.disconnect);
+                Purchase consumed = reachedService ? removeByToken(SkuType.INAPP, token) : null;
+                if (failed(wasConnected, fault)) {
+                    listener.onConsumeResponse(result(code(wasConnected, fault)), token);
+                    return;
+                }
+                listener.onConsumeResponse(result(consumed != null ?
+                        BillingResponseCode.OK : BillingResponseCode.ITEM_NOT_OWNED), token);
+            }
+        });
+    }
+
+    @Override
+    public void queryPurchaseHistoryAsync(final String purchaseType, final PurchaseHistoryResponseListener listener) {
+        final FaultSchedule.Fault fault = faults.next(FaultSchedule.Operation.QUERY_PURCHASE_HISTORY, random);
+        final boolean wasConnected = connected;
+        respond(FaultSchedule.Operation.QUERY_PURCHASE_HISTORY, new Runnable() {
+            @Override
+            public void run() {
+                if (failed(wasConnected, fault)) {
+                    listener.onPurchaseHistoryResponse(result(code(wasConnected, fault)), null);
+                    return;
+                }
+                List<PurchaseHistoryRecord> records = history.get(purchaseType);
+                listener.onPurchaseHistoryResponse(result(BillingResponseCode.OK),
+                        records != null ? new ArrayList<>(records) : new ArrayList<PurchaseHistoryRecord>());
+            }
+        });
+    }
+
+    @Override
+    public void acknowledgePurchase(final AcknowledgePurchaseParams params,
+                                    final AcknowledgePurchaseResponseListener listener) {
+        final FaultSchedule.Fault fault = faults.next(FaultSchedule.Operation.ACKNOWLEDGE, random);
+        final boolean wasConnected = connected;
+        respond(FaultSchedule.Operation.ACKNOWLEDGE, new Runnable() {
+            @Override
+            public void run() {
+                boolean reachedService = wasConnected && (fault == null || fault.disconnect);
+                boolean found = reachedService && acknowledge(params.getPurchaseToken());
+                if (failed(wasConnected, fault)) {
+                    listener.onAcknowledgePurchaseResponse(result(code(wasConnected, fault)));
+                    return;
+                }
+                listener.onAcknowledgePurchaseResponse(result(found ?
+                        BillingResponseCode.OK : BillingResponseCode.ITEM_NOT_OWNED));
+            }
+        });
+    }
+
+    private void respond(FaultSchedule.Operation operation, final Runnable response) {
+        clock.schedule(response, latency(operation), TimeUnit.MILLISECONDS);
+    }
+
+    private long latency(FaultSchedule.Operation operation) {
+        LatencyModel model = latencies.get(operation);
+        return Math.max(0, (model != null ? model : LatencyModel.NONE).sampleMillis(random));
+    }
+
+    private boolean failed(boolean wasConnected, FaultSchedule.Fault fault) {
+        if (fault != null && fault.disconnect) {
+            disconnect();
+        }
+        return !wasConnected || fault != null;
+    }
+
+    private static int code(boolean wasConnected, FaultSchedule.Fault fault) {
+        return !wasConnected ? BillingResponseCode.SERVICE_DISCONNECTED : fault.responseCode;
+    }
+
+    private int connectedCode() {
+        return connected ? BillingResponseCode.OK : BillingResponseCode.SERVICE_DISCONNECTED;
+    }
+
+    private Map<String, Purchase> getPurchases(String purchaseType) {
+        Map<String, Purchase> map = purchases.get(purchaseType);
+        if (map == null) {
+            map = new LinkedHashMap<>();
+            purchases.put(purchaseType, map);
+        }
+        return map;
+    }
+
+    private Purchase removeByToken(String purchaseType, String token) {
+        Map<String, Purchase> map = getPurchases(purchaseType);
+        for (Purchase purchase : map.values()) {
+            if (purchase.getPurchaseToken().equals(token)) {
+                return map.remove(purchase.getSku());
+            }
+        }
+        return null;
+    }
+
+    private boolean acknowledge(String token) {
+        for (String purchaseType : new String[]{SkuType.INAPP, SkuType.SUBS}) {
+            Map<String, Purchase> map = getPurchases(purchaseType);
+            for (Purchase purchase : map.values()) {
+                if (purchase.getPurchaseToken().equals(token)) {
+                    try {
+                        JSONObject json = new JSONObject(purchase.getOriginalJson());
+                        json.put("acknowledged", true);
+                        map.put(purchase.getSku(), new Purchase(json.toString(), purchase.getSignature()));
+                    } catch (JSONException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static BillingResult result(int responseCode) {
+        return BillingResult.newBuilder().setResponseCode(responseCode).build();
+    }
+
+    /**
+     * @param pending {@code true} for a purchase awaiting payment
+     */
+    static Purchase newPurchase(String sku, String token, long purchaseTime, boolean pending) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("orderId", "GPA." + token);
+            json.put("packageName", "com.anjlab.test");
+            json.put("productId", sku);
+            json.put("purchaseTime", purchaseTime);
+            // the raw Play value for PENDING is 4, see Purchase.getPurchaseState()
+            json.put("purchaseState", pending ? 4 : 0);
+            json.put("purchaseToken", token);
+            json.put("acknowledged", false);
+            return new Purchase(json.toString(), "");
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static PurchaseHistoryRecord newHistoryRecord(String sku, String token, long purchaseTime) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("productId", sku);
+            json.put("purchaseTime", purchaseTime);
+            json.put("purchaseToken", token);
+            return new PurchaseHistoryRecord(json.toString(), "");
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static SkuDetails newSkuDetails(String sku, String purchaseType, String subscriptionPeriod) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("productId", sku);
+            json.put("type", purchaseType);
+            json.put("price", "$0.99");
+            json.put("price_amount_micros", 990000);
+            json.put("price_currency_code", "USD");
+            json.put("title", sku);
+            json.put("description", sku);
+            if (subscriptionPeriod != null) {
+                json.put("subscriptionPeriod", subscriptionPeriod);
+            }
+            return new SkuDetails(json.toString());
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubscriptionRefreshSchedulerTest {
+
+    @Test
+    public void monthlyRenewalsDoNotDrift() {
+        long purchaseTime = utc(2021, Calendar.JANUARY, 31);
+
+        assertEquals(utc(2021, Calendar.FEBRUARY, 28), SubscriptionRefreshScheduler.advance(purchaseTime, "P1M", 1));
+        assertEquals(utc(2021, Calendar.MARCH, 31), SubscriptionRefreshScheduler.advance(purchaseTime, "P1M", 2));
+        assertEquals(utc(2021, Calendar.APRIL, 30), SubscriptionRefreshScheduler.advance(purchaseTime, "P1M", 3));
+    }
+
+    @Test
+    public void parsesCombinedPeriods() {
+        long purchaseTime = utc(2021, Calendar.JANUARY, 1);
+
+        assertEquals(utc(2021, Calendar.JANUARY, 15), SubscriptionRefreshScheduler.advance(purchaseTime, "P2W", 1));
+        assertEquals(utc(2022, Calendar.APRIL, 1), SubscriptionRefreshScheduler.advance(purchaseTime, "P1Y3M", 1));
+        assertEquals(purchaseTime, SubscriptionRefreshScheduler.advance(purchaseTime, "monthly", 1));
+    }
+
+    @Test
+    public void armsTimerAfterNextBoundary() {
+        VirtualClock timer = new VirtualClock();
+        final int[] refreshes = new int[1];
+        SubscriptionRefreshScheduler scheduler = new SubscriptionRefreshScheduler(timer, timer, new Runnable() {
+            @Override
+            public void run() {
+                refreshes[0]++;
+            }
+        });
+        long purchaseTime = timer.currentTimeMillis() - 45L * 24 * 60 * 60 * 1000;
+        scheduler.track(Collections.singletonMap("sub",
+                new SubscriptionRefreshScheduler.Entry(purchaseTime, "P1M")));
+
+        long boundary = SubscriptionRefreshScheduler.advance(purchaseTime, "P1M", 2);
+        assertEquals(boundary + SubscriptionRefreshScheduler.RENEWAL_MARGIN_MILLIS, scheduler.getNextDeadline());
+        assertEquals(1, timer.pendingTasks());
+
+        timer.advanceBy(scheduler.getNextDeadline() - timer.currentTimeMillis() - 1);
+        assertEquals(0, refreshes[0]);
+        timer.advanceBy(1);
+        assertEquals(1, refreshes[0]);
+    }
+
+    private static long utc(int year, int month, int day) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month, day);
+        return calendar.getTimeInMillis();
+    }
+}
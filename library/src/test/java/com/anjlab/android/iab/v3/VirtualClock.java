@@ -0,0 +1,254 @@
+/**
+ * Copyright 2014 AnjLab
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.anjlab.android.iab.v3;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded {@link ScheduledExecutorService} driven by virtual time.
+ * <p>
+ * Nothing runs on its own: tasks run on the test thread when the clock is advanced, in order of
+ * their due time and then of submission. {@link #sleep(long)} moves the clock forward without
+ * running anything, which models a blocking call on the executor's only thread: work that
+ * became due meanwhile runs late, as it would on a real single-thread executor. Like a real
+ * executor, it rejects tasks once shut down.
+ * <p>
+ * As a {@link Clock}, uptime starts at zero and wall clock time at {@link #EPOCH_MILLIS}.
+ */
+final class VirtualClock extends AbstractExecutorService implements ScheduledExecutorService, Clock {
+    // 2021-01-01T00:00:00Z
+    static final long EPOCH_MILLIS = 1609459200000L;
+
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+    private boolean shutdown;
+
+    long now() {
+        return now;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return EPOCH_MILLIS + now;
+    }
+
+    /**
+     * Advances the clock by {@code millis} without running any task.
+     */
+    void sleep(long millis) {
+        now += millis;
+    }
+
+    /**
+     * Runs every task due within the next {@code millis}, then sets the clock to the end of that
+     * window.
+     */
+    void advanceBy(long millis) {
+        advanceTo(now + millis);
+    }
+
+    void advanceTo(long time) {
+        while (true) {
+            Task<?> next = queue.peek();
+            if (next == null || next.time > time) {
+                break;
+            }
+            queue.poll();
+            now = Math.max(now, next.time);
+            next.run();
+        }
+        now = Math.max(now, time);
+    }
+
+    /**
+     * Runs the next task, advancing the clock to its due time.
+     *
+     * @return {@code false} if there were no tasks
+     */
+    boolean runNext() {
+        Task<?> next = queue.poll();
+        if (next == null) {
+            return false;
+        }
+        now = Math.max(now, next.time);
+        next.run();
+        return true;
+    }
+
+    /**
+     * @return the due time of the next task, or {@code Long.MAX_VALUE} if there is none
+     */
+    long nextTaskTime() {
+        Task<?> next = queue.peek();
+        return next != null ? next.time : Long.MAX_VALUE;
+    }
+
+    /**
+     * Runs tasks until none are left, advancing the clock as needed, but at most
+     * {@code maxTasks} of them so periodic tasks cannot loop forever.
+     *
+     * @return the number of tasks run
+     */
+    int runUntilIdle(int maxTasks) {
+        int count = 0;
+        while (count < maxTasks && runNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    int pendingTasks() {
+        return queue.size();
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit) {
+        return enqueue(new Task<>(Executors.callable(command), unit.toMillis(delay), 0));
+    }
+
+    @NonNull
+    @Override
+    public <V> ScheduledFuture<V> schedule(@NonNull Callable<V> callable, long delay, @NonNull TimeUnit unit) {
+        return enqueue(new Task<>(callable, unit.toMillis(delay), 0));
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(@NonNull Runnable command, long initialDelay, long period,
+                                                  @NonNull TimeUnit unit) {
+        return enqueue(new Task<>(Executors.callable(command), unit.toMillis(initialDelay), unit.toMillis(period)));
+    }
+
+    @NonNull
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(@NonNull Runnable command, long initialDelay, long delay,
+                                                     @NonNull TimeUnit unit) {
+        return enqueue(new Task<>(Executors.callable(command), unit.toMillis(initialDelay), unit.toMillis(delay)));
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private <V> Task<V> enqueue(Task<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("VirtualClock has been shut down");
+        }
+        queue.add(task);
+        return task;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @NonNull
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<Runnable>(queue);
+        queue.clear();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && queue.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NonNull TimeUnit unit) {
+        return isTerminated();
+    }
+
+    /**
+     * Removes cancelled tasks, so {@link #pendingTasks()} only counts live ones.
+     */
+    void purge() {
+        Collection<Task<?>> cancelled = new ArrayList<>();
+        for (Task<?> task : queue) {
+            if (task.isCancelled()) {
+                cancelled.add(task);
+            }
+        }
+        queue.removeAll(cancelled);
+    }
+
+    private final class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private long time;
+        private final long period;
+        private final long seq;
+
+        Task(Callable<V> callable, long delayMillis, long period) {
+            super(callable);
+            this.time = now + Math.max(0, delayMillis);
+            this.period = period;
+            this.seq = sequence++;
+        }
+
+        @Override
+        public void run() {
+            if (period <= 0) {
+                super.run();
+            } else if (runAndReset() && !shutdown) {
+                time = now + period;
+                enqueue(this);
+            }
+        }
+
+        @Override
+        public long getDelay(@NonNull TimeUnit unit) {
+            return unit.convert(time - now, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@NonNull Delayed other) {
+            Task<?> task = (Task<?>) other;
+            if (time != task.time) {
+                return time < task.time ? -1 : 1;
+            }
+            return seq < task.seq ? -1 : (seq == task.seq ? 0 : 1);
+        }
+    }
+}
@@ -160,10 +160,15 @@ public class MainActivity extends Activity {
                 bp.acknowledgeSubscription(SUBSCRIPTION_ID);
                 break;
             case R.id.updateSubscriptionsButton:
-                if (bp.loadOwnedPurchasesFromGoogle()) {
-                    showToast("Subscriptions updated.");
-                    updateTextViews();
-                }
+                bp.loadOwnedPurchasesFromGoogleAsync(new BillingProcessor.IOwnedPurchasesListener() {
+                    @Override
+                    public void onOwnedPurchasesLoaded(boolean loaded) {
+                        if (loaded) {
+                            showToast("Subscriptions updated.");
+                            updateTextViews();
+                        }
+                    }
+                });
                 break;
             case R.id.subsDetailsButton:
                 SkuDetails subs = bp.getSubscriptionListingDetails(SUBSCRIPTION_ID);